@@ -0,0 +1,69 @@
+package tatar.eljah.audio;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+// A pooled block of captured samples handed to PitchAnalyzer.AudioListener.
+//
+// Ownership: the block is lent to the listener for the duration of onAudio() only.
+// A listener that needs the samples afterwards (e.g. on another thread) calls retain()
+// before returning and release() exactly once when done; the block then goes back to
+// the pool and its contents are overwritten by later captures. Samples are read-only
+// for listeners because several of them may share one block.
+public final class AudioBlock {
+    private final short[] samples;
+    private final AudioBlockPool pool;
+    private final AtomicInteger references = new AtomicInteger();
+    private int length;
+    private int sampleRate;
+    private long position;
+
+    AudioBlock(int capacity, AudioBlockPool pool) {
+        this.samples = new short[capacity];
+        this.pool = pool;
+    }
+
+    public short[] samples() {
+        return samples;
+    }
+
+    public int length() {
+        return length;
+    }
+
+    public int sampleRate() {
+        return sampleRate;
+    }
+
+    // Index of samples[0] in the capture stream, counted from the start of recording.
+    public long position() {
+        return position;
+    }
+
+    public AudioBlock retain() {
+        if (references.getAndIncrement() <= 0) {
+            references.getAndDecrement();
+            throw new IllegalStateException("AudioBlock retained after it was released");
+        }
+        return this;
+    }
+
+    public void release() {
+        int remaining = references.decrementAndGet();
+        if (remaining == 0) {
+            pool.recycle(this);
+        } else if (remaining < 0) {
+            references.incrementAndGet();
+            throw new IllegalStateException("AudioBlock released more times than retained");
+        }
+    }
+
+    void lease() {
+        references.set(1);
+    }
+
+    void fill(int length, int sampleRate, long position) {
+        this.length = length;
+        this.sampleRate = sampleRate;
+        this.position = position;
+    }
+}
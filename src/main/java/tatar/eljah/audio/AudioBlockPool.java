@@ -0,0 +1,45 @@
+package tatar.eljah.audio;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+// Lock-free fixed-size pool of AudioBlocks. acquire() is called by the capture thread,
+// recycle() by whichever thread drops the last reference. When listeners hold on to every
+// pooled block a fresh one is created, and blocks that find no free slot are left to the GC,
+// so the pool never blocks the audio thread.
+final class AudioBlockPool {
+    private final int blockSize;
+    private final AtomicReferenceArray<AudioBlock> free;
+
+    AudioBlockPool(int blockSize, int poolSize) {
+        this.blockSize = blockSize;
+        this.free = new AtomicReferenceArray<AudioBlock>(poolSize);
+        for (int i = 0; i < poolSize; i++) {
+            free.set(i, new AudioBlock(blockSize, this));
+        }
+    }
+
+    int blockSize() {
+        return blockSize;
+    }
+
+    AudioBlock acquire() {
+        for (int i = 0; i < free.length(); i++) {
+            AudioBlock block = free.getAndSet(i, null);
+            if (block != null) {
+                block.lease();
+                return block;
+            }
+        }
+        AudioBlock block = new AudioBlock(blockSize, this);
+        block.lease();
+        return block;
+    }
+
+    void recycle(AudioBlock block) {
+        for (int i = 0; i < free.length(); i++) {
+            if (free.compareAndSet(i, null, block)) {
+                return;
+            }
+        }
+    }
+}
@@ -0,0 +1,112 @@
+package tatar.eljah.audio;
+
+public class AutocorrelationPitchEstimator implements PitchEstimator {
+    private static final int FRAME_SIZE = 1024;
+    private static final double MIN_CORRELATION = 0.55d;
+
+    private final PitchAnalyzer.AutocorrelationMethod method;
+    private final DifferenceFunctionKernel kernel = new DifferenceFunctionKernel();
+    private double[] corr = new double[0];
+    private float confidence;
+
+    public AutocorrelationPitchEstimator() {
+        this(PitchAnalyzer.AutocorrelationMethod.TIME_DOMAIN);
+    }
+
+    public AutocorrelationPitchEstimator(PitchAnalyzer.AutocorrelationMethod method) {
+        this.method = method == null ? PitchAnalyzer.AutocorrelationMethod.TIME_DOMAIN : method;
+    }
+
+    public PitchAnalyzer.AutocorrelationMethod getMethod() {
+        return method;
+    }
+
+    @Override
+    public int preferredFrameSize(int sampleRate) {
+        return FRAME_SIZE;
+    }
+
+    @Override
+    public float lastConfidence() {
+        return confidence;
+    }
+
+    @Override
+    public float estimatePitch(short[] buffer, int offset, int length, int sampleRate) {
+        confidence = 0f;
+        if (buffer == null || length < 64 || sampleRate <= 0) {
+            return 0f;
+        }
+
+        // Remove DC offset and reject silence/noise-only fragments.
+        if (kernel.load(buffer, offset, length) < DifferenceFunctionKernel.MIN_RMS) {
+            return 0f;
+        }
+
+        // Prefer autocorrelation to zero-crossing: it is much less sensitive
+        // to attack transients and upper harmonics (e.g. 2nd harmonic spikes).
+        int minLag = Math.max(4, sampleRate / 2600);
+        int maxLag = Math.min(length / 2, sampleRate / 120);
+        if (maxLag <= minLag) {
+            return 0f;
+        }
+
+        if (corr.length < maxLag + 1) {
+            corr = new double[maxLag + 1];
+        }
+        if (method == PitchAnalyzer.AutocorrelationMethod.FFT) {
+            kernel.compute(length, maxLag);
+            for (int lag = minLag; lag <= maxLag; lag++) {
+                corr[lag] = kernel.normalizedCorrelation(lag);
+            }
+        } else {
+            timeDomainCorrelation(kernel.centeredSamples(), length, minLag, maxLag, corr);
+        }
+
+        // Prefer the earliest valid local peak to avoid selecting a later
+        // multiple-period peak (subharmonic/octave-down error).
+        int bestLag = -1;
+        for (int lag = minLag + 1; lag < maxLag; lag++) {
+            double normalized = corr[lag];
+            if (normalized < MIN_CORRELATION) {
+                continue;
+            }
+            if (normalized > corr[lag - 1] && normalized >= corr[lag + 1]) {
+                bestLag = lag;
+                break;
+            }
+        }
+
+        if (bestLag <= 0) {
+            return 0f;
+        }
+
+        float frequency = sampleRate / (float) bestLag;
+        if (frequency < 120f || frequency > 2600f) {
+            return 0f;
+        }
+        confidence = (float) Math.max(0d, Math.min(1d, corr[bestLag]));
+        return frequency;
+    }
+
+    private void timeDomainCorrelation(double[] centered, int length, int minLag, int maxLag, double[] corr) {
+        for (int lag = minLag; lag <= maxLag; lag++) {
+            double sum = 0d;
+            double energyA = 0d;
+            double energyB = 0d;
+            int limit = length - lag;
+            for (int i = 0; i < limit; i++) {
+                double a = centered[i];
+                double b = centered[i + lag];
+                sum += a * b;
+                energyA += a * a;
+                energyB += b * b;
+            }
+            if (energyA <= 0d || energyB <= 0d) {
+                corr[lag] = 0d;
+                continue;
+            }
+            corr[lag] = sum / Math.sqrt(energyA * energyB);
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package tatar.eljah.audio;
+
+// Per-read processing of the realtime capture loop: hop-sized blocks go into the ring buffer,
+// get lent to the audio listener, and every complete window is analyzed. Everything it needs
+// is allocated up front, so steady-state processing allocates nothing. Capture thread only.
+//
+// Windows are analyzed on the thread that reads them, so a slow analysis does not pile up
+// here but in the recorder's own buffer. The capture loop measures that backlog and reports
+// it through skipBacklog(); the samples are still read and passed to the audio listener, only
+// the analysis of the windows they fill is skipped, which lets the loop catch up.
+final class CapturePipeline {
+    // Recorder backlog tolerated before analysis skips ahead to the newest window.
+    static final int MAX_BACKLOG_HOPS = 4;
+    private static final int BLOCK_POOL_SIZE = 8;
+
+    private final int sampleRate;
+    private final int frameSize;
+    private final int hop;
+    private final FrameProcessor frameProcessor;
+    private final PitchAnalyzer.AudioListener audioListener;
+    private final AudioBlockPool blockPool;
+    private final SampleRingBuffer ring;
+    private final short[] frame;
+    private long nextFrameStart;
+
+    CapturePipeline(int sampleRate,
+                    int frameSize,
+                    int hop,
+                    FrameProcessor frameProcessor,
+                    PitchAnalyzer.AudioListener audioListener) {
+        this.sampleRate = sampleRate;
+        this.frameSize = frameSize;
+        this.hop = hop;
+        this.frameProcessor = frameProcessor;
+        this.audioListener = audioListener;
+        this.blockPool = new AudioBlockPool(hop, BLOCK_POOL_SIZE);
+        this.ring = new SampleRingBuffer(frameSize + hop);
+        this.frame = new short[frameSize];
+    }
+
+    // The caller owns the returned block until it hands it to process().
+    AudioBlock acquireBlock() {
+        return blockPool.acquire();
+    }
+
+    int blockSize() {
+        return blockPool.blockSize();
+    }
+
+    // Takes over the caller's reference to block; read is the number of samples captured into it.
+    void process(AudioBlock block, int read) {
+        if (read <= 0) {
+            block.release();
+            return;
+        }
+        block.fill(read, sampleRate, ring.written());
+        ring.write(block.samples(), 0, read);
+        if (audioListener != null) {
+            audioListener.onAudio(block);
+        }
+        block.release();
+
+        long written = ring.written();
+        while (nextFrameStart + frameSize <= written) {
+            if (ring.read(nextFrameStart, frame, 0, frameSize)) {
+                frameProcessor.process(frame, 0, frameSize, nextFrameStart);
+            }
+            nextFrameStart += hop;
+        }
+    }
+
+    // backlogSamples have been captured but not read yet. If that is more than MAX_BACKLOG_HOPS
+    // hops, the windows up to the newest one the backlog completes are not analyzed. Returns
+    // the number of windows skipped.
+    int skipBacklog(long backlogSamples) {
+        if (backlogSamples <= (long) hop * MAX_BACKLOG_HOPS) {
+            return 0;
+        }
+        long newest = ring.written() + backlogSamples - frameSize;
+        if (newest <= nextFrameStart) {
+            return 0;
+        }
+        long skipped = (newest - nextFrameStart) / hop;
+        nextFrameStart += skipped * hop;
+        return (int) skipped;
+    }
+}
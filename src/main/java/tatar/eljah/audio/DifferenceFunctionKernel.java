@@ -0,0 +1,171 @@
+package tatar.eljah.audio;
+
+// Shared lag-domain kernel for the autocorrelation, YIN and McLeod estimators.
+// For a DC-free frame x[0..N) and an integration window W it provides, for every lag t:
+//   r(t) = sum x[i] * x[i + t]              (cross term, via FFT)
+//   m(t) = sum x[i]^2 + x[i + t]^2          (energy, incrementally from a prefix sum)
+//   d(t) = m(t) - 2 r(t)                    (YIN difference function)
+// where i runs over [0, min(W, N - t)). W == N gives the shrinking window used by
+// autocorrelation and McLeod, W <= N - maxLag gives the fixed window used by YIN.
+// One instance must not be shared between threads.
+final class DifferenceFunctionKernel {
+    static final double MIN_RMS = 250d;
+
+    private double[] centered = new double[0];
+    private double[] prefixEnergy = new double[0];
+    private FftPlan plan;
+    private double[] padded = new double[0];
+    private double[] spectrumReal = new double[0];
+    private double[] spectrumImag = new double[0];
+    private double[] real = new double[0];
+    private double[] imag = new double[0];
+    private double[] cross = new double[0];
+    private int length;
+    private int window;
+    private int maxLag;
+    private double rms;
+
+    // Removes the DC offset and returns the frame RMS; must be called before compute().
+    double load(short[] buffer, int offset, int length) {
+        this.length = length;
+        if (centered.length < length) {
+            centered = new double[length];
+            prefixEnergy = new double[length + 1];
+        }
+        double mean = 0d;
+        for (int i = 0; i < length; i++) {
+            mean += buffer[offset + i];
+        }
+        mean /= length;
+
+        prefixEnergy[0] = 0d;
+        for (int i = 0; i < length; i++) {
+            double value = buffer[offset + i] - mean;
+            centered[i] = value;
+            prefixEnergy[i + 1] = prefixEnergy[i] + value * value;
+        }
+        rms = Math.sqrt(prefixEnergy[length] / length);
+        return rms;
+    }
+
+    void compute(int window, int maxLag) {
+        this.window = Math.min(window, length);
+        this.maxLag = maxLag;
+        int size = 1;
+        while (size < length + maxLag) {
+            size <<= 1;
+        }
+        if (plan == null || plan.size() != size) {
+            plan = new FftPlan(size);
+            padded = new double[size];
+            spectrumReal = new double[size / 2 + 1];
+            spectrumImag = new double[size / 2 + 1];
+        }
+        if (cross.length < maxLag + 1) {
+            cross = new double[maxLag + 1];
+        }
+
+        if (this.window >= length) {
+            // Plain autocorrelation through two real-input transforms: the power spectrum is
+            // real and even, so its forward transform equals size * inverse transform.
+            System.arraycopy(centered, 0, padded, 0, length);
+            for (int i = length; i < size; i++) {
+                padded[i] = 0d;
+            }
+            plan.realTransform(padded, spectrumReal, spectrumImag);
+            int half = size / 2;
+            for (int k = 0; k <= half; k++) {
+                double power = spectrumReal[k] * spectrumReal[k] + spectrumImag[k] * spectrumImag[k];
+                padded[k] = power;
+                if (k > 0 && k < half) {
+                    padded[size - k] = power;
+                }
+            }
+            plan.realTransform(padded, spectrumReal, spectrumImag);
+            for (int lag = 0; lag <= maxLag; lag++) {
+                cross[lag] = spectrumReal[lag] / size;
+            }
+            return;
+        }
+
+        if (real.length != size) {
+            real = new double[size];
+            imag = new double[size];
+        }
+
+        // Fixed window: pack the full frame and its windowed head into one complex transform,
+        // separate the two spectra, and correlate them.
+        for (int i = 0; i < size; i++) {
+            real[i] = i < length ? centered[i] : 0d;
+            imag[i] = i < this.window ? centered[i] : 0d;
+        }
+        plan.transform(real, imag);
+        for (int k = 0; k <= size / 2; k++) {
+            int mirror = (size - k) & (size - 1);
+            double zr = real[k];
+            double zi = imag[k];
+            double mr = real[mirror];
+            double mi = imag[mirror];
+            // X = (Z[k] + conj(Z[-k])) / 2, Xw = (Z[k] - conj(Z[-k])) / 2i
+            double xr = (zr + mr) * 0.5;
+            double xi = (zi - mi) * 0.5;
+            double wr = (zi + mi) * 0.5;
+            double wi = (mr - zr) * 0.5;
+            // conj(Xw) * X, conjugated again so a forward transform acts as the inverse.
+            double pr = wr * xr + wi * xi;
+            double pi = -(wr * xi - wi * xr);
+            real[k] = pr;
+            imag[k] = pi;
+            if (mirror != k) {
+                // Both inputs are real, so the product is Hermitian.
+                real[mirror] = pr;
+                imag[mirror] = -pi;
+            }
+        }
+        plan.transform(real, imag);
+        for (int lag = 0; lag <= maxLag; lag++) {
+            cross[lag] = real[lag] / size;
+        }
+    }
+
+    double rms() {
+        return rms;
+    }
+
+    double autocorrelation(int lag) {
+        return cross[lag];
+    }
+
+    double energy(int lag) {
+        int span = Math.min(window, length - lag);
+        return prefixEnergy[span] + prefixEnergy[lag + span] - prefixEnergy[lag];
+    }
+
+    double difference(int lag) {
+        return Math.max(0d, energy(lag) - 2d * cross[lag]);
+    }
+
+    // Pearson-style normalization of r(t) by the energies of both overlapping parts.
+    double normalizedCorrelation(int lag) {
+        int span = Math.min(window, length - lag);
+        double energyA = prefixEnergy[span];
+        double energyB = prefixEnergy[lag + span] - prefixEnergy[lag];
+        if (energyA <= 0d || energyB <= 0d) {
+            return 0d;
+        }
+        return cross[lag] / Math.sqrt(energyA * energyB);
+    }
+
+    // Valid up to length(); the array may be longer.
+    double[] centeredSamples() {
+        return centered;
+    }
+
+    int length() {
+        return length;
+    }
+
+    int maxLag() {
+        return maxLag;
+    }
+}
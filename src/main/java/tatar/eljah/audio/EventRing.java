@@ -0,0 +1,72 @@
+package tatar.eljah.audio;
+
+// Single-producer / single-consumer bounded queue of small events, each a type and three int
+// arguments, stored in preallocated arrays. Unlike SampleRingBuffer nothing may be lost
+// silently, so a full ring rejects the event and counts it instead of overwriting. The
+// positions are the only shared state, through volatile fields, so no locks are needed.
+public final class EventRing {
+    private final int[] types;
+    private final int[] first;
+    private final int[] second;
+    private final int[] third;
+    private final int mask;
+    private volatile long written;
+    private volatile long read;
+    private volatile int dropped;
+
+    public EventRing(int minCapacity) {
+        int capacity = 1;
+        while (capacity < minCapacity) {
+            capacity <<= 1;
+        }
+        types = new int[capacity];
+        first = new int[capacity];
+        second = new int[capacity];
+        third = new int[capacity];
+        mask = capacity - 1;
+    }
+
+    public int capacity() {
+        return types.length;
+    }
+
+    // Producer side; false if the consumer is a full ring behind.
+    public boolean offer(int type, int a, int b, int c) {
+        long position = written;
+        if (position - read >= types.length) {
+            dropped++;
+            return false;
+        }
+        int slot = (int) (position & mask);
+        types[slot] = type;
+        first[slot] = a;
+        second[slot] = b;
+        third[slot] = c;
+        written = position + 1;
+        return true;
+    }
+
+    // Consumer side: copies the oldest event into target as {type, a, b, c}; false if empty.
+    public boolean poll(int[] target) {
+        long position = read;
+        if (position >= written) {
+            return false;
+        }
+        int slot = (int) (position & mask);
+        target[0] = types[slot];
+        target[1] = first[slot];
+        target[2] = second[slot];
+        target[3] = third[slot];
+        read = position + 1;
+        return true;
+    }
+
+    public int size() {
+        return (int) (written - read);
+    }
+
+    // Events rejected because the ring was full.
+    public int dropped() {
+        return dropped;
+    }
+}
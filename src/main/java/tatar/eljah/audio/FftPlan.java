@@ -0,0 +1,154 @@
+package tatar.eljah.audio;
+
+// Radix-2 FFT for one fixed power-of-two size. Bit-reversal permutations, twiddle factors
+// and the Hann window are computed once in the constructor, so a transform performs no
+// trigonometry and no allocation. Holds scratch buffers: use one instance per thread.
+final class FftPlan {
+    private final int size;
+    private final int[] bitReversed;
+    private final int[] halfBitReversed;
+    private final double[] cos;
+    private final double[] sin;
+    private final double[] hannWindow;
+    private final double[] windowed;
+    private final double[] spectrumReal;
+    private final double[] spectrumImag;
+
+    FftPlan(int size) {
+        if (size < 2 || (size & (size - 1)) != 0) {
+            throw new IllegalArgumentException("FFT size must be a power of two: " + size);
+        }
+        this.size = size;
+        int half = size / 2;
+        bitReversed = bitReversalTable(size);
+        halfBitReversed = bitReversalTable(half);
+        cos = new double[half];
+        sin = new double[half];
+        for (int k = 0; k < half; k++) {
+            double angle = 2.0 * Math.PI * k / size;
+            cos[k] = Math.cos(angle);
+            sin[k] = Math.sin(angle);
+        }
+        hannWindow = new double[size];
+        for (int i = 0; i < size; i++) {
+            hannWindow[i] = 0.5 - 0.5 * Math.cos(2.0 * Math.PI * i / (size - 1));
+        }
+        windowed = new double[size];
+        spectrumReal = new double[half + 1];
+        spectrumImag = new double[half + 1];
+    }
+
+    int size() {
+        return size;
+    }
+
+    // In-place complex forward transform of real[0..size) + i * imag[0..size).
+    void transform(double[] real, double[] imag) {
+        transform(real, imag, size, bitReversed);
+    }
+
+    // Forward transform of a real sequence input[0..size) using one half-size complex FFT.
+    // Writes bins 0..size/2 into real/imag, which need size/2 + 1 elements; input is not modified.
+    void realTransform(double[] input, double[] real, double[] imag) {
+        int half = size / 2;
+        for (int k = 0; k < half; k++) {
+            real[k] = input[2 * k];
+            imag[k] = input[2 * k + 1];
+        }
+        transform(real, imag, half, halfBitReversed);
+
+        // Split the packed spectrum Z into the even (E) and odd (O) sample spectra and combine:
+        // X[k] = E[k] + W^k O[k], X[half - k] = conj(E[k] - W^k O[k]).
+        double z0r = real[0];
+        double z0i = imag[0];
+        for (int k = 1; k <= half / 2; k++) {
+            int mirror = half - k;
+            double ar = real[k];
+            double ai = imag[k];
+            double br = real[mirror];
+            double bi = -imag[mirror];
+            double er = (ar + br) * 0.5;
+            double ei = (ai + bi) * 0.5;
+            double or = (ai - bi) * 0.5;
+            double oi = (br - ar) * 0.5;
+            double wr = cos[k];
+            double wi = -sin[k];
+            double tr = wr * or - wi * oi;
+            double ti = wr * oi + wi * or;
+            real[k] = er + tr;
+            imag[k] = ei + ti;
+            real[mirror] = er - tr;
+            imag[mirror] = ti - ei;
+        }
+        real[0] = z0r + z0i;
+        imag[0] = 0d;
+        real[half] = z0r - z0i;
+        imag[half] = 0d;
+    }
+
+    // Hann window table of length size(); callers must not modify it.
+    double[] window() {
+        return hannWindow;
+    }
+
+    // Hann-windowed magnitude spectrum of buffer[offset..offset + size) into out[0..size/2).
+    void magnitudeSpectrum(short[] buffer, int offset, float[] out) {
+        for (int i = 0; i < size; i++) {
+            windowed[i] = buffer[offset + i] * hannWindow[i];
+        }
+        magnitudeSpectrum(windowed, out);
+    }
+
+    // Magnitude spectrum of samples the caller already multiplied by window().
+    void magnitudeSpectrum(double[] windowedInput, float[] out) {
+        realTransform(windowedInput, spectrumReal, spectrumImag);
+        int bins = size / 2;
+        for (int i = 0; i < bins; i++) {
+            double re = spectrumReal[i];
+            double im = spectrumImag[i];
+            out[i] = (float) Math.sqrt(re * re + im * im);
+        }
+    }
+
+    private void transform(double[] real, double[] imag, int n, int[] permutation) {
+        for (int i = 0; i < n; i++) {
+            int j = permutation[i];
+            if (j > i) {
+                double tmpReal = real[i];
+                double tmpImag = imag[i];
+                real[i] = real[j];
+                imag[i] = imag[j];
+                real[j] = tmpReal;
+                imag[j] = tmpImag;
+            }
+        }
+        for (int blockSize = 2; blockSize <= n; blockSize <<= 1) {
+            int halfSize = blockSize / 2;
+            // Twiddles are tabulated for the plan size; smaller transforms stride through them.
+            int stride = size / blockSize;
+            for (int i = 0; i < n; i += blockSize) {
+                for (int j = 0, t = 0; j < halfSize; j++, t += stride) {
+                    double c = cos[t];
+                    double s = -sin[t];
+                    int evenIndex = i + j;
+                    int oddIndex = evenIndex + halfSize;
+                    double tre = c * real[oddIndex] - s * imag[oddIndex];
+                    double tim = s * real[oddIndex] + c * imag[oddIndex];
+                    real[oddIndex] = real[evenIndex] - tre;
+                    imag[oddIndex] = imag[evenIndex] - tim;
+                    real[evenIndex] += tre;
+                    imag[evenIndex] += tim;
+                }
+            }
+        }
+    }
+
+    private static int[] bitReversalTable(int n) {
+        int bits = Integer.numberOfTrailingZeros(n);
+        int[] table = new int[n];
+        for (int i = 0; i < n; i++) {
+            table[i] = bits == 0 ? 0 : Integer.reverse(i) >>> (32 - bits);
+        }
+        return table;
+    }
+}
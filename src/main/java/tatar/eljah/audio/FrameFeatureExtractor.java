@@ -0,0 +1,94 @@
+package tatar.eljah.audio;
+
+import java.util.Arrays;
+
+// Fills one reusable FrameFeatures per frame. Level statistics and the windowed FFT input are
+// gathered in the same pass over the samples, so the spectrum no longer rescans the frame.
+// Holds scratch buffers: one instance per analysis thread.
+final class FrameFeatureExtractor {
+    private static final int MAX_SPECTRUM_SIZE = 2048;
+    private static final float FULL_SCALE = 32768f;
+
+    private final FrameFeatures features = new FrameFeatures();
+    private FftPlan plan;
+    private double[] windowed;
+    private float[] magnitudes;
+
+    FrameFeatures extract(short[] samples,
+                          int offset,
+                          int length,
+                          long position,
+                          int sampleRate,
+                          PitchEstimator estimator,
+                          boolean withSpectrum) {
+        int spectrumSize = withSpectrum ? spectrumSize(length) : 0;
+        double[] window = spectrumSize > 0 ? plan.window() : null;
+
+        long sum = 0L;
+        long sumSquares = 0L;
+        int peak = 0;
+        int i = 0;
+        for (; i < spectrumSize; i++) {
+            int value = samples[offset + i];
+            sum += value;
+            sumSquares += value * value;
+            peak = Math.max(peak, Math.abs(value));
+            windowed[i] = value * window[i];
+        }
+        for (; i < length; i++) {
+            int value = samples[offset + i];
+            sum += value;
+            sumSquares += value * value;
+            peak = Math.max(peak, Math.abs(value));
+        }
+
+        features.setFrame(position, length, sampleRate);
+        if (length > 0) {
+            features.setLevels((float) (Math.sqrt((double) sumSquares / length) / FULL_SCALE),
+                    (float) ((double) sum / length / FULL_SCALE),
+                    peak / FULL_SCALE);
+        } else {
+            features.setLevels(0f, 0f, 0f);
+        }
+
+        if (withSpectrum) {
+            if (spectrumSize > 0) {
+                plan.magnitudeSpectrum(windowed, magnitudes);
+            } else {
+                Arrays.fill(magnitudes, 0f);
+            }
+            features.setSpectrum(magnitudes);
+        } else {
+            features.setSpectrum(null);
+        }
+
+        float pitch = estimator.estimatePitch(samples, offset, length, sampleRate);
+        features.setPitch(pitch, pitch > 0f ? estimator.lastConfidence() : 0f);
+        return features;
+    }
+
+    // Number of magnitudes in the spectrum of a frame of the given length.
+    static int spectrumBins(int length) {
+        return fftSize(length) / 2;
+    }
+
+    // Largest power of two that fits the frame, capped.
+    private static int fftSize(int length) {
+        int size = 2;
+        while (size * 2 <= length && size < MAX_SPECTRUM_SIZE) {
+            size *= 2;
+        }
+        return size;
+    }
+
+    // FFT size for the frame, or 0 when the frame is shorter than that.
+    private int spectrumSize(int length) {
+        int size = fftSize(length);
+        if (plan == null || plan.size() != size) {
+            plan = new FftPlan(size);
+            windowed = new double[size];
+            magnitudes = new float[size / 2];
+        }
+        return length < size ? 0 : size;
+    }
+}
@@ -0,0 +1,78 @@
+package tatar.eljah.audio;
+
+// Everything PitchAnalyzer derives from one analysis frame, filled in a single pass over the
+// samples. One instance is reused for every frame of a capture or analyzePcm run: read it
+// inside PitchAnalyzer.FrameListener.onFrame() and copy what must outlive the callback.
+// Levels are relative to 16-bit full scale, so rms and peak are in [0, 1].
+public final class FrameFeatures {
+    private long position;
+    private int length;
+    private int sampleRate;
+    private float rms;
+    private float dcOffset;
+    private float peak;
+    private float pitchHz;
+    private float pitchConfidence;
+    private float[] spectrum;
+
+    // Index of the first sample of the frame in the analyzed stream.
+    public long position() {
+        return position;
+    }
+
+    public int length() {
+        return length;
+    }
+
+    public int sampleRate() {
+        return sampleRate;
+    }
+
+    // Includes the DC offset, like a meter reading of the raw input.
+    public float rms() {
+        return rms;
+    }
+
+    public float dcOffset() {
+        return dcOffset;
+    }
+
+    public float peak() {
+        return peak;
+    }
+
+    // 0 when the frame is silent or unpitched.
+    public float pitchHz() {
+        return pitchHz;
+    }
+
+    public float pitchConfidence() {
+        return pitchConfidence;
+    }
+
+    // Hann-windowed magnitudes, or null when the spectrum was not requested.
+    public float[] spectrum() {
+        return spectrum;
+    }
+
+    void setFrame(long position, int length, int sampleRate) {
+        this.position = position;
+        this.length = length;
+        this.sampleRate = sampleRate;
+    }
+
+    void setLevels(float rms, float dcOffset, float peak) {
+        this.rms = rms;
+        this.dcOffset = dcOffset;
+        this.peak = peak;
+    }
+
+    void setPitch(float pitchHz, float pitchConfidence) {
+        this.pitchHz = pitchHz;
+        this.pitchConfidence = pitchConfidence;
+    }
+
+    void setSpectrum(float[] spectrum) {
+        this.spectrum = spectrum;
+    }
+}
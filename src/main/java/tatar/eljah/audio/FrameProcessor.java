@@ -0,0 +1,50 @@
+package tatar.eljah.audio;
+
+// Runs one analysis frame through the feature extractor and fans the result out to the
+// listeners. Shared by realtime capture and analyzePcm; one instance per analysis thread.
+final class FrameProcessor {
+    private final PitchEstimator estimator;
+    private final int sampleRate;
+    private final PitchAnalyzer.PitchListener pitchListener;
+    private final PitchAnalyzer.SpectrumListener spectrumListener;
+    private final PitchAnalyzer.FrameListener frameListener;
+    private final boolean withSpectrum;
+    private final FrameFeatureExtractor extractor = new FrameFeatureExtractor();
+    private OnsetDetector onsetDetector;
+
+    FrameProcessor(PitchEstimator estimator,
+                   int sampleRate,
+                   PitchAnalyzer.PitchListener pitchListener,
+                   PitchAnalyzer.SpectrumListener spectrumListener,
+                   PitchAnalyzer.FrameListener frameListener,
+                   boolean frameSpectrum) {
+        this.estimator = estimator;
+        this.sampleRate = sampleRate;
+        this.pitchListener = pitchListener;
+        this.spectrumListener = spectrumListener;
+        this.frameListener = frameListener;
+        this.withSpectrum = spectrumListener != null || (frameListener != null && frameSpectrum);
+    }
+
+    // Onsets need the spectrum, so frames carry one whenever a detector is attached.
+    void setOnsetDetector(OnsetDetector detector) {
+        onsetDetector = detector;
+    }
+
+    void process(short[] samples, int offset, int length, long position) {
+        FrameFeatures features = extractor.extract(samples, offset, length, position, sampleRate,
+                estimator, withSpectrum || onsetDetector != null);
+        if (onsetDetector != null) {
+            onsetDetector.process(features.spectrum(), samples, offset, length, position);
+        }
+        if (features.pitchHz() > 0f && pitchListener != null) {
+            pitchListener.onPitch(features.pitchHz());
+        }
+        if (spectrumListener != null) {
+            spectrumListener.onSpectrum(features.spectrum(), sampleRate);
+        }
+        if (frameListener != null) {
+            frameListener.onFrame(features);
+        }
+    }
+}
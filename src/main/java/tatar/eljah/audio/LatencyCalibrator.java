@@ -0,0 +1,127 @@
+package tatar.eljah.audio;
+
+import java.util.Arrays;
+
+// Measures the round trip from handing samples to the output to capturing them again: a click
+// track is played while PitchAnalyzer listens, and every detected onset is compared with the
+// time its click was due. Both sides are put on the System.nanoTime base: the playback thread
+// reports when frame 0 was started, the capture thread reports how many samples it had received
+// by when. The result is the median over the clicks, so a missed click or a stray noise does
+// not move it. Thread-safe.
+public final class LatencyCalibrator {
+    public static final int DEFAULT_CLICKS = 8;
+    // Longer than any plausible latency, so every onset belongs to the click just before it.
+    public static final int CLICK_INTERVAL_MS = 500;
+    private static final int LEAD_IN_MS = 300;
+    private static final int CLICK_MS = 6;
+    private static final float CLICK_HZ = 1760f;
+    private static final float CLICK_AMPLITUDE = 24000f;
+    private static final long NANOS_PER_SECOND = 1000000000L;
+    private static final long NONE = Long.MIN_VALUE;
+
+    private final int sampleRate;
+    private final int clicks;
+    // Per click, in nanoseconds; NONE until its onset was heard.
+    private final long[] latencies;
+    private int detected;
+    private long playbackStartNanos = NONE;
+    private long captureAnchorSample;
+    private long captureAnchorNanos = NONE;
+
+    public LatencyCalibrator(int sampleRate) {
+        this(sampleRate, DEFAULT_CLICKS);
+    }
+
+    public LatencyCalibrator(int sampleRate, int clicks) {
+        this.sampleRate = sampleRate;
+        this.clicks = clicks;
+        latencies = new long[clicks];
+        Arrays.fill(latencies, NONE);
+    }
+
+    // Silence, then one short tone burst every CLICK_INTERVAL_MS, then a last interval of
+    // silence for the echo of the final click to come back.
+    public short[] clickTrack() {
+        int length = clickPosition(clicks - 1) + intervalSamples();
+        short[] track = new short[length];
+        int clickLength = sampleRate * CLICK_MS / 1000;
+        for (int click = 0; click < clicks; click++) {
+            int start = clickPosition(click);
+            for (int i = 0; i < clickLength; i++) {
+                // Hann envelope, so the burst has a sharp but not clipped attack.
+                double envelope = 0.5d - 0.5d * Math.cos(2d * Math.PI * i / clickLength);
+                double tone = Math.sin(2d * Math.PI * CLICK_HZ * i / sampleRate);
+                track[start + i] = (short) (CLICK_AMPLITUDE * envelope * tone);
+            }
+        }
+        return track;
+    }
+
+    // First sample of the click in the click track.
+    public int clickPosition(int click) {
+        return sampleRate * LEAD_IN_MS / 1000 + click * intervalSamples();
+    }
+
+    public int clickCount() {
+        return clicks;
+    }
+
+    // Frame 0 of the click track was handed to the output at nanoTime.
+    public synchronized void playbackStarted(long nanoTime) {
+        playbackStartNanos = nanoTime;
+    }
+
+    // The capture had delivered samplesCaptured samples by nanoTime; called for every block.
+    public synchronized void captured(long samplesCaptured, long nanoTime) {
+        captureAnchorSample = samplesCaptured;
+        captureAnchorNanos = nanoTime;
+    }
+
+    // An onset at samplePosition of the capture stream, as reported by PitchAnalyzer.
+    public synchronized void onOnset(long samplePosition) {
+        if (playbackStartNanos == NONE || captureAnchorNanos == NONE) {
+            return;
+        }
+        long onsetNanos = captureAnchorNanos
+                - (captureAnchorSample - samplePosition) * NANOS_PER_SECOND / sampleRate;
+        long sinceFirstClick = onsetNanos - clickNanos(0);
+        if (sinceFirstClick < 0L) {
+            return;
+        }
+        long click = sinceFirstClick * sampleRate / NANOS_PER_SECOND / intervalSamples();
+        // One onset per click: the first one is the attack, later ones are echoes.
+        if (click >= clicks || latencies[(int) click] != NONE) {
+            return;
+        }
+        latencies[(int) click] = onsetNanos - clickNanos((int) click);
+        detected++;
+    }
+
+    public synchronized int detectedClicks() {
+        return detected;
+    }
+
+    // Median round trip in milliseconds, or -1 while fewer than half of the clicks were heard.
+    public synchronized int latencyMs() {
+        if (detected * 2 < clicks) {
+            return -1;
+        }
+        long[] sorted = new long[detected];
+        int count = 0;
+        for (long latency : latencies) {
+            if (latency != NONE) {
+                sorted[count++] = latency;
+            }
+        }
+        Arrays.sort(sorted);
+        return (int) (sorted[detected / 2] / 1000000L);
+    }
+
+    private int intervalSamples() {
+        return sampleRate * CLICK_INTERVAL_MS / 1000;
+    }
+
+    private long clickNanos(int click) {
+        return playbackStartNanos + clickPosition(click) * NANOS_PER_SECOND / sampleRate;
+    }
+}
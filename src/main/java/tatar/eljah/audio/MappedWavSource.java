@@ -0,0 +1,165 @@
+package tatar.eljah.audio;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+
+// 16-bit PCM WAV file read through memory mappings of its data chunk. Samples are paged in by
+// the OS on demand and never copied to the heap as a whole, so the size of the recording does
+// not affect heap usage. Stereo files are mixed down to mono on read.
+public final class MappedWavSource implements PcmSource {
+    // Samples per mapping; a WAV data chunk can exceed what one MappedByteBuffer addresses.
+    private static final int SEGMENT_SAMPLES = 1 << 26;
+
+    private final RandomAccessFile file;
+    private final int sampleRate;
+    private final int channels;
+    private final long length;
+    private final ShortBuffer[] segments;
+
+    private MappedWavSource(RandomAccessFile file, int sampleRate, int channels, long length, ShortBuffer[] segments) {
+        this.file = file;
+        this.sampleRate = sampleRate;
+        this.channels = channels;
+        this.length = length;
+        this.segments = segments;
+    }
+
+    public static MappedWavSource open(File wav) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(wav, "r");
+        try {
+            return map(file);
+        } catch (IOException e) {
+            file.close();
+            throw e;
+        }
+    }
+
+    private static MappedWavSource map(RandomAccessFile file) throws IOException {
+        FileChannel channel = file.getChannel();
+        ByteBuffer header = ByteBuffer.allocate(12).order(ByteOrder.LITTLE_ENDIAN);
+        readFully(channel, header, 0L);
+        if (header.getInt(0) != fourCc("RIFF") || header.getInt(8) != fourCc("WAVE")) {
+            throw new IOException("Not a RIFF/WAVE file");
+        }
+
+        int channels = 0;
+        int sampleRate = 0;
+        long dataOffset = -1L;
+        long dataSize = 0L;
+        long position = 12L;
+        ByteBuffer chunk = ByteBuffer.allocate(16).order(ByteOrder.LITTLE_ENDIAN);
+        while (position + 8L <= channel.size()) {
+            chunk.clear();
+            chunk.limit(8);
+            readFully(channel, chunk, position);
+            int id = chunk.getInt(0);
+            long size = chunk.getInt(4) & 0xFFFFFFFFL;
+            long body = position + 8L;
+            if (id == fourCc("fmt ")) {
+                chunk.clear();
+                readFully(channel, chunk, body);
+                int format = chunk.getShort(0) & 0xFFFF;
+                channels = chunk.getShort(2) & 0xFFFF;
+                sampleRate = chunk.getInt(4);
+                int bitsPerSample = chunk.getShort(14) & 0xFFFF;
+                // 0xFFFE is WAVE_FORMAT_EXTENSIBLE, which recorders use for plain PCM as well.
+                if ((format != 1 && format != 0xFFFE) || bitsPerSample != 16 || channels < 1 || channels > 2) {
+                    throw new IOException("Only 16-bit mono or stereo PCM is supported");
+                }
+            } else if (id == fourCc("data")) {
+                dataOffset = body;
+                dataSize = Math.min(size, channel.size() - body);
+                break;
+            }
+            // Chunks are word-aligned.
+            position = body + size + (size & 1L);
+        }
+        if (channels == 0 || dataOffset < 0L) {
+            throw new IOException("WAV file has no fmt or data chunk");
+        }
+
+        long totalValues = dataSize / 2L;
+        long length = totalValues / channels;
+        int segmentValues = SEGMENT_SAMPLES * channels;
+        int count = (int) ((totalValues + segmentValues - 1) / segmentValues);
+        ShortBuffer[] segments = new ShortBuffer[count];
+        for (int i = 0; i < count; i++) {
+            long start = (long) i * segmentValues;
+            long values = Math.min(segmentValues, totalValues - start);
+            MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, dataOffset + start * 2L, values * 2L);
+            mapped.order(ByteOrder.LITTLE_ENDIAN);
+            segments[i] = mapped.asShortBuffer();
+        }
+        return new MappedWavSource(file, sampleRate, channels, length, segments);
+    }
+
+    @Override
+    public int sampleRate() {
+        return sampleRate;
+    }
+
+    @Override
+    public long length() {
+        return length;
+    }
+
+    public int channels() {
+        return channels;
+    }
+
+    // Uses absolute gets only, so concurrent readers do not disturb each other.
+    @Override
+    public int read(long position, short[] target, int offset, int count) {
+        if (position < 0L || position >= length || count <= 0) {
+            return 0;
+        }
+        int copied = (int) Math.min(count, length - position);
+        int done = 0;
+        while (done < copied) {
+            long sample = position + done;
+            ShortBuffer segment = segments[(int) (sample / SEGMENT_SAMPLES)];
+            int first = (int) (sample % SEGMENT_SAMPLES);
+            int run = Math.min(copied - done, SEGMENT_SAMPLES - first);
+            int out = offset + done;
+            if (channels == 1) {
+                for (int i = 0; i < run; i++) {
+                    target[out + i] = segment.get(first + i);
+                }
+            } else {
+                for (int i = 0, index = first * 2; i < run; i++, index += 2) {
+                    target[out + i] = (short) ((segment.get(index) + segment.get(index + 1)) >> 1);
+                }
+            }
+            done += run;
+        }
+        return copied;
+    }
+
+    // Releases the file; the mappings themselves are unmapped when they are garbage collected.
+    @Override
+    public void close() throws IOException {
+        file.close();
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer target, long position) throws IOException {
+        while (target.hasRemaining()) {
+            int read = channel.read(target, position + target.position());
+            if (read < 0) {
+                throw new IOException("Unexpected end of WAV header");
+            }
+        }
+    }
+
+    private static int fourCc(String id) {
+        return (id.charAt(0) & 0xFF)
+                | (id.charAt(1) & 0xFF) << 8
+                | (id.charAt(2) & 0xFF) << 16
+                | (id.charAt(3) & 0xFF) << 24;
+    }
+}
@@ -0,0 +1,134 @@
+package tatar.eljah.audio;
+
+// McLeod Pitch Method: normalized square difference function n(t) = 2 r(t) / m(t).
+// Takes the first key maximum that reaches a fraction of the highest one, which keeps
+// it on the fundamental when the 2nd harmonic is strong.
+public class McLeodPitchEstimator implements PitchEstimator {
+    public static final float DEFAULT_CUTOFF = 0.93f;
+    private static final int FRAME_SIZE = 1024;
+    private static final double MIN_CLARITY = 0.5d;
+
+    private final float cutoff;
+    private final DifferenceFunctionKernel kernel = new DifferenceFunctionKernel();
+    private double[] nsdf = new double[0];
+    private float confidence;
+
+    public McLeodPitchEstimator() {
+        this(DEFAULT_CUTOFF);
+    }
+
+    public McLeodPitchEstimator(float cutoff) {
+        this.cutoff = cutoff > 0f && cutoff <= 1f ? cutoff : DEFAULT_CUTOFF;
+    }
+
+    @Override
+    public int preferredFrameSize(int sampleRate) {
+        return FRAME_SIZE;
+    }
+
+    @Override
+    public float lastConfidence() {
+        return confidence;
+    }
+
+    @Override
+    public float estimatePitch(short[] buffer, int offset, int length, int sampleRate) {
+        confidence = 0f;
+        if (buffer == null || length < 64 || sampleRate <= 0) {
+            return 0f;
+        }
+        if (kernel.load(buffer, offset, length) < DifferenceFunctionKernel.MIN_RMS) {
+            return 0f;
+        }
+
+        int minLag = Math.max(2, sampleRate / 2600);
+        int maxLag = Math.min(length / 2, sampleRate / 120);
+        if (maxLag <= minLag + 1) {
+            return 0f;
+        }
+        kernel.compute(length, maxLag);
+
+        if (nsdf.length < maxLag + 1) {
+            nsdf = new double[maxLag + 1];
+        }
+        for (int lag = 0; lag <= maxLag; lag++) {
+            double energy = kernel.energy(lag);
+            nsdf[lag] = energy > 0d ? 2d * kernel.autocorrelation(lag) / energy : 0d;
+        }
+
+        // Key maxima: the highest point of every positive lobe after the zero-lag lobe.
+        int lag = 1;
+        while (lag < maxLag && nsdf[lag] > 0d) {
+            lag++;
+        }
+        // Compare interpolated peak heights: at high notes the period spans only a dozen
+        // samples and the integer-lag value under-reports the true first peak.
+        double highest = 0d;
+        for (int i = Math.max(lag, 1); i < maxLag; i++) {
+            if (nsdf[i] > nsdf[i - 1] && nsdf[i] >= nsdf[i + 1]) {
+                highest = Math.max(highest, interpolatedPeak(i));
+            }
+        }
+        if (highest < MIN_CLARITY) {
+            return 0f;
+        }
+
+        double limit = highest * cutoff;
+        int bestLag = -1;
+        while (lag < maxLag && bestLag < 0) {
+            while (lag < maxLag && nsdf[lag] <= 0d) {
+                lag++;
+            }
+            int peak = lag;
+            while (lag < maxLag && nsdf[lag] > 0d) {
+                if (nsdf[lag] > nsdf[peak]) {
+                    peak = lag;
+                }
+                lag++;
+            }
+            if (peak >= minLag && peak < maxLag && interpolatedPeak(peak) >= limit) {
+                bestLag = peak;
+            }
+        }
+        if (bestLag <= 0) {
+            return 0f;
+        }
+
+        float frequency = (float) (sampleRate / refineLag(bestLag, maxLag));
+        if (frequency < 120f || frequency > 2600f) {
+            return 0f;
+        }
+        confidence = (float) Math.max(0d, Math.min(1d, interpolatedPeak(bestLag)));
+        return frequency;
+    }
+
+    private double interpolatedPeak(int lag) {
+        double left = nsdf[lag - 1];
+        double center = nsdf[lag];
+        double right = nsdf[lag + 1];
+        double denominator = left - 2d * center + right;
+        if (denominator >= 0d) {
+            return center;
+        }
+        double shift = 0.5d * (left - right) / denominator;
+        return center - 0.25d * (left - right) * shift;
+    }
+
+    private double refineLag(int lag, int maxLag) {
+        if (lag <= 0 || lag >= maxLag) {
+            return lag;
+        }
+        double left = nsdf[lag - 1];
+        double center = nsdf[lag];
+        double right = nsdf[lag + 1];
+        double denominator = left - 2d * center + right;
+        if (denominator == 0d) {
+            return lag;
+        }
+        double shift = 0.5d * (left - right) / denominator;
+        if (shift < -1d || shift > 1d) {
+            return lag;
+        }
+        return lag + shift;
+    }
+}
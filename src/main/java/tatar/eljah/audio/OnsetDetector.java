@@ -0,0 +1,210 @@
+package tatar.eljah.audio;
+
+// Note onsets from spectral flux: the summed increase of log-compressed magnitudes between
+// consecutive frames. A frame is an onset when its flux is the local maximum of a short
+// neighbourhood, exceeds the local mean by THRESHOLD_DELTA, and exceeds a decaying envelope
+// of earlier flux (Dixon, "Onset Detection Revisited", 2006). The neighbourhood reaches
+// PEAK_POST_FRAMES into the future, which is where the reported latency comes from.
+//
+// The flux only tells which window the note entered. Where in the window is taken from the
+// short-time energy of the samples: the note starts where the energy rises most steeply,
+// after the dip before it (a tongued note, or an attack from silence). Slurred pitch changes
+// have no such rise; for them a fixed position in the window is assumed.
+final class OnsetDetector {
+    private static final int PEAK_PRE_FRAMES = 3;
+    private static final int PEAK_POST_FRAMES = 1;
+    private static final int MEAN_PRE_FRAMES = 8;
+    private static final double THRESHOLD_DELTA = 0.02d;
+    private static final double ENVELOPE_DECAY = 0.85d;
+    private static final double COMPRESSION = 1000d;
+    // Samples per energy block, about 3 ms at 22050 Hz.
+    private static final int ENERGY_BLOCK = 64;
+    // Energy ratio between consecutive blocks that counts as the start of a note (6 dB).
+    private static final double MIN_ENERGY_RISE = 4d;
+    // Blocks quieter than this fraction of the loudest one in the window count as equally silent.
+    private static final double ENERGY_FLOOR = 1e-4d;
+    // Fallback without an energy rise: where in the frame a new note sits when its flux peaks.
+    // A heuristic fitted to synthesized notes, not measured on real playing.
+    private static final double ONSET_FRAME_FRACTION = 0.7d;
+
+    private final int frameSize;
+    private final int hop;
+    private final PitchAnalyzer.OnsetListener listener;
+    private final float[] flux = new float[MEAN_PRE_FRAMES + PEAK_POST_FRAMES + 1];
+    private final long[] positions = new long[flux.length];
+    private float[] previous = new float[0];
+    private boolean hasPrevious;
+    private long frames;
+    private long lastPosition;
+    private double envelope;
+    // Energy of block b is at blockEnergy[b % length], for the samples [energyStart, energyEnd).
+    private final double[] blockEnergy;
+    private long energyStart;
+    private long energyEnd;
+
+    OnsetDetector(int frameSize, int hop, PitchAnalyzer.OnsetListener listener) {
+        this.frameSize = frameSize;
+        this.hop = hop;
+        this.listener = listener;
+        // The candidate window and the frames after it, plus the block before it.
+        blockEnergy = new double[(frameSize + PEAK_POST_FRAMES * hop) / ENERGY_BLOCK + 3];
+    }
+
+    void reset() {
+        hasPrevious = false;
+        frames = 0L;
+        envelope = 0d;
+        energyEnd = 0L;
+    }
+
+    // magnitudes is the spectrum of the frame samples[offset, offset + length), whose first
+    // sample is at position in the stream.
+    void process(float[] magnitudes, short[] samples, int offset, int length, long position) {
+        if (hasPrevious && position != lastPosition + hop) {
+            // Realtime capture skipped frames to catch up; flux across the gap is meaningless.
+            reset();
+        }
+        lastPosition = position;
+        accumulateEnergy(samples, offset, length, position);
+
+        int bins = magnitudes.length;
+        if (previous.length != bins) {
+            previous = new float[bins];
+            hasPrevious = false;
+        }
+        // Hann-windowed full-scale sine peaks at about 32768 * fftSize / 4 = bins * 16384.
+        double scale = COMPRESSION / (bins * 16384d);
+        double sum = 0d;
+        for (int k = 0; k < bins; k++) {
+            float level = (float) Math.log1p(magnitudes[k] * scale);
+            if (hasPrevious && level > previous[k]) {
+                sum += level - previous[k];
+            }
+            previous[k] = level;
+        }
+        if (!hasPrevious) {
+            hasPrevious = true;
+            return;
+        }
+
+        int slot = (int) (frames % flux.length);
+        flux[slot] = (float) (sum / bins);
+        positions[slot] = position;
+        frames++;
+        if (frames > PEAK_POST_FRAMES) {
+            pick(frames - 1 - PEAK_POST_FRAMES);
+        }
+    }
+
+    private void pick(long candidate) {
+        float value = flux(candidate);
+        boolean peak = true;
+        long from = Math.max(0L, candidate - PEAK_PRE_FRAMES);
+        for (long n = from; n <= candidate + PEAK_POST_FRAMES && peak; n++) {
+            if (n != candidate && flux(n) > value) {
+                peak = false;
+            }
+        }
+        double mean = 0d;
+        long meanFrom = Math.max(0L, candidate - MEAN_PRE_FRAMES);
+        for (long n = meanFrom; n <= candidate + PEAK_POST_FRAMES; n++) {
+            mean += flux(n);
+        }
+        mean /= candidate + PEAK_POST_FRAMES - meanFrom + 1;
+
+        boolean onset = peak && value >= mean + THRESHOLD_DELTA && value >= envelope;
+        envelope = Math.max(value, ENVELOPE_DECAY * envelope + (1d - ENVELOPE_DECAY) * value);
+        if (onset && listener != null) {
+            long framePosition = positions[(int) (candidate % flux.length)];
+            long onsetPosition = energyRise(framePosition);
+            if (onsetPosition < 0L) {
+                onsetPosition = framePosition
+                        + Math.round(ONSET_FRAME_FRACTION * frameSize + peakOffset(candidate) * hop);
+            }
+            // The frame that confirmed the peak ends at energyEnd.
+            listener.onOnset(onsetPosition, value, (int) (energyEnd - onsetPosition));
+        }
+    }
+
+    private void accumulateEnergy(short[] samples, int offset, int length, long position) {
+        long end = position + length;
+        long n = energyEnd;
+        if (n < position || n == 0L) {
+            // First frame, or frames were skipped.
+            n = position;
+            energyStart = position;
+            blockEnergy[energySlot(n / ENERGY_BLOCK)] = 0d;
+        }
+        while (n < end) {
+            long block = n / ENERGY_BLOCK;
+            int slot = energySlot(block);
+            if (n % ENERGY_BLOCK == 0L) {
+                blockEnergy[slot] = 0d;
+            }
+            long blockEnd = Math.min(end, (block + 1) * ENERGY_BLOCK);
+            double sum = blockEnergy[slot];
+            for (; n < blockEnd; n++) {
+                double sample = samples[offset + (int) (n - position)];
+                sum += sample * sample;
+            }
+            blockEnergy[slot] = sum;
+        }
+        energyEnd = end;
+    }
+
+    // Start of the note that entered the window starting at framePosition: the end of the
+    // quietest block before the steepest rise in block energy. -1 if the energy does not rise
+    // by MIN_ENERGY_RISE anywhere in the window.
+    private long energyRise(long framePosition) {
+        long from = Math.max((framePosition + ENERGY_BLOCK - 1) / ENERGY_BLOCK,
+                (energyStart + ENERGY_BLOCK - 1) / ENERGY_BLOCK + 1);
+        long to = (framePosition + frameSize) / ENERGY_BLOCK;
+        double loudest = 0d;
+        for (long block = from - 1; block < to; block++) {
+            loudest = Math.max(loudest, blockEnergy[energySlot(block)]);
+        }
+        // Digital silence still counts as about one unit of noise per sample.
+        double floor = Math.max(ENERGY_FLOOR * loudest, ENERGY_BLOCK);
+        long steepest = -1L;
+        double steepestRise = MIN_ENERGY_RISE;
+        for (long block = from; block < to; block++) {
+            double rise = (blockEnergy[energySlot(block)] + floor) / (blockEnergy[energySlot(block - 1)] + floor);
+            if (rise >= steepestRise) {
+                steepestRise = rise;
+                steepest = block;
+            }
+        }
+        if (steepest < 0L) {
+            return -1L;
+        }
+        long quietest = steepest - 1;
+        while (quietest > from - 1
+                && blockEnergy[energySlot(quietest - 1)] < blockEnergy[energySlot(quietest)]) {
+            quietest--;
+        }
+        return (quietest + 1) * ENERGY_BLOCK;
+    }
+
+    private int energySlot(long block) {
+        return (int) (block % blockEnergy.length);
+    }
+
+    // Parabolic interpolation of the flux peak, in frames relative to the candidate.
+    private double peakOffset(long candidate) {
+        if (candidate == 0L) {
+            return 0d;
+        }
+        double left = flux(candidate - 1);
+        double center = flux(candidate);
+        double right = flux(candidate + 1);
+        double denominator = left - 2d * center + right;
+        if (denominator >= 0d) {
+            return 0d;
+        }
+        return Math.max(-0.5d, Math.min(0.5d, 0.5d * (left - right) / denominator));
+    }
+
+    private float flux(long frame) {
+        return flux[(int) (frame % flux.length)];
+    }
+}
@@ -0,0 +1,112 @@
+package tatar.eljah.audio;
+
+import java.io.IOException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+// Batch form of analyzePcm: frame ranges are analyzed on a ForkJoin pool and every frame
+// writes only its own slot of the output arrays, so the result does not depend on
+// scheduling. Frame results do not depend on earlier frames either, which keeps the
+// track identical to the sequential path.
+final class ParallelPcmAnalysis {
+    // Frames per leaf task; large enough to amortize task overhead on 256-sample hops.
+    private static final int LEAF_FRAMES = 32;
+
+    private final PcmSource source;
+    private final int sampleRate;
+    private final int frameSize;
+    private final int hop;
+    private final float[] pitchHz;
+    private final float[] spectrogram;
+    private final int spectrumBins;
+    private final ThreadLocal<Scratch> scratch;
+    private volatile IOException failure;
+
+    ParallelPcmAnalysis(PcmSource source,
+                        int sampleRate,
+                        int frameSize,
+                        int hop,
+                        final PitchAnalyzer.EstimatorFactory estimators,
+                        boolean withSpectrogram) {
+        this.source = source;
+        this.sampleRate = sampleRate;
+        this.frameSize = frameSize;
+        this.hop = hop;
+        long length = source.length();
+        int frames = length < frameSize ? 0 : (int) ((length - frameSize) / hop + 1);
+        this.pitchHz = new float[frames];
+        this.spectrumBins = withSpectrogram ? FrameFeatureExtractor.spectrumBins(frameSize) : 0;
+        this.spectrogram = withSpectrogram ? new float[frames * spectrumBins] : null;
+        // Estimators and extractors hold scratch buffers, so each worker thread gets its own.
+        this.scratch = new ThreadLocal<Scratch>() {
+            @Override
+            protected Scratch initialValue() {
+                return new Scratch(estimators.create(), ParallelPcmAnalysis.this.frameSize);
+            }
+        };
+    }
+
+    PitchTrack run(ForkJoinPool pool) throws IOException {
+        if (pitchHz.length > 0) {
+            pool.invoke(new Range(0, pitchHz.length));
+        }
+        if (failure != null) {
+            throw failure;
+        }
+        return new PitchTrack(sampleRate, frameSize, hop, pitchHz, spectrogram, spectrumBins);
+    }
+
+    private void analyze(int from, int to) throws IOException {
+        Scratch worker = scratch.get();
+        boolean withSpectrum = spectrogram != null;
+        for (int frame = from; frame < to && failure == null; frame++) {
+            long start = (long) frame * hop;
+            if (source.read(start, worker.frame, 0, frameSize) != frameSize) {
+                throw new IOException("PCM source ended inside frame " + frame);
+            }
+            FrameFeatures features = worker.extractor.extract(worker.frame, 0, frameSize, start, sampleRate,
+                    worker.estimator, withSpectrum);
+            pitchHz[frame] = features.pitchHz();
+            if (withSpectrum) {
+                System.arraycopy(features.spectrum(), 0, spectrogram, frame * spectrumBins, spectrumBins);
+            }
+        }
+    }
+
+    // Never serialized; RecursiveAction is Serializable only by inheritance.
+    @SuppressWarnings("serial")
+    private final class Range extends RecursiveAction {
+        private final int from;
+        private final int to;
+
+        Range(int from, int to) {
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= LEAF_FRAMES) {
+                try {
+                    analyze(from, to);
+                } catch (IOException e) {
+                    failure = e;
+                }
+                return;
+            }
+            int middle = (from + to) >>> 1;
+            invokeAll(new Range(from, middle), new Range(middle, to));
+        }
+    }
+
+    private static final class Scratch {
+        final PitchEstimator estimator;
+        final FrameFeatureExtractor extractor = new FrameFeatureExtractor();
+        final short[] frame;
+
+        Scratch(PitchEstimator estimator, int frameSize) {
+            this.estimator = estimator;
+            this.frame = new short[frameSize];
+        }
+    }
+}
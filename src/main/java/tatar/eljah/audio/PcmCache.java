@@ -0,0 +1,184 @@
+package tatar.eljah.audio;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// Two-level LRU cache of rendered mono PCM under a caller-defined key, which should cover
+// everything the render depends on, sample rate included. Recently used entries stay in memory
+// and every entry is also written to directory as a 16-bit WAV file, so renders survive the
+// process. Both levels evict the least recently used entries once over their byte budget.
+// Disk errors only cost the disk copy. Thread-safe.
+public final class PcmCache {
+    private static final String SUFFIX = ".wav";
+    private static final String TEMP_SUFFIX = ".tmp";
+    private static final int WAV_HEADER_BYTES = 44;
+
+    private final File directory;
+    private final long maxMemoryBytes;
+    private final long maxDiskBytes;
+    private final LinkedHashMap<String, short[]> memory = new LinkedHashMap<String, short[]>(16, 0.75f, true);
+    private long memoryBytes;
+
+    public PcmCache(File directory, long maxMemoryBytes, long maxDiskBytes) {
+        this.directory = directory;
+        this.maxMemoryBytes = maxMemoryBytes;
+        this.maxDiskBytes = maxDiskBytes;
+    }
+
+    // The cached samples, or null. The array is shared: callers must not modify it.
+    public synchronized short[] get(String key) {
+        short[] cached = memory.get(key);
+        if (cached != null) {
+            return cached;
+        }
+        File file = fileFor(key);
+        if (!file.isFile()) {
+            return null;
+        }
+        short[] samples;
+        try {
+            MappedWavSource source = MappedWavSource.open(file);
+            try {
+                samples = new short[(int) source.length()];
+                source.read(0L, samples, 0, samples.length);
+            } finally {
+                source.close();
+            }
+        } catch (IOException e) {
+            file.delete();
+            return null;
+        }
+        file.setLastModified(System.currentTimeMillis());
+        remember(key, samples);
+        return samples;
+    }
+
+    public synchronized void put(String key, short[] samples, int sampleRate) {
+        remember(key, samples);
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            return;
+        }
+        File file = fileFor(key);
+        File temp = new File(directory, file.getName() + TEMP_SUFFIX);
+        try {
+            writeWav(temp, samples, sampleRate);
+            if (!temp.renameTo(file)) {
+                temp.delete();
+                return;
+            }
+        } catch (IOException e) {
+            temp.delete();
+            return;
+        }
+        trimDisk();
+    }
+
+    public synchronized void clear() {
+        memory.clear();
+        memoryBytes = 0L;
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+    }
+
+    synchronized boolean inMemory(String key) {
+        return memory.containsKey(key);
+    }
+
+    File fileFor(String key) {
+        return new File(directory, hash(key) + SUFFIX);
+    }
+
+    private void remember(String key, short[] samples) {
+        short[] previous = memory.put(key, samples);
+        if (previous != null) {
+            memoryBytes -= previous.length * 2L;
+        }
+        memoryBytes += samples.length * 2L;
+        Iterator<Map.Entry<String, short[]>> eldest = memory.entrySet().iterator();
+        // The newest entry stays even if it alone exceeds the budget.
+        while (memoryBytes > maxMemoryBytes && memory.size() > 1) {
+            short[] evicted = eldest.next().getValue();
+            eldest.remove();
+            memoryBytes -= evicted.length * 2L;
+        }
+    }
+
+    private void trimDisk() {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        long total = 0L;
+        for (File file : files) {
+            total += file.length();
+        }
+        if (total <= maxDiskBytes) {
+            return;
+        }
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                long left = a.lastModified();
+                long right = b.lastModified();
+                return left < right ? -1 : (left == right ? 0 : 1);
+            }
+        });
+        // Keep the newest file, which is the one just written.
+        for (int i = 0; i < files.length - 1 && total > maxDiskBytes; i++) {
+            long length = files[i].length();
+            if (files[i].delete()) {
+                total -= length;
+            }
+        }
+    }
+
+    private static void writeWav(File file, short[] samples, int sampleRate) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(WAV_HEADER_BYTES + samples.length * 2).order(ByteOrder.LITTLE_ENDIAN);
+        int dataBytes = samples.length * 2;
+        buffer.put(new byte[]{'R', 'I', 'F', 'F'}).putInt(36 + dataBytes).put(new byte[]{'W', 'A', 'V', 'E'});
+        buffer.put(new byte[]{'f', 'm', 't', ' '}).putInt(16).putShort((short) 1).putShort((short) 1)
+                .putInt(sampleRate).putInt(sampleRate * 2).putShort((short) 2).putShort((short) 16);
+        buffer.put(new byte[]{'d', 'a', 't', 'a'}).putInt(dataBytes);
+        buffer.asShortBuffer().put(samples);
+        buffer.position(0);
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            FileChannel channel = out.getChannel();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    private static String hash(String key) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(key.getBytes("UTF-8"));
+            StringBuilder hex = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,17 @@
+package tatar.eljah.audio;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+// Random-access mono 16-bit PCM for offline analysis. Frames overlap, so the analyzer reads
+// them by absolute position instead of consuming a stream. read() must be safe to call from
+// several threads at once: batch analysis reads frames in parallel.
+public interface PcmSource extends Closeable {
+    int sampleRate();
+
+    // Total number of samples.
+    long length();
+
+    // Copies up to count samples starting at position into target; returns how many were copied.
+    int read(long position, short[] target, int offset, int count) throws IOException;
+}
@@ -2,7 +2,12 @@ package tatar.eljah.audio;
 
 import android.media.AudioFormat;
 import android.media.AudioRecord;
+import android.media.AudioTimestamp;
 import android.media.MediaRecorder;
+import android.os.Build;
+
+import java.io.IOException;
+import java.util.concurrent.ForkJoinPool;
 
 public class PitchAnalyzer {
 
@@ -10,16 +15,86 @@ public class PitchAnalyzer {
         void onPitch(float pitchHz);
     }
 
+    // magnitudes is reused for the next frame; copy it if it must outlive the callback.
     public interface SpectrumListener {
         void onSpectrum(float[] magnitudes, int sampleRate);
     }
 
+    // See AudioBlock for the lease rules: the block is only valid during the call unless retained.
     public interface AudioListener {
-        void onAudio(short[] samples, int length, int sampleRate);
+        void onAudio(AudioBlock block);
+    }
+
+    // features is reused for the next frame; copy what must outlive the callback.
+    public interface FrameListener {
+        void onFrame(FrameFeatures features);
     }
 
+    // samplePosition is the estimated first sample of the new note, counted from the start of
+    // the stream; the event arrives latencySamples after that sample was captured.
+    public interface OnsetListener {
+        void onOnset(long samplePosition, float strength, int latencySamples);
+    }
+
+    // Batch analysis runs one estimator per worker thread, so it needs a way to make more.
+    public interface EstimatorFactory {
+        PitchEstimator create();
+    }
+
+    public enum AutocorrelationMethod {
+        TIME_DOMAIN,
+        FFT
+    }
+
+    public static final int REALTIME_SAMPLE_RATE = 22050;
+    public static final int DEFAULT_HOP_SIZE = 256;
+    private static final int MIN_HOP_SIZE = 32;
+
     private volatile boolean running;
     private Thread workerThread;
+    private volatile AutocorrelationMethod autocorrelationMethod = AutocorrelationMethod.TIME_DOMAIN;
+    // 0 until setHopSize is called.
+    private volatile int hopSize;
+    private volatile boolean frameSpectrumEnabled = true;
+    private volatile OnsetListener onsetListener;
+
+    // Distance in samples between consecutive analysis windows. Realtime capture uses
+    // DEFAULT_HOP_SIZE unless this is called; analyzePcm and batch analysis use half a frame,
+    // unless this is called, e.g. to replay a recording at the realtime cadence. Takes effect
+    // on the next start/analyze call.
+    public void setHopSize(int hopSamples) {
+        hopSize = Math.max(MIN_HOP_SIZE, hopSamples);
+    }
+
+    // The realtime hop.
+    public int getHopSize() {
+        int hop = hopSize;
+        return hop > 0 ? hop : DEFAULT_HOP_SIZE;
+    }
+
+    // Whether FrameFeatures carry a spectrum when no SpectrumListener asks for one anyway.
+    // Takes effect on the next start/analyze call.
+    public void setFrameSpectrumEnabled(boolean enabled) {
+        frameSpectrumEnabled = enabled;
+    }
+
+    public boolean isFrameSpectrumEnabled() {
+        return frameSpectrumEnabled;
+    }
+
+    // Spectral-flux onsets for realtime capture and analyzePcm, not for batch analysis.
+    // Takes effect on the next start/analyze call; null disables detection.
+    public void setOnsetListener(OnsetListener listener) {
+        onsetListener = listener;
+    }
+
+    public void setAutocorrelationMethod(AutocorrelationMethod method) {
+        autocorrelationMethod = method == null ? AutocorrelationMethod.TIME_DOMAIN : method;
+    }
+
+    public AutocorrelationMethod getAutocorrelationMethod() {
+        return autocorrelationMethod;
+    }
 
     public void startRealtimePitch(final PitchListener listener) {
         startRealtimePitch(listener, null);
@@ -32,15 +107,41 @@ public class PitchAnalyzer {
     public void startRealtimePitch(final PitchListener listener,
                                    final SpectrumListener spectrumListener,
                                    final AudioListener audioListener) {
+        startRealtimePitch(null, listener, spectrumListener, audioListener);
+    }
+
+    public void startRealtimePitch(PitchEstimator pitchEstimator,
+                                   final PitchListener listener,
+                                   final SpectrumListener spectrumListener,
+                                   final AudioListener audioListener) {
+        startRealtimePitch(pitchEstimator, listener, spectrumListener, audioListener, null);
+    }
+
+    public void startRealtimePitch(PitchEstimator pitchEstimator,
+                                   final PitchListener listener,
+                                   final FrameListener frameListener) {
+        startRealtimePitch(pitchEstimator, listener, null, null, frameListener);
+    }
+
+    // The estimator is used exclusively by the worker thread until stop(); pass null for the
+    // autocorrelation estimator configured through setAutocorrelationMethod.
+    public void startRealtimePitch(PitchEstimator pitchEstimator,
+                                   final PitchListener listener,
+                                   final SpectrumListener spectrumListener,
+                                   final AudioListener audioListener,
+                                   final FrameListener frameListener) {
         if (running) {
             return;
         }
         running = true;
+        final PitchEstimator estimator = pitchEstimator != null ? pitchEstimator : defaultEstimator();
+        final boolean frameSpectrum = frameSpectrumEnabled;
+        final OnsetListener onsets = onsetListener;
 
         workerThread = new Thread(new Runnable() {
             @Override
             public void run() {
-                int sampleRate = 22050;
+                int sampleRate = REALTIME_SAMPLE_RATE;
                 int channelConfig = AudioFormat.CHANNEL_IN_MONO;
                 int audioFormat = AudioFormat.ENCODING_PCM_16BIT;
 
@@ -50,15 +151,25 @@ public class PitchAnalyzer {
                     return;
                 }
 
+                int frameSize = estimator.preferredFrameSize(sampleRate);
+                int hop = Math.min(getHopSize(), frameSize);
+                // Room for two analysis windows of 16-bit samples, so a slow frame does not overrun the recorder.
+                int recordBufferBytes = Math.max(minBufferSize, frameSize * 4);
+
                 AudioRecord record = new AudioRecord(
                         MediaRecorder.AudioSource.MIC,
                         sampleRate,
                         channelConfig,
                         audioFormat,
-                        minBufferSize
+                        recordBufferBytes
                 );
 
-                short[] buffer = new short[minBufferSize];
+                FrameProcessor frames = new FrameProcessor(estimator, sampleRate, listener, spectrumListener,
+                        frameListener, frameSpectrum);
+                if (onsets != null) {
+                    frames.setOnsetDetector(new OnsetDetector(frameSize, hop, onsets));
+                }
+                CapturePipeline pipeline = new CapturePipeline(sampleRate, frameSize, hop, frames, audioListener);
 
                 try {
                     if (record.getState() != AudioRecord.STATE_INITIALIZED) {
@@ -66,21 +177,18 @@ public class PitchAnalyzer {
                         return;
                     }
                     record.startRecording();
+                    AudioTimestamp timestamp = Build.VERSION.SDK_INT >= Build.VERSION_CODES.N
+                            ? new AudioTimestamp() : null;
+                    long samplesRead = 0L;
                     while (running) {
-                        int read = record.read(buffer, 0, buffer.length);
+                        // Small hop-sized reads decouple the analysis cadence from the device buffer size.
+                        AudioBlock block = pipeline.acquireBlock();
+                        int read = record.read(block.samples(), 0, pipeline.blockSize());
+                        pipeline.process(block, read);
                         if (read > 0) {
-                            float pitch = estimatePitch(buffer, read, sampleRate);
-                            if (pitch > 0f && listener != null) {
-                                listener.onPitch(pitch);
-                            }
-                            if (spectrumListener != null) {
-                                float[] magnitudes = computeSpectrum(buffer, read);
-                                spectrumListener.onSpectrum(magnitudes, sampleRate);
-                            }
-                            if (audioListener != null) {
-                                short[] samples = new short[read];
-                                System.arraycopy(buffer, 0, samples, 0, read);
-                                audioListener.onAudio(samples, read, sampleRate);
+                            samplesRead += read;
+                            if (timestamp != null) {
+                                pipeline.skipBacklog(recorderBacklog(record, timestamp, sampleRate, samplesRead));
                             }
                         }
                     }
@@ -96,26 +204,107 @@ public class PitchAnalyzer {
     }
 
     public void analyzePcm(short[] samples, int sampleRate, PitchListener listener, SpectrumListener spectrumListener) {
+        analyzePcm(samples, sampleRate, null, listener, spectrumListener);
+    }
+
+    public void analyzePcm(short[] samples,
+                           int sampleRate,
+                           PitchEstimator pitchEstimator,
+                           PitchListener listener,
+                           SpectrumListener spectrumListener) {
+        analyzePcm(samples, sampleRate, pitchEstimator, listener, spectrumListener, null);
+    }
+
+    public void analyzePcm(short[] samples,
+                           int sampleRate,
+                           PitchEstimator pitchEstimator,
+                           PitchListener listener,
+                           SpectrumListener spectrumListener,
+                           FrameListener frameListener) {
         if (samples == null || samples.length == 0) {
             return;
         }
-        int frameSize = 1024;
-        int hopSize = 512;
-        if (samples.length < frameSize) {
-            frameSize = samples.length;
-            hopSize = Math.max(1, frameSize / 2);
+        PitchEstimator estimator = pitchEstimator != null ? pitchEstimator : defaultEstimator();
+        int frameSize = batchFrameSize(estimator, samples.length, sampleRate);
+        int hop = batchHop(estimator, samples.length, sampleRate);
+        FrameProcessor frames = newFrameProcessor(estimator, sampleRate, frameSize, hop, listener,
+                spectrumListener, frameListener);
+        for (int start = 0; start + frameSize <= samples.length; start += hop) {
+            frames.process(samples, start, frameSize, start);
         }
+    }
+
+    // Streams frames from source with one frame of buffering, so memory use does not grow with
+    // the length of the recording. Produces the same frames as analyzePcm on the whole array.
+    public void analyzePcm(PcmSource source,
+                           PitchEstimator pitchEstimator,
+                           PitchListener listener,
+                           SpectrumListener spectrumListener,
+                           FrameListener frameListener) throws IOException {
+        long length = source.length();
+        if (length == 0L) {
+            return;
+        }
+        int sampleRate = source.sampleRate();
+        PitchEstimator estimator = pitchEstimator != null ? pitchEstimator : defaultEstimator();
+        int frameSize = batchFrameSize(estimator, length, sampleRate);
+        int hop = batchHop(estimator, length, sampleRate);
+        FrameProcessor frames = newFrameProcessor(estimator, sampleRate, frameSize, hop, listener,
+                spectrumListener, frameListener);
         short[] frame = new short[frameSize];
-        for (int start = 0; start + frameSize <= samples.length; start += hopSize) {
-            System.arraycopy(samples, start, frame, 0, frameSize);
-            float pitch = estimatePitch(frame, frameSize, sampleRate);
-            if (pitch > 0f && listener != null) {
-                listener.onPitch(pitch);
-            }
-            if (spectrumListener != null) {
-                float[] magnitudes = computeSpectrum(frame, frameSize);
-                spectrumListener.onSpectrum(magnitudes, sampleRate);
+        for (long start = 0L; start + frameSize <= length; start += hop) {
+            if (source.read(start, frame, 0, frameSize) != frameSize) {
+                throw new IOException("PCM source ended at " + start);
             }
+            frames.process(frame, 0, frameSize, start);
+        }
+    }
+
+    public PitchTrack analyzePcmBatch(short[] samples, int sampleRate, boolean withSpectrogram) {
+        return analyzePcmBatch(samples, sampleRate, null, withSpectrogram);
+    }
+
+    public PitchTrack analyzePcmBatch(short[] samples,
+                                      int sampleRate,
+                                      EstimatorFactory estimatorFactory,
+                                      boolean withSpectrogram) {
+        try {
+            return analyzePcmBatch(new ShortArrayPcmSource(samples, sampleRate), estimatorFactory, withSpectrogram);
+        } catch (IOException e) {
+            // In-memory sources do not fail.
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // Same frames and results as analyzePcm, computed in parallel and collected into a track.
+    // Blocks until done; pass null for the autocorrelation estimator of setAutocorrelationMethod.
+    public PitchTrack analyzePcmBatch(PcmSource source,
+                                      EstimatorFactory estimatorFactory,
+                                      boolean withSpectrogram) throws IOException {
+        EstimatorFactory factory = estimatorFactory;
+        if (factory == null) {
+            final AutocorrelationMethod method = autocorrelationMethod;
+            factory = new EstimatorFactory() {
+                @Override
+                public PitchEstimator create() {
+                    return new AutocorrelationPitchEstimator(method);
+                }
+            };
+        }
+        long length = source.length();
+        int sampleRate = source.sampleRate();
+        PitchEstimator probe = factory.create();
+        int frameSize = length == 0L ? probe.preferredFrameSize(sampleRate)
+                : batchFrameSize(probe, length, sampleRate);
+        int hop = batchHop(probe, Math.max(1L, length), sampleRate);
+        // A pool per call: its threads, and the per-thread scratch buffers of the analysis,
+        // end with it instead of living as long as the process.
+        ForkJoinPool pool = new ForkJoinPool(Math.max(1, Runtime.getRuntime().availableProcessors()));
+        try {
+            return new ParallelPcmAnalysis(source, sampleRate, frameSize, hop, factory, withSpectrogram)
+                    .run(pool);
+        } finally {
+            pool.shutdown();
         }
     }
 
@@ -130,147 +319,48 @@ public class PitchAnalyzer {
         }
     }
 
-    private float estimatePitch(short[] buffer, int length, int sampleRate) {
-        if (buffer == null || length < 64 || sampleRate <= 0) {
-            return 0f;
-        }
-
-        // Remove DC offset and reject silence/noise-only fragments.
-        double mean = 0d;
-        for (int i = 0; i < length; i++) {
-            mean += buffer[i];
-        }
-        mean /= length;
-
-        double rms = 0d;
-        for (int i = 0; i < length; i++) {
-            double centered = buffer[i] - mean;
-            rms += centered * centered;
-        }
-        rms = Math.sqrt(rms / length);
-        if (rms < 250d) {
-            return 0f;
-        }
-
-        // Prefer autocorrelation to zero-crossing: it is much less sensitive
-        // to attack transients and upper harmonics (e.g. 2nd harmonic spikes).
-        int minLag = Math.max(4, sampleRate / 2600);
-        int maxLag = Math.min(length / 2, sampleRate / 120);
-        if (maxLag <= minLag) {
-            return 0f;
-        }
-
-        double[] corr = new double[maxLag + 1];
-        for (int lag = minLag; lag <= maxLag; lag++) {
-            double sum = 0d;
-            double energyA = 0d;
-            double energyB = 0d;
-            int limit = length - lag;
-            for (int i = 0; i < limit; i++) {
-                double a = buffer[i] - mean;
-                double b = buffer[i + lag] - mean;
-                sum += a * b;
-                energyA += a * a;
-                energyB += b * b;
-            }
-            if (energyA <= 0d || energyB <= 0d) {
-                continue;
-            }
-            corr[lag] = sum / Math.sqrt(energyA * energyB);
-        }
-
-        // Prefer the earliest valid local peak to avoid selecting a later
-        // multiple-period peak (subharmonic/octave-down error).
-        int bestLag = -1;
-        final double minCorr = 0.55d;
-        for (int lag = minLag + 1; lag < maxLag; lag++) {
-            double normalized = corr[lag];
-            if (normalized < minCorr) {
-                continue;
-            }
-            if (normalized > corr[lag - 1] && normalized >= corr[lag + 1]) {
-                bestLag = lag;
-                break;
-            }
+    // Samples the recorder has captured beyond the samplesRead already read from it, or 0 if
+    // it cannot tell.
+    private static long recorderBacklog(AudioRecord record, AudioTimestamp timestamp, int sampleRate,
+                                        long samplesRead) {
+        if (record.getTimestamp(timestamp, AudioTimestamp.TIMEBASE_MONOTONIC) != AudioRecord.SUCCESS) {
+            return 0L;
         }
+        long sinceTimestamp = (System.nanoTime() - timestamp.nanoTime) * sampleRate / 1000000000L;
+        return Math.max(0L, timestamp.framePosition + sinceTimestamp - samplesRead);
+    }
 
-        if (bestLag <= 0) {
-            return 0f;
+    private FrameProcessor newFrameProcessor(PitchEstimator estimator,
+                                             int sampleRate,
+                                             int frameSize,
+                                             int hop,
+                                             PitchListener listener,
+                                             SpectrumListener spectrumListener,
+                                             FrameListener frameListener) {
+        FrameProcessor frames = new FrameProcessor(estimator, sampleRate, listener, spectrumListener,
+                frameListener, frameSpectrumEnabled);
+        OnsetListener onsets = onsetListener;
+        if (onsets != null) {
+            frames.setOnsetDetector(new OnsetDetector(frameSize, hop, onsets));
         }
+        return frames;
+    }
 
-        float frequency = sampleRate / (float) bestLag;
-        if (frequency < 120f || frequency > 2600f) {
-            return 0f;
-        }
-        return frequency;
+    private int batchFrameSize(PitchEstimator estimator, long length, int sampleRate) {
+        return (int) Math.min(estimator.preferredFrameSize(sampleRate), length);
     }
 
-    private float[] computeSpectrum(short[] buffer, int length) {
-        int size = 1;
-        while (size * 2 <= length && size < 2048) {
-            size *= 2;
-        }
-        if (size < 128) {
-            size = Math.min(length, 128);
-        }
-        double[] real = new double[size];
-        double[] imag = new double[size];
-        for (int i = 0; i < size; i++) {
-            double window = 0.5 - 0.5 * Math.cos(2.0 * Math.PI * i / (size - 1));
-            real[i] = buffer[i] * window;
-            imag[i] = 0.0;
-        }
-        fft(real, imag);
-        int bins = size / 2;
-        float[] magnitudes = new float[bins];
-        for (int i = 0; i < bins; i++) {
-            double mag = Math.sqrt(real[i] * real[i] + imag[i] * imag[i]);
-            magnitudes[i] = (float) mag;
-        }
-        return magnitudes;
-    }
-
-    private void fft(double[] real, double[] imag) {
-        int n = real.length;
-        int bits = (int) (Math.log(n) / Math.log(2));
-        for (int i = 0; i < n; i++) {
-            int j = reverseBits(i, bits);
-            if (j > i) {
-                double tmpReal = real[i];
-                double tmpImag = imag[i];
-                real[i] = real[j];
-                imag[i] = imag[j];
-                real[j] = tmpReal;
-                imag[j] = tmpImag;
-            }
-        }
-        for (int size = 2; size <= n; size <<= 1) {
-            int halfSize = size / 2;
-            double phaseStep = -2.0 * Math.PI / size;
-            for (int i = 0; i < n; i += size) {
-                for (int j = 0; j < halfSize; j++) {
-                    double angle = j * phaseStep;
-                    double cos = Math.cos(angle);
-                    double sin = Math.sin(angle);
-                    int evenIndex = i + j;
-                    int oddIndex = evenIndex + halfSize;
-                    double tre = cos * real[oddIndex] - sin * imag[oddIndex];
-                    double tim = sin * real[oddIndex] + cos * imag[oddIndex];
-                    real[oddIndex] = real[evenIndex] - tre;
-                    imag[oddIndex] = imag[evenIndex] - tim;
-                    real[evenIndex] += tre;
-                    imag[evenIndex] += tim;
-                }
-            }
+    // Inputs shorter than one frame are analyzed as a single frame with a half-frame hop.
+    private int batchHop(PitchEstimator estimator, long length, int sampleRate) {
+        int frameSize = estimator.preferredFrameSize(sampleRate);
+        if (length < frameSize) {
+            return (int) Math.max(1L, length / 2);
         }
+        int hop = hopSize;
+        return hop > 0 ? Math.min(hop, frameSize) : Math.max(1, frameSize / 2);
     }
 
-    private int reverseBits(int value, int bits) {
-        int reversed = 0;
-        for (int i = 0; i < bits; i++) {
-            reversed = (reversed << 1) | (value & 1);
-            value >>= 1;
-        }
-        return reversed;
+    private PitchEstimator defaultEstimator() {
+        return new AutocorrelationPitchEstimator(autocorrelationMethod);
     }
 }
@@ -0,0 +1,14 @@
+package tatar.eljah.audio;
+
+// Strategy used by PitchAnalyzer to turn one analysis frame into a fundamental frequency.
+// Implementations keep scratch buffers between calls, so an instance must only be used
+// from one thread at a time.
+public interface PitchEstimator {
+    // Returns the fundamental in Hz, or 0 when the frame is silent or unpitched.
+    float estimatePitch(short[] buffer, int offset, int length, int sampleRate);
+
+    // Confidence in [0, 1] of the last estimatePitch() result; 0 when it returned 0.
+    float lastConfidence();
+
+    int preferredFrameSize(int sampleRate);
+}
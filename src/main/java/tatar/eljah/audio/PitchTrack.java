@@ -0,0 +1,59 @@
+package tatar.eljah.audio;
+
+// Result of PitchAnalyzer.analyzePcmBatch: one entry per analysis frame, in stream order.
+// Frame i covers samples [i * hopSize, i * hopSize + frameSize).
+public final class PitchTrack {
+    private final int sampleRate;
+    private final int frameSize;
+    private final int hopSize;
+    private final float[] pitchHz;
+    private final float[] spectrogram;
+    private final int spectrumBins;
+
+    PitchTrack(int sampleRate, int frameSize, int hopSize, float[] pitchHz, float[] spectrogram, int spectrumBins) {
+        this.sampleRate = sampleRate;
+        this.frameSize = frameSize;
+        this.hopSize = hopSize;
+        this.pitchHz = pitchHz;
+        this.spectrogram = spectrogram;
+        this.spectrumBins = spectrumBins;
+    }
+
+    public int sampleRate() {
+        return sampleRate;
+    }
+
+    public int frameSize() {
+        return frameSize;
+    }
+
+    public int hopSize() {
+        return hopSize;
+    }
+
+    public int frameCount() {
+        return pitchHz.length;
+    }
+
+    public long frameStart(int frame) {
+        return (long) frame * hopSize;
+    }
+
+    // 0 for silent or unpitched frames.
+    public float[] pitchHz() {
+        return pitchHz;
+    }
+
+    public boolean hasSpectrogram() {
+        return spectrogram != null;
+    }
+
+    // Row-major frameCount() x spectrumBins() magnitudes, or null when not requested.
+    public float[] spectrogram() {
+        return spectrogram;
+    }
+
+    public int spectrumBins() {
+        return spectrumBins;
+    }
+}
@@ -0,0 +1,72 @@
+package tatar.eljah.audio;
+
+// Position of the audio actually being heard, for UI that has to follow playback. The playback
+// thread anchors it to the output from AudioTrack.getTimestamp (or the playback head position)
+// every few milliseconds; readers extrapolate from the last anchor at the sample rate, so a
+// vsync-driven reader gets a smooth, sample-accurate position between anchors. A looping
+// playback counts frames past the loop end, and positions wrap back into the loop.
+public final class PlaybackClock {
+    private static final long NANOS_PER_SECOND = 1000000000L;
+
+    private int sampleRate;
+    private long startFrame;
+    private long endFrame;
+    private boolean looping;
+    private long anchorFrame;
+    private long anchorNanos;
+    private boolean running;
+
+    // Playback of lengthFrames at sampleRate starts from frame 0 at nowNanos.
+    public synchronized void start(int sampleRate, long lengthFrames, long nowNanos) {
+        begin(sampleRate, 0L, lengthFrames, false, nowNanos);
+    }
+
+    // Playback repeats frames from startFrame (inclusive) to endFrame (exclusive), starting at
+    // startFrame at nowNanos.
+    public synchronized void startLoop(int sampleRate, long startFrame, long endFrame, long nowNanos) {
+        begin(sampleRate, startFrame, endFrame, endFrame > startFrame, nowNanos);
+    }
+
+    // framePosition was presented at nanoTime (System.nanoTime base).
+    public synchronized void update(long framePosition, long nanoTime) {
+        anchorFrame = framePosition;
+        anchorNanos = nanoTime;
+    }
+
+    // Freezes the position where it is.
+    public synchronized void stop(long nowNanos) {
+        if (running) {
+            anchorFrame = positionAt(nowNanos);
+            anchorNanos = nowNanos;
+            running = false;
+        }
+    }
+
+    public synchronized boolean isRunning() {
+        return running;
+    }
+
+    // Frame presented at nowNanos, within [0, length], or within the loop.
+    public synchronized long positionFrames(long nowNanos) {
+        return running ? positionAt(nowNanos) : anchorFrame;
+    }
+
+    private void begin(int sampleRate, long startFrame, long endFrame, boolean looping, long nowNanos) {
+        this.sampleRate = sampleRate;
+        this.startFrame = startFrame;
+        this.endFrame = endFrame;
+        this.looping = looping;
+        anchorFrame = startFrame;
+        anchorNanos = nowNanos;
+        running = true;
+    }
+
+    private long positionAt(long nowNanos) {
+        long elapsed = Math.max(0L, nowNanos - anchorNanos);
+        long position = anchorFrame + elapsed * sampleRate / NANOS_PER_SECOND;
+        if (looping && position >= endFrame) {
+            return startFrame + (position - startFrame) % (endFrame - startFrame);
+        }
+        return Math.max(0L, Math.min(endFrame, position));
+    }
+}
@@ -0,0 +1,59 @@
+package tatar.eljah.audio;
+
+// Circular buffer of PCM samples addressed by absolute stream position. Writing never fails:
+// it overwrites the oldest samples, and a read of a range that was overwritten or is not
+// written yet is rejected. Not thread-safe; the capture thread writes and reads it.
+final class SampleRingBuffer {
+    private final short[] data;
+    private final int mask;
+    private long written;
+
+    SampleRingBuffer(int minCapacity) {
+        int capacity = 1;
+        while (capacity < minCapacity) {
+            capacity <<= 1;
+        }
+        data = new short[capacity];
+        mask = capacity - 1;
+    }
+
+    int capacity() {
+        return data.length;
+    }
+
+    // Total number of samples written since creation or the last clear().
+    long written() {
+        return written;
+    }
+
+    void write(short[] source, int offset, int length) {
+        long position = written;
+        int start = (int) (position & mask);
+        int first = Math.min(length, data.length - start);
+        System.arraycopy(source, offset, data, start, first);
+        if (length > first) {
+            System.arraycopy(source, offset + first, data, 0, length - first);
+        }
+        written = position + length;
+    }
+
+    // Copies samples [position, position + length) into target.
+    // Returns false if any of them is not written yet or was already overwritten.
+    boolean read(long position, short[] target, int offset, int length) {
+        long end = position + length;
+        if (position < 0L || end > written || written - position > data.length) {
+            return false;
+        }
+        int start = (int) (position & mask);
+        int first = Math.min(length, data.length - start);
+        System.arraycopy(data, start, target, offset, first);
+        if (length > first) {
+            System.arraycopy(data, 0, target, offset + first, length - first);
+        }
+        return true;
+    }
+
+    void clear() {
+        written = 0L;
+    }
+}
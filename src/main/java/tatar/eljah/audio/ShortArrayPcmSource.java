@@ -0,0 +1,36 @@
+package tatar.eljah.audio;
+
+// PcmSource over samples that are already in memory.
+public final class ShortArrayPcmSource implements PcmSource {
+    private final short[] samples;
+    private final int sampleRate;
+
+    public ShortArrayPcmSource(short[] samples, int sampleRate) {
+        this.samples = samples != null ? samples : new short[0];
+        this.sampleRate = sampleRate;
+    }
+
+    @Override
+    public int sampleRate() {
+        return sampleRate;
+    }
+
+    @Override
+    public long length() {
+        return samples.length;
+    }
+
+    @Override
+    public int read(long position, short[] target, int offset, int count) {
+        if (position < 0L || position >= samples.length || count <= 0) {
+            return 0;
+        }
+        int copied = (int) Math.min(count, samples.length - position);
+        System.arraycopy(samples, (int) position, target, offset, copied);
+        return copied;
+    }
+
+    @Override
+    public void close() {
+    }
+}
@@ -0,0 +1,97 @@
+package tatar.eljah.audio;
+
+import java.util.Arrays;
+
+// Single-producer / single-consumer bounded queue of spectrum frames, each with the pitch
+// readout of the same analysis frame. Works like EventRing: the producer never overwrites a row
+// the consumer may still be copying, so a full ring rejects the frame and counts it. Rows are
+// preallocated and only reallocated when the spectrum size changes. The positions are the only
+// shared state, through volatile fields, so no locks are needed.
+public final class SpectrumRing {
+    // Filled by poll(); owned by the consumer.
+    public static final class Frame {
+        public float[] magnitudes = new float[0];
+        public int sampleRate;
+        public float expectedHz;
+        public float detectedHz;
+    }
+
+    private final float[][] rows;
+    private final int[] sampleRates;
+    private final float[] expectedHz;
+    private final float[] detectedHz;
+    private final int mask;
+    private volatile long written;
+    private volatile long read;
+    private volatile int dropped;
+
+    public SpectrumRing(int minCapacity) {
+        int capacity = 1;
+        while (capacity < minCapacity) {
+            capacity <<= 1;
+        }
+        rows = new float[capacity][0];
+        sampleRates = new int[capacity];
+        expectedHz = new float[capacity];
+        detectedHz = new float[capacity];
+        mask = capacity - 1;
+    }
+
+    public int capacity() {
+        return rows.length;
+    }
+
+    // Producer side; false if the consumer is a full ring behind. A silent frame is stored as
+    // zeros, so quiet input shows as a dark column.
+    public boolean offer(float[] magnitudes, int sampleRate, boolean silent, float expected, float detected) {
+        long position = written;
+        if (position - read >= rows.length) {
+            dropped++;
+            return false;
+        }
+        int slot = (int) (position & mask);
+        float[] row = rows[slot];
+        if (row.length != magnitudes.length) {
+            row = new float[magnitudes.length];
+            rows[slot] = row;
+        }
+        if (silent) {
+            Arrays.fill(row, 0f);
+        } else {
+            System.arraycopy(magnitudes, 0, row, 0, magnitudes.length);
+        }
+        sampleRates[slot] = sampleRate;
+        expectedHz[slot] = expected;
+        detectedHz[slot] = detected;
+        written = position + 1;
+        return true;
+    }
+
+    // Consumer side: copies the oldest frame into target; false if empty.
+    public boolean poll(Frame target) {
+        long position = read;
+        if (position >= written) {
+            return false;
+        }
+        int slot = (int) (position & mask);
+        float[] row = rows[slot];
+        if (target.magnitudes.length != row.length) {
+            target.magnitudes = new float[row.length];
+        }
+        System.arraycopy(row, 0, target.magnitudes, 0, row.length);
+        target.sampleRate = sampleRates[slot];
+        target.expectedHz = expectedHz[slot];
+        target.detectedHz = detectedHz[slot];
+        read = position + 1;
+        return true;
+    }
+
+    public int size() {
+        return (int) (written - read);
+    }
+
+    // Frames rejected because the ring was full.
+    public int dropped() {
+        return dropped;
+    }
+}
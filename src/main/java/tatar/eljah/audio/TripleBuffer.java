@@ -0,0 +1,44 @@
+package tatar.eljah.audio;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Single-producer / single-consumer latest-value slot over three preallocated objects. The
+// producer fills the one it owns and publishes it by swapping it with the shared middle slot;
+// the consumer takes the middle slot only when something new was published. Neither side
+// blocks or allocates, and values the consumer was too slow to see are simply overwritten.
+public final class TripleBuffer<T> {
+    private static final int INDEX_MASK = 3;
+    private static final int FRESH = 4;
+
+    private final Object[] slots;
+    // Index of the shared slot, with FRESH set while it holds a value the consumer has not seen.
+    private final AtomicInteger middle = new AtomicInteger(1);
+    private int back;
+    private int front = 2;
+
+    public TripleBuffer(T first, T second, T third) {
+        slots = new Object[]{first, second, third};
+    }
+
+    // Producer side: the object to fill before publish().
+    @SuppressWarnings("unchecked")
+    public T editable() {
+        return (T) slots[back];
+    }
+
+    // Producer side.
+    public void publish() {
+        back = middle.getAndSet(back | FRESH) & INDEX_MASK;
+    }
+
+    // Consumer side: the latest published value, or null if nothing was published since the
+    // last call. The object stays valid until the next call.
+    @SuppressWarnings("unchecked")
+    public T poll() {
+        if ((middle.get() & FRESH) == 0) {
+            return null;
+        }
+        front = middle.getAndSet(front) & INDEX_MASK;
+        return (T) slots[front];
+    }
+}
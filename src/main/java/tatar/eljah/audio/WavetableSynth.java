@@ -0,0 +1,145 @@
+package tatar.eljah.audio;
+
+// Note-by-note tone generator for score playback. One period of the timbre is tabulated once;
+// a 32-bit phase accumulator steps through it with linear interpolation, so a sample costs a
+// table read instead of Math.sin and the phase never loses precision on long pieces. The
+// envelope is a precomputed fade ramp applied to the attack and release segments only.
+// Breath noise is filtered white noise from an xorshift generator. Not thread-safe.
+public final class WavetableSynth {
+    public enum Timbre {
+        SINE(new float[]{1f}, 0f),
+        // Mostly fundamental with a weak second and third harmonic, plus a little breath.
+        RECORDER(new float[]{1f, 0.22f, 0.11f, 0.04f, 0.025f}, 0.035f);
+
+        final float[] harmonics;
+        final float breath;
+
+        Timbre(float[] harmonics, float breath) {
+            this.harmonics = harmonics;
+            this.breath = breath;
+        }
+    }
+
+    public static final int DEFAULT_AMPLITUDE = 12000;
+
+    private static final int TABLE_BITS = 11;
+    private static final int TABLE_SIZE = 1 << TABLE_BITS;
+    private static final int FRACTION_BITS = 32 - TABLE_BITS;
+    private static final float FRACTION_SCALE = 1f / (1 << FRACTION_BITS);
+    private static final double PHASE_STEPS = 4294967296d;
+    // One-pole low-pass on the noise, leaving the hiss of air rather than full-band static.
+    private static final float NOISE_SMOOTHING = 0.35f;
+
+    private final int sampleRate;
+    private final float amplitude;
+    private final float breath;
+    // TABLE_SIZE + 1 entries; the last repeats the first so interpolation needs no wrap.
+    private final float[] table = new float[TABLE_SIZE + 1];
+    private float[] fadeRamp = new float[0];
+
+    private int phase;
+    private int phaseIncrement;
+    private int noteSamples;
+    private int fadeSamples;
+    private int position;
+    private int noiseState = 0x2545F491;
+    private float noise;
+
+    public WavetableSynth(int sampleRate, Timbre timbre) {
+        this(sampleRate, timbre, DEFAULT_AMPLITUDE);
+    }
+
+    public WavetableSynth(int sampleRate, Timbre timbre, float amplitude) {
+        this.sampleRate = sampleRate;
+        this.amplitude = amplitude;
+        this.breath = timbre.breath;
+        float[] harmonics = timbre.harmonics;
+        float peak = 0f;
+        for (int i = 0; i < TABLE_SIZE; i++) {
+            double angle = 2d * Math.PI * i / TABLE_SIZE;
+            double value = 0d;
+            for (int h = 0; h < harmonics.length; h++) {
+                value += harmonics[h] * Math.sin((h + 1) * angle);
+            }
+            table[i] = (float) value;
+            peak = Math.max(peak, Math.abs(table[i]));
+        }
+        // Tone plus the loudest noise stays within amplitude.
+        float scale = peak > 0f ? (1f - breath) / peak : 0f;
+        for (int i = 0; i < TABLE_SIZE; i++) {
+            table[i] *= scale;
+        }
+        table[TABLE_SIZE] = table[0];
+    }
+
+    public int sampleRate() {
+        return sampleRate;
+    }
+
+    // Starts a note of totalSamples with linear fades of fadeSamples at both ends. The phase
+    // carries over from the previous note.
+    public void startNote(double frequencyHz, int totalSamples, int fadeSamples) {
+        phaseIncrement = (int) Math.round(frequencyHz / sampleRate * PHASE_STEPS);
+        noteSamples = Math.max(0, totalSamples);
+        this.fadeSamples = Math.max(0, Math.min(fadeSamples, noteSamples / 2));
+        position = 0;
+        if (fadeRamp.length != this.fadeSamples) {
+            fadeRamp = new float[this.fadeSamples];
+            for (int i = 0; i < fadeRamp.length; i++) {
+                fadeRamp[i] = i / (float) fadeRamp.length;
+            }
+        }
+    }
+
+    public int remaining() {
+        return noteSamples - position;
+    }
+
+    // Renders up to count samples of the current note; returns how many were written,
+    // 0 once the note is complete.
+    public int render(short[] buffer, int offset, int count) {
+        int total = Math.min(count, noteSamples - position);
+        int end = offset + total;
+        int out = offset;
+        int releaseStart = noteSamples - fadeSamples;
+        while (out < end) {
+            int segmentEnd;
+            if (position < fadeSamples) {
+                segmentEnd = Math.min(end, out + fadeSamples - position);
+                for (; out < segmentEnd; out++, position++) {
+                    buffer[out] = sample(fadeRamp[position]);
+                }
+            } else if (position < releaseStart) {
+                segmentEnd = Math.min(end, out + releaseStart - position);
+                for (; out < segmentEnd; out++, position++) {
+                    buffer[out] = sample(1f);
+                }
+            } else {
+                segmentEnd = Math.min(end, out + noteSamples - position);
+                for (; out < segmentEnd; out++, position++) {
+                    // Counts down to fadeRamp[0] == 0 on the last sample.
+                    buffer[out] = sample(fadeRamp[noteSamples - 1 - position]);
+                }
+            }
+        }
+        return total;
+    }
+
+    private short sample(float gain) {
+        int index = phase >>> FRACTION_BITS;
+        float fraction = (phase & ((1 << FRACTION_BITS) - 1)) * FRACTION_SCALE;
+        float a = table[index];
+        float value = a + (table[index + 1] - a) * fraction;
+        phase += phaseIncrement;
+        if (breath > 0f) {
+            int x = noiseState;
+            x ^= x << 13;
+            x ^= x >>> 17;
+            x ^= x << 5;
+            noiseState = x;
+            noise += (x * (1f / Integer.MAX_VALUE) - noise) * NOISE_SMOOTHING;
+            value += noise * breath;
+        }
+        return (short) (value * gain * amplitude);
+    }
+}
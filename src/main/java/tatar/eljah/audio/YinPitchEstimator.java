@@ -0,0 +1,99 @@
+package tatar.eljah.audio;
+
+// YIN (de Cheveigne & Kawahara): cumulative mean normalized difference over a fixed window.
+// The scan stops at the first dip below the threshold, so two periods of signal are enough
+// and frames can be half as long as the autocorrelation estimator needs.
+public class YinPitchEstimator implements PitchEstimator {
+    public static final float DEFAULT_THRESHOLD = 0.15f;
+    private static final int FRAME_SIZE = 512;
+
+    private final float threshold;
+    private final DifferenceFunctionKernel kernel = new DifferenceFunctionKernel();
+    private double[] cmnd = new double[0];
+    private float confidence;
+
+    public YinPitchEstimator() {
+        this(DEFAULT_THRESHOLD);
+    }
+
+    public YinPitchEstimator(float threshold) {
+        this.threshold = threshold > 0f ? threshold : DEFAULT_THRESHOLD;
+    }
+
+    @Override
+    public int preferredFrameSize(int sampleRate) {
+        return sampleRate > 22050 ? FRAME_SIZE * 2 : FRAME_SIZE;
+    }
+
+    @Override
+    public float lastConfidence() {
+        return confidence;
+    }
+
+    @Override
+    public float estimatePitch(short[] buffer, int offset, int length, int sampleRate) {
+        confidence = 0f;
+        if (buffer == null || length < 64 || sampleRate <= 0) {
+            return 0f;
+        }
+        if (kernel.load(buffer, offset, length) < DifferenceFunctionKernel.MIN_RMS) {
+            return 0f;
+        }
+
+        int minLag = Math.max(2, sampleRate / 2600);
+        int maxLag = Math.min(length / 2, sampleRate / 120);
+        if (maxLag <= minLag + 1) {
+            return 0f;
+        }
+        kernel.compute(length - maxLag, maxLag);
+
+        if (cmnd.length < maxLag + 1) {
+            cmnd = new double[maxLag + 1];
+        }
+        cmnd[0] = 1d;
+        double runningSum = 0d;
+        int bestLag = -1;
+        for (int lag = 1; lag <= maxLag; lag++) {
+            double d = kernel.difference(lag);
+            runningSum += d;
+            cmnd[lag] = runningSum > 0d ? d * lag / runningSum : 1d;
+            if (lag < minLag + 1 || bestLag > 0) {
+                continue;
+            }
+            // Early exit: once the previous lag dipped under the threshold and the curve
+            // turns upward again, that lag is the first period.
+            if (cmnd[lag - 1] < threshold && cmnd[lag] >= cmnd[lag - 1]) {
+                bestLag = lag - 1;
+                break;
+            }
+        }
+        if (bestLag <= 0) {
+            return 0f;
+        }
+
+        float frequency = (float) (sampleRate / refineLag(bestLag, maxLag));
+        if (frequency < 120f || frequency > 2600f) {
+            return 0f;
+        }
+        confidence = (float) Math.max(0d, Math.min(1d, 1d - cmnd[bestLag]));
+        return frequency;
+    }
+
+    private double refineLag(int lag, int maxLag) {
+        if (lag <= 0 || lag >= maxLag) {
+            return lag;
+        }
+        double left = cmnd[lag - 1];
+        double center = cmnd[lag];
+        double right = cmnd[lag + 1];
+        double denominator = left - 2d * center + right;
+        if (denominator == 0d) {
+            return lag;
+        }
+        double shift = 0.5d * (left - right) / denominator;
+        if (shift < -1d || shift > 1d) {
+            return lag;
+        }
+        return lag + shift;
+    }
+}
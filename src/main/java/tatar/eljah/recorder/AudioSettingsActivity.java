@@ -2,25 +2,56 @@ package tatar.eljah.recorder;
 
 import android.Manifest;
 import android.content.pm.PackageManager;
+import android.media.AudioFormat;
+import android.media.AudioManager;
+import android.media.AudioTrack;
 import android.os.Build;
 import android.os.Bundle;
 import android.support.v7.app.AppCompatActivity;
+import android.view.View;
+import android.widget.Button;
 import android.widget.TextView;
 
+import tatar.eljah.audio.AudioBlock;
 import tatar.eljah.audio.AudioSettingsStore;
+import tatar.eljah.audio.FrameFeatures;
+import tatar.eljah.audio.LatencyCalibrator;
 import tatar.eljah.audio.PitchAnalyzer;
 import tatar.eljah.fluitblox.R;
 
 public class AudioSettingsActivity extends AppCompatActivity {
+    // Capture runs this long before the first click, so the recorder is past its start-up.
+    private static final long CALIBRATION_WARM_UP_MS = 400L;
+    private static final long CALIBRATION_TAIL_MS = 300L;
+
     private final PitchAnalyzer analyzer = new PitchAnalyzer();
 
-    private PitchOverlayView spectrogram;
+    private SpectrogramView spectrogram;
     private IntensityGraphView intensityGraph;
     private TextView thresholdText;
+    private TextView latencyText;
+    private Button latencyButton;
+    private boolean micGranted;
+    private Thread calibrationThread;
 
     private volatile float latestIntensity;
     private volatile float currentThreshold;
 
+    private final PitchAnalyzer.FrameListener previewListener = new PitchAnalyzer.FrameListener() {
+        @Override
+        public void onFrame(FrameFeatures features) {
+            final float intensity = features.rms();
+            latestIntensity = intensity;
+            spectrogram.pushFrame(features.spectrum(), features.sampleRate(), intensity < currentThreshold, 0f, 0f);
+            runOnUiThread(new Runnable() {
+                @Override
+                public void run() {
+                    intensityGraph.addIntensity(intensity);
+                }
+            });
+        }
+    };
+
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
@@ -29,6 +60,14 @@ public class AudioSettingsActivity extends AppCompatActivity {
         spectrogram = findViewById(R.id.settings_spectrogram);
         intensityGraph = findViewById(R.id.settings_intensity_graph);
         thresholdText = findViewById(R.id.settings_threshold_value);
+        latencyText = findViewById(R.id.settings_latency_value);
+        latencyButton = findViewById(R.id.btn_settings_latency);
+        latencyButton.setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View v) {
+                startLatencyCalibration();
+            }
+        });
 
         float threshold = AudioSettingsStore.intensityThreshold(this);
         currentThreshold = threshold;
@@ -51,49 +90,106 @@ public class AudioSettingsActivity extends AppCompatActivity {
             requestPermissions(new String[]{Manifest.permission.RECORD_AUDIO}, 2201);
             return;
         }
+        micGranted = true;
         startRealtimePreview();
     }
 
     private void startRealtimePreview() {
-        analyzer.startRealtimePitch(null, new PitchAnalyzer.SpectrumListener() {
+        analyzer.startRealtimePitch(null, null, previewListener);
+    }
+
+    // Plays LatencyCalibrator clicks through the speaker while the preview capture listens for
+    // them, then shows the measured round trip. The value is for information only: the score
+    // follower compares capture times with each other, where a constant latency cancels out.
+    private void startLatencyCalibration() {
+        if (!micGranted || calibrationThread != null) {
+            return;
+        }
+        latencyButton.setEnabled(false);
+        latencyText.setText(R.string.settings_latency_running);
+        final LatencyCalibrator calibrator = new LatencyCalibrator(PitchAnalyzer.REALTIME_SAMPLE_RATE);
+        analyzer.stop();
+        analyzer.setOnsetListener(new PitchAnalyzer.OnsetListener() {
             @Override
-            public void onSpectrum(final float[] magnitudes, final int sampleRate) {
-                runOnUiThread(new Runnable() {
-                    @Override
-                    public void run() {
-                        if (latestIntensity < currentThreshold) {
-                            spectrogram.setSpectrum(new float[magnitudes.length], sampleRate);
-                        } else {
-                            spectrogram.setSpectrum(magnitudes, sampleRate);
-                        }
-                    }
-                });
+            public void onOnset(long samplePosition, float strength, int latencySamples) {
+                calibrator.onOnset(samplePosition);
             }
-        }, new PitchAnalyzer.AudioListener() {
+        });
+        analyzer.startRealtimePitch(null, null, null, new PitchAnalyzer.AudioListener() {
             @Override
-            public void onAudio(short[] samples, int length, int sampleRate) {
-                final float intensity = calculateRms(samples, length);
-                latestIntensity = intensity;
+            public void onAudio(AudioBlock block) {
+                calibrator.captured(block.position() + block.length(), System.nanoTime());
+            }
+        }, previewListener);
+
+        calibrationThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                playClicks(calibrator);
+                // Interrupted by onDestroy: the activity is gone, so there is nothing to report to.
+                if (Thread.currentThread().isInterrupted()) {
+                    return;
+                }
+                final int latency = calibrator.latencyMs();
                 runOnUiThread(new Runnable() {
                     @Override
                     public void run() {
-                        intensityGraph.addIntensity(intensity);
+                        finishLatencyCalibration(latency);
                     }
                 });
             }
-        });
+        }, "latency-calibration");
+        calibrationThread.start();
+    }
+
+    private void playClicks(LatencyCalibrator calibrator) {
+        short[] clicks = calibrator.clickTrack();
+        AudioTrack track = null;
+        try {
+            Thread.sleep(CALIBRATION_WARM_UP_MS);
+            track = new AudioTrack(AudioManager.STREAM_MUSIC, PitchAnalyzer.REALTIME_SAMPLE_RATE,
+                    AudioFormat.CHANNEL_OUT_MONO, AudioFormat.ENCODING_PCM_16BIT, clicks.length * 2,
+                    AudioTrack.MODE_STATIC);
+            if (track.write(clicks, 0, clicks.length) < clicks.length
+                    || track.getState() != AudioTrack.STATE_INITIALIZED) {
+                return;
+            }
+            calibrator.playbackStarted(System.nanoTime());
+            track.play();
+            Thread.sleep(clicks.length * 1000L / PitchAnalyzer.REALTIME_SAMPLE_RATE + CALIBRATION_TAIL_MS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IllegalStateException ignored) {
+        } finally {
+            if (track != null) {
+                try {
+                    track.stop();
+                } catch (IllegalStateException ignored) {
+                }
+                track.release();
+            }
+        }
     }
 
-    private float calculateRms(short[] samples, int length) {
-        if (samples == null || length <= 0) {
-            return 0f;
+    private void finishLatencyCalibration(int latencyMs) {
+        calibrationThread = null;
+        // After onDestroy, e.g. on rotation, where isFinishing() is false: restarting the preview
+        // would leave a capture thread that nothing stops.
+        if (isDestroyed()) {
+            return;
+        }
+        analyzer.stop();
+        analyzer.setOnsetListener(null);
+        if (isFinishing()) {
+            return;
         }
-        double sum = 0d;
-        for (int i = 0; i < length; i++) {
-            double normalized = samples[i] / 32768.0;
-            sum += normalized * normalized;
+        startRealtimePreview();
+        latencyButton.setEnabled(true);
+        if (latencyMs < 0) {
+            latencyText.setText(R.string.settings_latency_failed);
+            return;
         }
-        return (float) Math.sqrt(sum / length);
+        latencyText.setText(getString(R.string.settings_latency_value, latencyMs));
     }
 
     private void updateThreshold(float value) {
@@ -106,6 +202,7 @@ public class AudioSettingsActivity extends AppCompatActivity {
     public void onRequestPermissionsResult(int requestCode, String[] permissions, int[] grantResults) {
         super.onRequestPermissionsResult(requestCode, permissions, grantResults);
         if (requestCode == 2201 && grantResults.length > 0 && grantResults[0] == PackageManager.PERMISSION_GRANTED) {
+            micGranted = true;
             startRealtimePreview();
         }
     }
@@ -113,6 +210,10 @@ public class AudioSettingsActivity extends AppCompatActivity {
     @Override
     protected void onDestroy() {
         super.onDestroy();
+        Thread calibration = calibrationThread;
+        if (calibration != null) {
+            calibration.interrupt();
+        }
         analyzer.stop();
     }
 }
@@ -0,0 +1,87 @@
+package tatar.eljah.recorder;
+
+import java.util.List;
+
+// A score reduced to parallel primitive arrays, built once per piece, so matching a pitch
+// frame needs no note-name strings, regex parsing or map lookups. Detected pitches are
+// compared as MIDI numbers from RecorderNoteMapper.midiFromFrequency.
+public final class CompiledScore {
+    // The note's letter has a sharp (C, D, F, G, A), so simplified mode also accepts letter + 1.
+    static final byte FLAG_LETTER_HAS_SHARP = 1;
+    // expectedHz comes from the recorder frequency table rather than equal temperament.
+    static final byte FLAG_MAPPED_FREQUENCY = 2;
+
+    final int[] midi;
+    final float[] expectedHz;
+    final int[] durationMs;
+    final byte[] flags;
+    // MIDI number of the natural note with the same letter and octave, or -1.
+    final int[] letterMidi;
+
+    private CompiledScore(int size) {
+        midi = new int[size];
+        expectedHz = new float[size];
+        durationMs = new int[size];
+        flags = new byte[size];
+        letterMidi = new int[size];
+    }
+
+    public static CompiledScore compile(List<NoteEvent> notes, RecorderNoteMapper mapper) {
+        CompiledScore score = new CompiledScore(notes.size());
+        for (int i = 0; i < notes.size(); i++) {
+            NoteEvent note = notes.get(i);
+            int midi = MusicNotation.midiFor(note.noteName, note.octave);
+            byte flags = 0;
+            float hz = mapper.frequencyFor(note.fullName());
+            if (hz > 0f) {
+                flags |= FLAG_MAPPED_FREQUENCY;
+            } else {
+                hz = (float) (440.0 * Math.pow(2.0, (midi - 69) / 12.0));
+            }
+            int letterMidi = -1;
+            if (note.noteName != null && note.noteName.length() > 0) {
+                char letter = Character.toUpperCase(note.noteName.charAt(0));
+                letterMidi = MusicNotation.midiFor(String.valueOf(letter), note.octave);
+                if (letter != 'E' && letter != 'B') {
+                    flags |= FLAG_LETTER_HAS_SHARP;
+                }
+            }
+            score.midi[i] = midi;
+            score.expectedHz[i] = hz;
+            score.durationMs[i] = note.durationMs();
+            score.flags[i] = flags;
+            score.letterMidi[i] = letterMidi;
+        }
+        return score;
+    }
+
+    public int size() {
+        return midi.length;
+    }
+
+    public int midi(int index) {
+        return midi[index];
+    }
+
+    public float expectedHz(int index) {
+        return expectedHz[index];
+    }
+
+    public int durationMs(int index) {
+        return durationMs[index];
+    }
+
+    // Same rule as PitchMatchUtil.samePitch for a detected note spelled the way the mapper
+    // spells it: equal MIDI numbers, or in simplified mode the same letter and octave.
+    public boolean matches(int index, int detectedMidi, boolean simplifiedAccidentalsMode) {
+        if (detectedMidi == midi[index]) {
+            return true;
+        }
+        if (!simplifiedAccidentalsMode || letterMidi[index] < 0) {
+            return false;
+        }
+        int natural = letterMidi[index];
+        return detectedMidi == natural
+                || ((flags[index] & FLAG_LETTER_HAS_SHARP) != 0 && detectedMidi == natural + 1);
+    }
+}
@@ -0,0 +1,51 @@
+package tatar.eljah.recorder;
+
+// Fixed-capacity history of floats: adding to a full ring drops the oldest value. Constant time
+// per add, no boxing and no allocation after construction. Not thread-safe; each view keeps its
+// own and touches it from one thread, the UI thread or SpectrogramView's render thread.
+final class FloatRing {
+    private final float[] values;
+    private int next;
+    private int size;
+
+    FloatRing(int capacity) {
+        values = new float[capacity];
+    }
+
+    void add(float value) {
+        values[next] = value;
+        next = next + 1 == values.length ? 0 : next + 1;
+        if (size < values.length) size++;
+    }
+
+    // The index-th oldest value still held, 0 being the oldest.
+    float get(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("index " + index + ", size " + size);
+        }
+        int slot = next - size + index;
+        return values[slot < 0 ? slot + values.length : slot];
+    }
+
+    // The most recent value; the ring must not be empty.
+    float last() {
+        return get(size - 1);
+    }
+
+    int size() {
+        return size;
+    }
+
+    int capacity() {
+        return values.length;
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    void clear() {
+        next = 0;
+        size = 0;
+    }
+}
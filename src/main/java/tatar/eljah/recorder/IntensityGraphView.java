@@ -9,15 +9,13 @@ import android.util.AttributeSet;
 import android.view.MotionEvent;
 import android.view.View;
 
-import java.util.ArrayList;
-import java.util.List;
-
 public class IntensityGraphView extends View {
     public interface OnThresholdChangedListener {
         void onThresholdChanged(float value);
     }
 
-    private final List<Float> history = new ArrayList<Float>();
+    private final FloatRing history = new FloatRing(300);
+    private final Path path = new Path();
     private final Paint linePaint = new Paint(Paint.ANTI_ALIAS_FLAG);
     private final Paint gridPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
     private final Paint thresholdPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
@@ -52,9 +50,6 @@ public class IntensityGraphView extends View {
 
     public void addIntensity(float value) {
         history.add(clamp(value));
-        if (history.size() > 300) {
-            history.remove(0);
-        }
         postInvalidateOnAnimation();
     }
 
@@ -77,7 +72,7 @@ public class IntensityGraphView extends View {
             return;
         }
 
-        Path path = new Path();
+        path.rewind();
         for (int i = 0; i < history.size(); i++) {
             float x = w * i / Math.max(1, history.size() - 1);
             float y = h - history.get(i) * h;
@@ -24,4 +24,13 @@ public class NoteEvent {
     public String fullName() {
         return noteName + octave;
     }
+
+    // Nominal playing time of the note value; the score carries no tempo.
+    public int durationMs() {
+        if ("16th".equals(duration)) return 120;
+        if ("eighth".equals(duration)) return 240;
+        if ("half".equals(duration)) return 900;
+        if ("whole".equals(duration)) return 1800;
+        return 450;
+    }
 }
@@ -0,0 +1,169 @@
+package tatar.eljah.recorder;
+
+import java.util.Arrays;
+
+// Where the notes of a score view are, sorted along one axis so that drawing and hit tests only
+// visit what is near the viewport or the finger: O(log n + nearby) instead of every note. The
+// axis is the caller's choice, along the staff for a single-line score, down the page for a
+// scanned sheet. Labels are kept as intervals along the same axis, sorted by their start, with a
+// running maximum of their ends so that a stab query can stop early. Rebuilding allocates only
+// when the note count grows.
+final class NoteLayoutIndex {
+    private int count;
+    // Sorted by along; rank -> note index.
+    private int[] order = new int[0];
+    private float[] along = new float[0];
+    private float[] across = new float[0];
+
+    private int labelCount;
+    // Sorted by start; rank -> note index.
+    private int[] labelOrder = new int[0];
+    private float[] labelStart = new float[0];
+    private float[] labelEnd = new float[0];
+    private float[] labelAcrossStart = new float[0];
+    private float[] labelAcrossEnd = new float[0];
+    private float[] labelEndMax = new float[0];
+    private long[] sortScratch = new long[0];
+
+    // Note i is at (alongPositions[i], acrossPositions[i]).
+    void setNotes(float[] alongPositions, float[] acrossPositions, int noteCount) {
+        count = noteCount;
+        if (order.length < noteCount) {
+            order = new int[noteCount];
+            along = new float[noteCount];
+            across = new float[noteCount];
+        }
+        sortByKey(alongPositions, noteCount, order);
+        for (int rank = 0; rank < noteCount; rank++) {
+            along[rank] = alongPositions[order[rank]];
+            across[rank] = acrossPositions[order[rank]];
+        }
+    }
+
+    // The label of note i covers [start[i], end[i]] along and [acrossStart[i], acrossEnd[i]] across.
+    void setLabels(float[] start, float[] end, float[] acrossStart, float[] acrossEnd, int noteCount) {
+        labelCount = noteCount;
+        if (labelOrder.length < noteCount) {
+            labelOrder = new int[noteCount];
+            labelStart = new float[noteCount];
+            labelEnd = new float[noteCount];
+            labelAcrossStart = new float[noteCount];
+            labelAcrossEnd = new float[noteCount];
+            labelEndMax = new float[noteCount];
+        }
+        sortByKey(start, noteCount, labelOrder);
+        float endMax = Float.NEGATIVE_INFINITY;
+        for (int rank = 0; rank < noteCount; rank++) {
+            int note = labelOrder[rank];
+            labelStart[rank] = start[note];
+            labelEnd[rank] = end[note];
+            labelAcrossStart[rank] = acrossStart[note];
+            labelAcrossEnd[rank] = acrossEnd[note];
+            endMax = Math.max(endMax, end[note]);
+            labelEndMax[rank] = endMax;
+        }
+    }
+
+    int size() {
+        return count;
+    }
+
+    // First rank at or after position along the axis.
+    int firstRankFrom(float position) {
+        int low = 0;
+        int high = count;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (along[mid] < position) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    // First rank after position along the axis; ranks [firstRankFrom(a), endRankAt(b)) lie in [a, b].
+    int endRankAt(float position) {
+        int low = 0;
+        int high = count;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (along[mid] <= position) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    int noteAt(int rank) {
+        return order[rank];
+    }
+
+    float acrossAt(int rank) {
+        return across[rank];
+    }
+
+    // Closest note within radius of the point, or -1.
+    int nearestNote(float alongPosition, float acrossPosition, float radius) {
+        int best = -1;
+        float bestDistance = radius * radius;
+        int end = endRankAt(alongPosition + radius);
+        for (int rank = firstRankFrom(alongPosition - radius); rank < end; rank++) {
+            float d1 = along[rank] - alongPosition;
+            float d2 = across[rank] - acrossPosition;
+            float distance = d1 * d1 + d2 * d2;
+            if (distance <= bestDistance) {
+                bestDistance = distance;
+                best = order[rank];
+            }
+        }
+        return best;
+    }
+
+    // Note whose label contains the point, or -1.
+    int labelAt(float alongPosition, float acrossPosition) {
+        int low = 0;
+        int high = labelCount;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (labelStart[mid] <= alongPosition) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        // Every label at a lower rank starts before the point; none of them reaches it once the
+        // running maximum of their ends falls short.
+        for (int rank = low - 1; rank >= 0 && labelEndMax[rank] >= alongPosition; rank--) {
+            if (labelEnd[rank] >= alongPosition
+                    && acrossPosition >= labelAcrossStart[rank] && acrossPosition <= labelAcrossEnd[rank]) {
+                return labelOrder[rank];
+            }
+        }
+        return -1;
+    }
+
+    // Indices 0..n-1 ordered by key, ties in index order.
+    private void sortByKey(float[] keys, int n, int[] target) {
+        if (sortScratch.length < n) {
+            sortScratch = new long[n];
+        }
+        long[] packed = sortScratch;
+        for (int i = 0; i < n; i++) {
+            packed[i] = ((long) sortableBits(keys[i]) << 32) | i;
+        }
+        Arrays.sort(packed, 0, n);
+        for (int i = 0; i < n; i++) {
+            target[i] = (int) packed[i];
+        }
+    }
+
+    // Float bits remapped so that signed int order matches float order.
+    private static int sortableBits(float value) {
+        int bits = Float.floatToIntBits(value);
+        return bits < 0 ? bits ^ 0x7fffffff : bits;
+    }
+}
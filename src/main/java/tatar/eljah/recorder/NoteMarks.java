@@ -0,0 +1,95 @@
+package tatar.eljah.recorder;
+
+import java.util.Arrays;
+
+// Per-note marks of an attempt (matched, wrong pitch, wrong duration) as bitsets. Each 64-note
+// word carries the epoch it was written in and reads as empty once the epoch moves on, so
+// clearing every note is a counter increment rather than a pass over the score.
+final class NoteMarks {
+    static final int MATCHED = 0;
+    static final int MISMATCH = 1;
+    static final int DURATION_MISMATCH = 2;
+    private static final int KINDS = 3;
+
+    private long[][] bits = new long[KINDS][0];
+    private int[] wordEpoch = new int[0];
+    private int epoch;
+    private int size;
+
+    NoteMarks(int size) {
+        resize(size);
+    }
+
+    int size() {
+        return size;
+    }
+
+    // Allocates for a new note count; all marks are cleared.
+    void resize(int size) {
+        this.size = size;
+        int words = (size + 63) >>> 6;
+        for (int kind = 0; kind < KINDS; kind++) {
+            bits[kind] = new long[words];
+        }
+        wordEpoch = new int[words];
+        epoch = 0;
+    }
+
+    boolean get(int kind, int index) {
+        if (index < 0 || index >= size) {
+            return false;
+        }
+        int word = index >>> 6;
+        return wordEpoch[word] == epoch && (bits[kind][word] & (1L << index)) != 0L;
+    }
+
+    void set(int kind, int index, boolean value) {
+        if (index < 0 || index >= size) {
+            return;
+        }
+        int word = freshWord(index >>> 6);
+        if (value) {
+            bits[kind][word] |= 1L << index;
+        } else {
+            bits[kind][word] &= ~(1L << index);
+        }
+    }
+
+    void clearAll() {
+        if (epoch == Integer.MAX_VALUE) {
+            // Stamps would repeat after the wrap; pay for one real clear.
+            for (int kind = 0; kind < KINDS; kind++) {
+                Arrays.fill(bits[kind], 0L);
+            }
+            Arrays.fill(wordEpoch, 0);
+            epoch = 0;
+        } else {
+            epoch++;
+        }
+    }
+
+    // Clears notes from (inclusive) to to (exclusive), a word at a time.
+    void clear(int from, int to) {
+        from = Math.max(0, from);
+        to = Math.min(size, to);
+        while (from < to) {
+            int word = freshWord(from >>> 6);
+            int end = Math.min(to, (word + 1) << 6);
+            long mask = end - from == 64 ? -1L : ((1L << (end - from)) - 1L) << from;
+            for (int kind = 0; kind < KINDS; kind++) {
+                bits[kind][word] &= ~mask;
+            }
+            from = end;
+        }
+    }
+
+    private int freshWord(int word) {
+        if (wordEpoch[word] != epoch) {
+            for (int kind = 0; kind < KINDS; kind++) {
+                bits[kind][word] = 0L;
+            }
+            wordEpoch[word] = epoch;
+        }
+        return word;
+    }
+}
@@ -0,0 +1,43 @@
+package tatar.eljah.recorder;
+
+import java.util.Arrays;
+
+// First sample of every note of a rendered piece, for mapping a playback position to the note
+// being heard with a binary search.
+final class NoteOnsetTable {
+    // One entry per note plus the total length at the end; non-decreasing.
+    private final int[] starts;
+
+    NoteOnsetTable(int[] starts) {
+        this.starts = starts;
+    }
+
+    int noteCount() {
+        return starts.length - 1;
+    }
+
+    int startOf(int note) {
+        return starts[note];
+    }
+
+    int lengthFrames() {
+        return starts[starts.length - 1];
+    }
+
+    // Index of the note playing at frame, clamped to the first and last note.
+    int noteAt(long frame) {
+        if (frame <= 0L) {
+            return 0;
+        }
+        int key = (int) Math.min(frame, Integer.MAX_VALUE);
+        int found = Arrays.binarySearch(starts, 0, noteCount(), key);
+        // Zero-length notes share a start with the next one; the later note is the one heard.
+        if (found >= 0) {
+            while (found + 1 < noteCount() && starts[found + 1] == key) {
+                found++;
+            }
+            return found;
+        }
+        return Math.max(0, -found - 2);
+    }
+}
@@ -1,9 +1,11 @@
 package tatar.eljah.recorder;
 
 import android.content.Context;
+import android.graphics.Bitmap;
 import android.graphics.Canvas;
 import android.graphics.Color;
 import android.graphics.Paint;
+import android.graphics.Rect;
 import android.graphics.RectF;
 import android.util.AttributeSet;
 import android.view.MotionEvent;
@@ -37,13 +39,31 @@ public class PitchOverlayView extends View {
     private final Paint activeLabelPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
     private final Paint expectedPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
     private final Paint spectrogramGridPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
-    private final Paint heatPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
 
     private final List<NoteEvent> notes = new ArrayList<NoteEvent>();
-    private final List<Float> history = new ArrayList<Float>();
-    private final List<float[]> spectrumHistory = new ArrayList<float[]>();
-    private final List<NoteDrawInfo> noteDrawInfos = new ArrayList<NoteDrawInfo>();
-    private final List<LabelHitInfo> labelHitInfos = new ArrayList<LabelHitInfo>();
+    private final FloatRing history = new FloatRing(240);
+    private final List<NoteGlyph> noteGlyphs = new ArrayList<NoteGlyph>();
+    // Notes and labels by x, so drawing and taps only visit the ones under the clip or finger.
+    private final NoteLayoutIndex layoutIndex = new NoteLayoutIndex();
+    private final Rect clipRect = new Rect();
+    private float noteHitRadius;
+    private float maxGlyphReach;
+    private final Paint textProbePaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+    private final Rect dirtyRect = new Rect();
+    private final RectF noteOval = new RectF();
+
+    // Staff, ledger lines, heads, stems and labels in their plain colours, drawn once per size,
+    // notes list and pointer (the spacing opens up around the pointer). Marks and the pointer
+    // colour are painted over it on every draw, so they only cost their own notes.
+    private Bitmap scoreLayer;
+    private boolean scoreLayerValid;
+    private float scoreLayerLabelBottom;
+    private float spectrogramTopPx;
+    private float spectrogramBottomPx;
+    private String[] noteLabels;
+    private float estimatedRowsWidth = -1f;
+    private float estimatedRowsTextSize;
+    private int estimatedRows;
 
     private final Paint mismatchNotePaint = new Paint(Paint.ANTI_ALIAS_FLAG);
     private final Paint mismatchLabelPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
@@ -52,16 +72,16 @@ public class PitchOverlayView extends View {
     private final Paint stemPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
 
     private OnPlayedNoteClickListener playedNoteClickListener;
-    private final List<String> mismatchActualByIndex = new ArrayList<String>();
-    private final List<Boolean> matchedByIndex = new ArrayList<Boolean>();
-    private final List<String> matchedActualByIndex = new ArrayList<String>();
-    private final List<Boolean> durationMismatchByIndex = new ArrayList<Boolean>();
+    private final NoteMarks marks = new NoteMarks(0);
+    // Only read while the matching mark is set, so clearing marks leaves them in place.
+    private String[] mismatchActualByIndex = new String[0];
+    private String[] matchedActualByIndex = new String[0];
 
     private float expectedHz;
     private float actualHz;
     private int pointer;
-    private int lastSpectrumSampleRate = 22050;
     private boolean micMode = true;
+    private boolean spectrogramPanelEnabled = true;
 
     public PitchOverlayView(Context context, AttributeSet attrs) {
         super(context, attrs);
@@ -102,21 +122,40 @@ public class PitchOverlayView extends View {
     public void setNotes(List<NoteEvent> pieceNotes) { /* unchanged */
         notes.clear();
         if (pieceNotes != null) notes.addAll(pieceNotes);
-        mismatchActualByIndex.clear(); matchedByIndex.clear(); matchedActualByIndex.clear(); durationMismatchByIndex.clear();
-        for (int i = 0; i < notes.size(); i++) { mismatchActualByIndex.add(null); matchedByIndex.add(false); matchedActualByIndex.add(null); durationMismatchByIndex.add(false);} invalidate();
+        marks.resize(notes.size()); mismatchActualByIndex = new String[notes.size()]; matchedActualByIndex = new String[notes.size()];
+        noteLabels = null; estimatedRowsWidth = -1f; invalidateScoreLayer();
     }
-    public void markMismatch(int index, String actualFullName) { if (index < 0 || index >= notes.size()) return; ensureMismatchCapacity(); mismatchActualByIndex.set(index, actualFullName); invalidate(); }
-    public void clearMismatch(int index) { if (index < 0 || index >= notes.size()) return; ensureMismatchCapacity(); mismatchActualByIndex.set(index, null); invalidate(); }
-    public void markMatched(int index, String actualFullName) { if (index < 0 || index >= notes.size()) return; ensureMatchedCapacity(); matchedByIndex.set(index, true); matchedActualByIndex.set(index, actualFullName); invalidate(); }
-    public void clearMatched(int index) { if (index < 0 || index >= notes.size()) return; ensureMatchedCapacity(); matchedByIndex.set(index, false); matchedActualByIndex.set(index, null); invalidate(); }
-    public void markDurationMismatch(int index) { if (index < 0 || index >= notes.size()) return; ensureDurationMismatchCapacity(); durationMismatchByIndex.set(index, true); invalidate(); }
-    public void clearDurationMismatch(int index) { if (index < 0 || index >= notes.size()) return; ensureDurationMismatchCapacity(); durationMismatchByIndex.set(index, false); invalidate(); }
+    public void markMismatch(int index, String actualFullName) { if (index < 0 || index >= notes.size()) return; marks.set(NoteMarks.MISMATCH, index, true); mismatchActualByIndex[index] = actualFullName; invalidateNote(index); }
+    public void clearMismatch(int index) { if (index < 0 || index >= notes.size()) return; marks.set(NoteMarks.MISMATCH, index, false); invalidateNote(index); }
+    public void markMatched(int index, String actualFullName) { if (index < 0 || index >= notes.size()) return; marks.set(NoteMarks.MATCHED, index, true); matchedActualByIndex[index] = actualFullName; invalidateNote(index); }
+    public void clearMatched(int index) { if (index < 0 || index >= notes.size()) return; marks.set(NoteMarks.MATCHED, index, false); invalidateNote(index); }
+    public void markDurationMismatch(int index) { if (index < 0 || index >= notes.size()) return; marks.set(NoteMarks.DURATION_MISMATCH, index, true); invalidateNote(index); }
+    public void clearDurationMismatch(int index) { if (index < 0 || index >= notes.size()) return; marks.set(NoteMarks.DURATION_MISMATCH, index, false); invalidateNote(index); }
+    // Clears every mark with one redraw.
+    public void clearAllMarks() { marks.clearAll(); invalidate(); }
+    // Clears the marks of notes from (inclusive) to to (exclusive) with one redraw.
+    public void clearMarks(int from, int to) { marks.clear(from, to); invalidate(); }
     public boolean isDurationMismatch(int index) { return hasDurationMismatch(index); }
     public void setOnPlayedNoteClickListener(OnPlayedNoteClickListener listener) { this.playedNoteClickListener = listener; }
-    public void setPointer(int pointer) { this.pointer = pointer; invalidate(); }
-    public void setFrequencies(float expectedHz, float actualHz) { this.expectedHz = expectedHz; this.actualHz = actualHz; history.add(actualHz); if (history.size() > 240) history.remove(0); invalidate(); }
-    public void setMicMode(boolean micMode) { this.micMode = micMode; invalidate(); }
-    public void setSpectrum(float[] magnitudes, int sampleRate) { if (magnitudes == null || magnitudes.length == 0) return; lastSpectrumSampleRate = sampleRate; float[] copy = new float[magnitudes.length]; System.arraycopy(magnitudes, 0, copy, 0, magnitudes.length); spectrumHistory.add(copy); if (spectrumHistory.size() > 260) spectrumHistory.remove(0); invalidate(); }
+    public void setPointer(int pointer) { if (pointer == this.pointer) return; this.pointer = pointer; invalidateScoreLayer(); }
+    public void setFrequencies(float expectedHz, float actualHz) { this.expectedHz = expectedHz; this.actualHz = actualHz; history.add(actualHz); invalidateSpectrogram(); }
+    public void setMicMode(boolean micMode) { this.micMode = micMode; invalidateSpectrogram(); }
+    // Off when a SpectrogramView shows the analysis instead: the view then only holds the score.
+    public void setSpectrogramPanelEnabled(boolean enabled) { if (enabled == spectrogramPanelEnabled) return; spectrogramPanelEnabled = enabled; invalidateScoreLayer(); }
+
+    private void invalidateScoreLayer() { scoreLayerValid = false; invalidate(); }
+    // Only the spectrogram panel changed; the score layer is reused as it is.
+    private void invalidateSpectrogram() {
+        if (!spectrogramPanelEnabled) return;
+        if (spectrogramBottomPx <= spectrogramTopPx) { invalidate(); return; }
+        invalidate(0, (int) spectrogramTopPx, getWidth(), (int) Math.ceil(spectrogramBottomPx));
+    }
+    // Only the colour of one note changed: redraw its head, stem and label.
+    private void invalidateNote(int index) {
+        if (!scoreLayerValid || index >= noteGlyphs.size()) { invalidate(); return; }
+        noteGlyphs.get(index).bounds.roundOut(dirtyRect);
+        invalidate(dirtyRect);
+    }
 
     @Override
     protected void onDraw(Canvas canvas) {
@@ -130,7 +169,7 @@ public class PitchOverlayView extends View {
                 requiredLabelPanelHeight(estimatedLabelRows, baseTextHeight));
 
         float staffHeight = STAFF_PANEL_MIN_HEIGHT_PX;
-        float spectrogramHeight = SPECTROGRAM_PANEL_BASE_HEIGHT_PX;
+        float spectrogramHeight = spectrogramPanelEnabled ? SPECTROGRAM_PANEL_BASE_HEIGHT_PX : 0f;
 
         float requiredHeight = STAFF_TOP_PADDING_PX + staffHeight
                 + NOTE_LABEL_BLOCK_GAP_PX + desiredLabelHeight
@@ -158,10 +197,48 @@ public class PitchOverlayView extends View {
         float spectrogramTop = labelBottom + NOTE_LABEL_BLOCK_GAP_PX;
         float spectrogramBottom = spectrogramTop + spectrogramHeight;
 
-        drawStaffAndNotes(canvas, w, staffTop, staffBottom, labelTop, labelBottom);
+        drawScore(canvas, w, staffTop, staffBottom, labelTop, labelBottom);
+        spectrogramTopPx = spectrogramTop;
+        spectrogramBottomPx = spectrogramBottom;
         drawSpectrogram(canvas, w, spectrogramTop, spectrogramBottom);
     }
 
+    private void drawScore(Canvas canvas, float w, float staffTop, float staffBottom, float labelTop, float labelBottom) {
+        int width = (int) w;
+        int height = (int) Math.ceil(labelBottom);
+        if (width <= 0 || height <= 0) return;
+        if (scoreLayer == null || scoreLayer.getWidth() != width || scoreLayer.getHeight() != height) {
+            scoreLayer = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+            scoreLayerValid = false;
+        }
+        if (!scoreLayerValid || scoreLayerLabelBottom != labelBottom) {
+            scoreLayer.eraseColor(Color.TRANSPARENT);
+            drawStaffAndNotes(new Canvas(scoreLayer), w, staffTop, staffBottom, labelTop, labelBottom);
+            scoreLayerLabelBottom = labelBottom;
+            scoreLayerValid = true;
+        }
+        canvas.drawBitmap(scoreLayer, 0f, 0f, null);
+        drawNoteStates(canvas);
+    }
+
+    // Repaints the notes that are not in their plain colours over the score layer.
+    private void drawNoteStates(Canvas canvas) {
+        if (!canvas.getClipBounds(clipRect)) return;
+        int end = layoutIndex.endRankAt(clipRect.right + maxGlyphReach);
+        for (int rank = layoutIndex.firstRankFrom(clipRect.left - maxGlyphReach); rank < end; rank++) {
+            int i = layoutIndex.noteAt(rank);
+            boolean mismatch = hasMismatch(i);
+            boolean durationMismatch = hasDurationMismatch(i);
+            boolean active = isMatched(i) || i == pointer;
+            if (!mismatch && !durationMismatch && !active) continue;
+            NoteGlyph glyph = noteGlyphs.get(i);
+            Paint circlePaint = mismatch ? mismatchNotePaint : (durationMismatch ? durationMismatchNotePaint : activeNotePaint);
+            Paint textPaint = mismatch ? mismatchLabelPaint : (durationMismatch ? durationMismatchNotePaint : activeLabelPaint);
+            drawDurationAwareNote(canvas, glyph.note, glyph.x, glyph.y, glyph.noteRadius, glyph.stemOffsetX, glyph.stemUp, circlePaint);
+            canvas.drawText(glyph.label, glyph.labelX, glyph.labelY, textPaint);
+        }
+    }
+
     private void ensureOverlayHeight(float minHeightPx) {
         android.view.ViewGroup.LayoutParams lp = getLayoutParams();
         if (lp == null) {
@@ -186,9 +263,9 @@ public class PitchOverlayView extends View {
     }
 
     private float textHeightForSize(float textSizePx) {
-        Paint probe = new Paint(labelPaint);
-        probe.setTextSize(textSizePx);
-        Paint.FontMetrics fm = probe.getFontMetrics();
+        textProbePaint.set(labelPaint);
+        textProbePaint.setTextSize(textSizePx);
+        Paint.FontMetrics fm = textProbePaint.getFontMetrics();
         return fm.descent - fm.ascent;
     }
 
@@ -213,8 +290,9 @@ public class PitchOverlayView extends View {
         }
 
         if (notes.isEmpty()) {
-            noteDrawInfos.clear();
-            labelHitInfos.clear();
+            noteGlyphs.clear();
+            layoutIndex.setNotes(new float[0], new float[0], 0);
+            layoutIndex.setLabels(new float[0], new float[0], new float[0], new float[0], 0);
             return;
         }
 
@@ -235,8 +313,10 @@ public class PitchOverlayView extends View {
         List<LabelLayout> labelsToDraw = new ArrayList<LabelLayout>();
         List<List<RectF>> labelRowBounds = new ArrayList<List<RectF>>();
 
-        noteDrawInfos.clear();
-        labelHitInfos.clear();
+        noteGlyphs.clear();
+        int count = notes.size();
+        float[] noteYs = new float[count];
+        String[] labels = noteLabels();
         for (int i = 0; i < notes.size(); i++) {
             NoteEvent note = notes.get(i);
             float x = noteXs[i];
@@ -244,15 +324,11 @@ public class PitchOverlayView extends View {
             float y = yForStaffStep(step, bottomLineY, lineGap);
             drawLedgerLines(canvas, x, step, lineGap, bottomLineY, noteRadius);
 
-            boolean mismatch = hasMismatch(i);
-            boolean matched = isMatched(i);
-            boolean durationMismatch = hasDurationMismatch(i);
-            Paint circlePaint = mismatch ? mismatchNotePaint : (durationMismatch ? durationMismatchNotePaint : ((matched || i == pointer) ? activeNotePaint : notePaint));
             boolean stemUp = stemUpForNote(i, y, firstLineY, bottomLineY, noteStep, noteRadius);
             float stemOffsetX = stemOffsetForIndex(i, noteStep, noteRadius);
-            drawDurationAwareNote(canvas, note, x, y, noteRadius, stemOffsetX, stemUp, circlePaint);
+            drawDurationAwareNote(canvas, note, x, y, noteRadius, stemOffsetX, stemUp, notePaint);
 
-            String label = MusicNotation.toLocalizedLabel(getContext(), note.noteName, note.octave);
+            String label = labels[i];
             float textWidth = labelPaint.measureText(label);
             float columnCenterX = positionLayout.labelColumnXs[i];
             float textLeft = Math.max(0f, Math.min(w - textWidth, columnCenterX - textWidth / 2f));
@@ -264,8 +340,9 @@ public class PitchOverlayView extends View {
             }
             labelRowBounds.get(row).add(new RectF(textLeft, 0f, textRight, 0f));
 
-            labelsToDraw.add(new LabelLayout(i, label, textLeft, row, (matched || i == pointer), mismatch, durationMismatch));
-            noteDrawInfos.add(new NoteDrawInfo(i, x, y, Math.max(noteRadius * 2f, 28f)));
+            labelsToDraw.add(new LabelLayout(i, label, textLeft, row));
+            noteYs[i] = y;
+            noteGlyphs.add(new NoteGlyph(note, x, y, noteRadius, stemOffsetX, stemUp, label));
         }
 
         int rowCount = Math.max(1, labelRowBounds.size());
@@ -278,16 +355,30 @@ public class PitchOverlayView extends View {
         float baselineOffset = -fm.ascent;
         float firstBaselineY = labelTop + topInset + baselineOffset;
 
+        float[] labelLefts = new float[count];
+        float[] labelRights = new float[count];
+        float[] labelTops = new float[count];
+        float[] labelBottoms = new float[count];
         for (LabelLayout labelLayout : labelsToDraw) {
-            Paint textPaint = labelLayout.mismatch ? mismatchLabelPaint : (labelLayout.durationMismatch ? durationMismatchNotePaint : (labelLayout.active ? activeLabelPaint : labelPaint));
             float textY = firstBaselineY + labelLayout.y * baselineStep;
-            canvas.drawText(labelLayout.text, labelLayout.x, textY, textPaint);
+            canvas.drawText(labelLayout.text, labelLayout.x, textY, labelPaint);
+
+            float textWidth = labelPaint.measureText(labelLayout.text);
+            float top = textY + fm.ascent;
+            float bottom = textY + fm.descent;
+            labelLefts[labelLayout.index] = labelLayout.x;
+            labelRights[labelLayout.index] = labelLayout.x + textWidth;
+            labelTops[labelLayout.index] = top;
+            labelBottoms[labelLayout.index] = bottom;
+            noteGlyphs.get(labelLayout.index).placeLabel(labelLayout.x, textY, top, labelLayout.x + textWidth, bottom);
+        }
 
-            Paint.FontMetrics metrics = textPaint.getFontMetrics();
-            float textWidth = textPaint.measureText(labelLayout.text);
-            float top = textY + metrics.ascent;
-            float bottom = textY + metrics.descent;
-            labelHitInfos.add(new LabelHitInfo(labelLayout.index, labelLayout.x, top, labelLayout.x + textWidth, bottom));
+        layoutIndex.setNotes(noteXs, noteYs, count);
+        layoutIndex.setLabels(labelLefts, labelRights, labelTops, labelBottoms, count);
+        noteHitRadius = Math.max(noteRadius * 2f, 28f);
+        maxGlyphReach = 0f;
+        for (NoteGlyph glyph : noteGlyphs) {
+            maxGlyphReach = Math.max(maxGlyphReach, Math.max(glyph.x - glyph.bounds.left, glyph.bounds.right - glyph.x));
         }
     }
 
@@ -311,14 +402,30 @@ public class PitchOverlayView extends View {
         if (notes.isEmpty()) {
             return 1;
         }
+        if (w == estimatedRowsWidth && labelPaint.getTextSize() == estimatedRowsTextSize) {
+            return estimatedRows;
+        }
         float maxLabelWidth = 0f;
-        for (NoteEvent note : notes) {
-            String label = MusicNotation.toLocalizedLabel(getContext(), note.noteName, note.octave);
+        for (String label : noteLabels()) {
             maxLabelWidth = Math.max(maxLabelWidth, labelPaint.measureText(label));
         }
         float usableWidth = Math.max(1f, w - 46f);
         int labelsPerRow = Math.max(1, (int) Math.floor(usableWidth / Math.max(1f, maxLabelWidth + NOTE_LABEL_MIN_GAP_PX)));
-        return Math.max(1, (int) Math.ceil((double) notes.size() / (double) labelsPerRow));
+        estimatedRowsWidth = w;
+        estimatedRowsTextSize = labelPaint.getTextSize();
+        estimatedRows = Math.max(1, (int) Math.ceil((double) notes.size() / (double) labelsPerRow));
+        return estimatedRows;
+    }
+
+    private String[] noteLabels() {
+        if (noteLabels == null) {
+            noteLabels = new String[notes.size()];
+            for (int i = 0; i < noteLabels.length; i++) {
+                NoteEvent note = notes.get(i);
+                noteLabels[i] = MusicNotation.toLocalizedLabel(getContext(), note.noteName, note.octave);
+            }
+        }
+        return noteLabels;
     }
 
     private int selectLabelRow(float textLeft, float textRight, List<List<RectF>> labelRowBounds) {
@@ -411,22 +518,19 @@ public class PitchOverlayView extends View {
         return bottomLineY - step * (lineGap / 2f);
     }
 
-    private boolean hasMismatch(int index) { ensureMismatchCapacity(); return index >= 0 && index < mismatchActualByIndex.size() && mismatchActualByIndex.get(index) != null; }
-    private boolean isMatched(int index) { ensureMatchedCapacity(); return index >= 0 && index < matchedByIndex.size() && matchedByIndex.get(index); }
-    private boolean hasDurationMismatch(int index) { ensureDurationMismatchCapacity(); return index >= 0 && index < durationMismatchByIndex.size() && durationMismatchByIndex.get(index); }
-    private void ensureMismatchCapacity() { while (mismatchActualByIndex.size() < notes.size()) mismatchActualByIndex.add(null); }
-    private void ensureDurationMismatchCapacity() { while (durationMismatchByIndex.size() < notes.size()) durationMismatchByIndex.add(false); }
-    private void ensureMatchedCapacity() { while (matchedByIndex.size() < notes.size()) matchedByIndex.add(false); while (matchedActualByIndex.size() < notes.size()) matchedActualByIndex.add(null); }
+    private boolean hasMismatch(int index) { return marks.get(NoteMarks.MISMATCH, index) && mismatchActualByIndex[index] != null; }
+    private boolean isMatched(int index) { return marks.get(NoteMarks.MATCHED, index); }
+    private boolean hasDurationMismatch(int index) { return marks.get(NoteMarks.DURATION_MISMATCH, index); }
 
     public String actualPitchFor(int index) {
         if (index < 0 || index >= notes.size()) {
             return null;
         }
         if (hasMismatch(index)) {
-            return mismatchActualByIndex.get(index);
+            return mismatchActualByIndex[index];
         }
         if (isMatched(index)) {
-            return matchedActualByIndex.get(index);
+            return matchedActualByIndex[index];
         }
         return null;
     }
@@ -437,37 +541,20 @@ public class PitchOverlayView extends View {
         if (playedNoteClickListener == null) return true;
         float touchX = event.getX(); float touchY = event.getY();
 
-        for (LabelHitInfo labelHitInfo : labelHitInfos) {
-            if (touchX >= labelHitInfo.left && touchX <= labelHitInfo.right
-                    && touchY >= labelHitInfo.top && touchY <= labelHitInfo.bottom) {
-                int index = labelHitInfo.index;
-                String actual = hasMismatch(index) ? mismatchActualByIndex.get(index)
-                        : (isMatched(index) ? matchedActualByIndex.get(index) : null);
-                NoteEvent expected = notes.get(index);
-                playedNoteClickListener.onPlayedNoteClick(index, expected.fullName(), actual);
-                return true;
-            }
-        }
-
-        for (NoteDrawInfo info : noteDrawInfos) {
-            float dx = touchX - info.cx; float dy = touchY - info.cy;
-            if (dx * dx + dy * dy <= info.hitRadius * info.hitRadius) {
-                boolean mismatch = hasMismatch(info.index);
-                boolean matched = isMatched(info.index);
-                String actual = mismatch ? mismatchActualByIndex.get(info.index)
-                        : (matched ? matchedActualByIndex.get(info.index) : null);
-                NoteEvent expected = notes.get(info.index);
-                playedNoteClickListener.onPlayedNoteClick(info.index, expected.fullName(), actual);
-                return true;
-            }
-        }
+        int index = layoutIndex.labelAt(touchX, touchY);
+        if (index < 0) index = layoutIndex.nearestNote(touchX, touchY, noteHitRadius);
+        if (index < 0 || index >= notes.size()) return true;
+        String actual = hasMismatch(index) ? mismatchActualByIndex[index]
+                : (isMatched(index) ? matchedActualByIndex[index] : null);
+        NoteEvent expected = notes.get(index);
+        playedNoteClickListener.onPlayedNoteClick(index, expected.fullName(), actual);
         return true;
     }
 
     public interface OnPlayedNoteClickListener { void onPlayedNoteClick(int index, String expectedFullName, String actualFullName); }
 
     private void drawDurationAwareNote(Canvas canvas, NoteEvent note, float x, float y, float noteRadius, float stemOffsetX, boolean stemUp, Paint fillPaint) {
-        RectF oval = new RectF(x - noteRadius, y - noteRadius * 0.75f, x + noteRadius, y + noteRadius * 0.75f);
+        RectF oval = noteOval; oval.set(x - noteRadius, y - noteRadius * 0.75f, x + noteRadius, y + noteRadius * 0.75f);
         String duration = note == null ? null : note.duration;
         boolean whole = "whole".equals(duration); boolean half = "half".equals(duration); boolean hollow = whole || half;
         if (hollow) { noteStrokePaint.setColor(fillPaint.getColor()); canvas.drawOval(oval, noteStrokePaint); } else { canvas.drawOval(oval, fillPaint); }
@@ -514,15 +601,20 @@ public class PitchOverlayView extends View {
         }
     }
 
-    private static final class LabelLayout { private final int index; private final String text; private final float x; private final float y; private final boolean active; private final boolean mismatch; private final boolean durationMismatch;
-        private LabelLayout(int index, String text, float x, float y, boolean active, boolean mismatch, boolean durationMismatch) { this.index = index; this.text = text; this.x = x; this.y = y; this.active = active; this.mismatch = mismatch; this.durationMismatch = durationMismatch; } }
+    private static final class LabelLayout { private final int index; private final String text; private final float x; private final float y;
+        private LabelLayout(int index, String text, float x, float y) { this.index = index; this.text = text; this.x = x; this.y = y; } }
+
+    // Where one note and its label were drawn into the score layer, for repainting it in another
+    // colour; bounds covers both, with room for stems and flags.
+    private static final class NoteGlyph { private final NoteEvent note; private final float x; private final float y; private final float noteRadius; private final float stemOffsetX; private final boolean stemUp; private final String label; private float labelX; private float labelY; private final RectF bounds;
+        private NoteGlyph(NoteEvent note, float x, float y, float noteRadius, float stemOffsetX, boolean stemUp, String label) { this.note = note; this.x = x; this.y = y; this.noteRadius = noteRadius; this.stemOffsetX = stemOffsetX; this.stemUp = stemUp; this.label = label;
+            float reach = noteRadius * 3f + Math.abs(stemOffsetX); bounds = new RectF(x - reach, y - reach, x + reach, y + reach); }
+        private void placeLabel(float x, float baseline, float top, float right, float bottom) { labelX = x; labelY = baseline; bounds.union(x - 1f, top - 1f, right + 1f, bottom + 1f); } }
 
-    private static final class LabelHitInfo { private final int index; private final float left; private final float top; private final float right; private final float bottom;
-        private LabelHitInfo(int index, float left, float top, float right, float bottom) { this.index = index; this.left = left; this.top = top; this.right = right; this.bottom = bottom; } }
 
     private void drawSpectrogram(Canvas canvas, float w, float top, float bottom) {
         if (bottom <= top) return;
-        drawSpectrogramGrid(canvas, w, top, bottom); drawSpectrogramHeatmap(canvas, w, top, bottom);
+        drawSpectrogramGrid(canvas, w, top, bottom);
         if (micMode && expectedHz > 0f) {
             float guideHz = Math.min(expectedHz * 2f, MAX_SPECTROGRAM_HZ);
             float expectedY = yForFrequency(guideHz, top, bottom);
@@ -538,31 +630,11 @@ public class PitchOverlayView extends View {
             canvas.drawText(((int) hz) + " Hz", 8f, y - 4f, labelPaint);
         }
     }
-    private void drawSpectrogramHeatmap(Canvas canvas, float w, float top, float bottom) {
-        if (spectrumHistory.isEmpty()) return;
-        int columns = spectrumHistory.size(); float colW = Math.max(1f, w / Math.max(1, columns));
-        for (int x = 0; x < columns; x++) {
-            float[] frame = spectrumHistory.get(x); if (frame == null || frame.length == 0) continue;
-            int bins = frame.length; float frameMax = max(frame); if (frameMax <= 0f) frameMax = 1f;
-            for (int bin = 0; bin < bins; bin++) {
-                float hz = bin * lastSpectrumSampleRate / (2f * bins); if (hz > MAX_SPECTROGRAM_HZ) break;
-                float nextHz = (bin + 1) * lastSpectrumSampleRate / (2f * bins);
-                float yTop = yForFrequency(nextHz, top, bottom); float yBottom = yForFrequency(hz, top, bottom);
-                float intensity = normalizeMagnitude(frame[bin], frameMax);
-                heatPaint.setColor(heatColor(intensity)); heatPaint.setStyle(Paint.Style.FILL);
-                float left = x * colW; canvas.drawRect(left, yTop, left + colW + 1f, yBottom, heatPaint);
-            }
-        }
-    }
-    private float normalizeMagnitude(float value, float frameMax) { if (value <= 0f || frameMax <= 0f) return 0f; return Math.max(0f, Math.min(1f, value / frameMax)); }
-    private int heatColor(float intensity) { float clamped = Math.max(0f, Math.min(1f, intensity)); float hue = (1f - clamped) * 240f; return Color.HSVToColor(new float[]{hue, 1f, clamped}); }
-    private float max(float[] values) { float max = 0f; for (float value : values) if (value > max) max = value; return max; }
     private int diatonicStepFromBottomLineE4(String noteName, int octave) { int letterIndex = letterIndex(noteName); int absolute = octave * 7 + letterIndex; int e4Absolute = 4 * 7 + 2; return absolute - e4Absolute; }
     private int letterIndex(String noteName) {
         if (noteName == null || noteName.length() == 0) return 0; char letter = Character.toUpperCase(noteName.charAt(0));
         if (letter == 'C') return 0; if (letter == 'D') return 1; if (letter == 'E') return 2; if (letter == 'F') return 3; if (letter == 'G') return 4; if (letter == 'A') return 5; return 6;
     }
     private int flagCountForDuration(String duration) { if ("eighth".equals(duration)) return 1; if ("16th".equals(duration)) return 2; return 0; }
-    private static final class NoteDrawInfo { private final int index; private final float cx; private final float cy; private final float hitRadius; private NoteDrawInfo(int index, float cx, float cy, float hitRadius) { this.index = index; this.cx = cx; this.cy = cy; this.hitRadius = hitRadius; } }
     private float yForFrequency(float hz, float top, float bottom) { float clamped = Math.max(0f, Math.min(MAX_SPECTROGRAM_HZ, hz)); float norm = clamped / MAX_SPECTROGRAM_HZ; return bottom - norm * (bottom - top); }
 }
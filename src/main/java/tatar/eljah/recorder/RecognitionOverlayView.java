@@ -48,6 +48,10 @@ public class RecognitionOverlayView extends View {
     private final List<NoteEvent> notes = new ArrayList<NoteEvent>();
     private final List<OpenCvScoreProcessor.StaffCorridor> staffCorridors = new ArrayList<OpenCvScoreProcessor.StaffCorridor>();
     private final RectF imageBounds = new RectF(0f, 0f, 1f, 1f);
+    // Notes by their position down the page, rebuilt after every change to the notes.
+    private final NoteLayoutIndex layoutIndex = new NoteLayoutIndex();
+    private boolean layoutIndexValid;
+    private final RectF noteOval = new RectF();
 
     private OnNotesEditedListener onNotesEditedListener;
 
@@ -125,6 +129,7 @@ public class RecognitionOverlayView extends View {
         if (source != null) {
             notes.addAll(source);
         }
+        layoutIndexValid = false;
         selectedIndex = -1;
         popupVisible = false;
         invalidate();
@@ -488,21 +493,27 @@ public class RecognitionOverlayView extends View {
     }
 
     private int findNearestNote(float nx, float ny) {
-        int best = -1;
-        float bestDist = Float.MAX_VALUE;
-        for (int i = 0; i < notes.size(); i++) {
-            NoteEvent n = notes.get(i);
-            if (n.x < 0f || n.y < 0f) continue;
-            float dx = n.x - nx;
-            float dy = n.y - ny;
-            float d = (float) Math.sqrt(dx * dx + dy * dy);
-            if (d < bestDist) {
-                bestDist = d;
-                best = i;
+        float scaledPickRadius = Math.max(0.014f, 0.08f / Math.max(1f, zoom));
+        return layoutIndex().nearestNote(ny, nx, scaledPickRadius);
+    }
+
+    // Positions are clamped the way onDraw clamps them; notes without a position sort first and
+    // are never near anything.
+    private NoteLayoutIndex layoutIndex() {
+        if (!layoutIndexValid) {
+            int count = notes.size();
+            float[] ys = new float[count];
+            float[] xs = new float[count];
+            for (int i = 0; i < count; i++) {
+                NoteEvent n = notes.get(i);
+                boolean placed = n.x >= 0f && n.y >= 0f;
+                ys[i] = placed ? Math.min(1f, n.y) : Float.NEGATIVE_INFINITY;
+                xs[i] = placed ? Math.min(1f, n.x) : Float.NEGATIVE_INFINITY;
             }
+            layoutIndex.setNotes(ys, xs, count);
+            layoutIndexValid = true;
         }
-        float scaledPickRadius = Math.max(0.014f, 0.08f / Math.max(1f, zoom));
-        return bestDist <= scaledPickRadius ? best : -1;
+        return layoutIndex;
     }
 
     private float[] toNormalized(float viewX, float viewY) {
@@ -525,6 +536,7 @@ public class RecognitionOverlayView extends View {
     }
 
     private void notifyEdited() {
+        layoutIndexValid = false;
         if (onNotesEditedListener == null) return;
         onNotesEditedListener.onNotesEdited(new ArrayList<NoteEvent>(notes));
     }
@@ -557,17 +569,28 @@ public class RecognitionOverlayView extends View {
             canvas.drawRect(new RectF(x0, y0, x1, y1), corridorPaint);
         }
 
-        for (int idx = 0; idx < notes.size(); idx++) {
+        // Only the notes whose staff lines or label can reach the visible part of the page.
+        float margin = rowGap * 3f + labelPaint.getTextSize() + noteRadius;
+        float visibleTop = (0f - cy - panY) / zoom + cy - margin;
+        float visibleBottom = (getHeight() - cy - panY) / zoom + cy + margin;
+        float visibleLeft = (0f - cx - panX) / zoom + cx - 40f - margin;
+        float visibleRight = (getWidth() - cx - panX) / zoom + cx + 40f + margin;
+        NoteLayoutIndex index = layoutIndex();
+        int end = index.endRankAt((visibleBottom - imageBounds.top) / height);
+        for (int rank = index.firstRankFrom((visibleTop - imageBounds.top) / height); rank < end; rank++) {
+            int idx = index.noteAt(rank);
             NoteEvent note = notes.get(idx);
             if (note.x < 0f || note.y < 0f) continue;
             float x = imageBounds.left + Math.max(0f, Math.min(1f, note.x)) * width;
             float y = imageBounds.top + Math.max(0f, Math.min(1f, note.y)) * height;
+            if (x < visibleLeft || x > visibleRight) continue;
 
             for (int i = -2; i <= 2; i++) {
                 canvas.drawLine(x - 38f, y + i * rowGap, x + 38f, y + i * rowGap, staffPaint);
             }
             Paint p = idx == selectedIndex ? selectedNotePaint : notePaint;
-            canvas.drawOval(new RectF(x - noteRadius, y - noteRadius * 0.8f, x + noteRadius, y + noteRadius * 0.8f), p);
+            noteOval.set(x - noteRadius, y - noteRadius * 0.8f, x + noteRadius, y + noteRadius * 0.8f);
+            canvas.drawOval(noteOval, p);
             canvas.drawText(MusicNotation.toEuropeanLabel(note.noteName, note.octave) + " " + note.duration, x - 40f, y - rowGap * 2.8f, labelPaint);
         }
         canvas.restore();
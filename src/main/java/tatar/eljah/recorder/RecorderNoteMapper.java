@@ -2,68 +2,30 @@ package tatar.eljah.recorder;
 
 import android.util.Log;
 
-import java.util.Collections;
 import java.util.LinkedHashMap;
 import java.util.Map;
 
+// Note names, frequencies and fingerings of the supported range C4..A6 in equal temperament.
+// Everything is tabulated by MIDI number; the String methods are a facade over those tables.
 public class RecorderNoteMapper {
     private static final String TAG = "RecorderNoteMapper";
-    private static final Map<String, Float> NOTE_FREQUENCIES;
-    private static final Map<String, String> FINGERINGS;
+    public static final float DEFAULT_REFERENCE_A4_HZ = 440f;
+    public static final int MIN_MIDI = 60;
+    public static final int MAX_MIDI = 93;
+    private static final String[] SHARP_NAMES = {
+            "C", "C#", "D", "D#", "E", "F", "F#", "G", "G#", "A", "A#", "B"
+    };
+    private static final double SEMITONES_PER_LOG = 12d / Math.log(2d);
+    // Indexed by MIDI number: the sharp spelling in range, the fingering of the nearest note that
+    // has one, and whether that fingering was listed for this very note.
+    private static final String[] NAMES_BY_MIDI = new String[128];
+    private static final String[] FINGERINGS_BY_MIDI = new String[128];
+    private static final boolean[] EXACT_FINGERING = new boolean[128];
 
     static {
-        Map<String, Float> frequencies = new LinkedHashMap<String, Float>();
-        // Alto recorder in G, equal temperament A4 = 440Hz.
-        // Supported range: C4 (261.63Hz) .. A6 (1760Hz), chromatic scale with recorder-oriented fallbacks.
-        frequencies.put("C4", 261.63f);
-        frequencies.put("C#4", 277.18f);
-        frequencies.put("Db4", 277.18f);
-        frequencies.put("D4", 293.66f);
-        frequencies.put("D#4", 311.13f);
-        frequencies.put("Eb4", 311.13f);
-        frequencies.put("E4", 329.63f);
-        frequencies.put("F4", 349.23f);
-        frequencies.put("F#4", 369.99f);
-        frequencies.put("Gb4", 369.99f);
-        frequencies.put("G4", 392.00f);
-        frequencies.put("G#4", 415.30f);
-        frequencies.put("Ab4", 415.30f);
-        frequencies.put("A4", 440.00f);
-        frequencies.put("A#4", 466.16f);
-        frequencies.put("Bb4", 466.16f);
-        frequencies.put("B4", 493.88f);
-        frequencies.put("C5", 523.25f);
-        frequencies.put("C#5", 554.37f);
-        frequencies.put("Db5", 554.37f);
-        frequencies.put("D5", 587.33f);
-        frequencies.put("D#5", 622.25f);
-        frequencies.put("Eb5", 622.25f);
-        frequencies.put("E5", 659.25f);
-        frequencies.put("F5", 698.46f);
-        frequencies.put("F#5", 739.99f);
-        frequencies.put("Gb5", 739.99f);
-        frequencies.put("G5", 783.99f);
-        frequencies.put("G#5", 830.61f);
-        frequencies.put("Ab5", 830.61f);
-        frequencies.put("A5", 880.00f);
-        frequencies.put("A#5", 932.33f);
-        frequencies.put("Bb5", 932.33f);
-        frequencies.put("B5", 987.77f);
-        frequencies.put("C6", 1046.50f);
-        frequencies.put("C#6", 1108.73f);
-        frequencies.put("Db6", 1108.73f);
-        frequencies.put("D6", 1174.66f);
-        frequencies.put("D#6", 1244.51f);
-        frequencies.put("Eb6", 1244.51f);
-        frequencies.put("E6", 1318.51f);
-        frequencies.put("F6", 1396.91f);
-        frequencies.put("F#6", 1479.98f);
-        frequencies.put("Gb6", 1479.98f);
-        frequencies.put("G6", 1567.98f);
-        frequencies.put("G#6", 1661.22f);
-        frequencies.put("Ab6", 1661.22f);
-        frequencies.put("A6", 1760.00f);
-        NOTE_FREQUENCIES = Collections.unmodifiableMap(frequencies);
+        for (int midi = MIN_MIDI; midi <= MAX_MIDI; midi++) {
+            NAMES_BY_MIDI[midi] = SHARP_NAMES[midi % 12] + (midi / 12 - 1);
+        }
 
         Map<String, String> fingerings = new LinkedHashMap<String, String>();
         fingerings.put("C4", "●●●|●●●●");
@@ -114,21 +76,89 @@ public class RecorderNoteMapper {
         fingerings.put("G#6", "●◐○|○○○○");
         fingerings.put("Ab6", "●◐○|○○○○");
         fingerings.put("A6", "●○○|○○○○");
-        FINGERINGS = Collections.unmodifiableMap(fingerings);
+        for (Map.Entry<String, String> pair : fingerings.entrySet()) {
+            MusicNotation.ParsedNote parsed = MusicNotation.parseNormalizedNoteKey(pair.getKey());
+            int midi = MusicNotation.midiFor(parsed.noteName, parsed.octave);
+            if (!EXACT_FINGERING[midi]) {
+                EXACT_FINGERING[midi] = true;
+                FINGERINGS_BY_MIDI[midi] = pair.getValue();
+            }
+        }
+        for (int midi = 0; midi < FINGERINGS_BY_MIDI.length; midi++) {
+            if (EXACT_FINGERING[midi]) {
+                continue;
+            }
+            for (int distance = 1; distance < FINGERINGS_BY_MIDI.length; distance++) {
+                if (midi - distance >= 0 && EXACT_FINGERING[midi - distance]) {
+                    FINGERINGS_BY_MIDI[midi] = FINGERINGS_BY_MIDI[midi - distance];
+                    break;
+                }
+                if (midi + distance < FINGERINGS_BY_MIDI.length && EXACT_FINGERING[midi + distance]) {
+                    FINGERINGS_BY_MIDI[midi] = FINGERINGS_BY_MIDI[midi + distance];
+                    break;
+                }
+            }
+        }
+    }
+
+    private final float referenceA4Hz;
+    private final double logReferenceA4;
+    private final float[] frequencyByMidi = new float[MAX_MIDI + 1];
+
+    public RecorderNoteMapper() {
+        this(DEFAULT_REFERENCE_A4_HZ);
+    }
+
+    public RecorderNoteMapper(float referenceA4Hz) {
+        this.referenceA4Hz = referenceA4Hz;
+        this.logReferenceA4 = Math.log(referenceA4Hz);
+        for (int midi = MIN_MIDI; midi <= MAX_MIDI; midi++) {
+            frequencyByMidi[midi] = (float) (referenceA4Hz * Math.pow(2d, (midi - 69) / 12d));
+        }
+    }
+
+    public float referenceA4Hz() {
+        return referenceA4Hz;
     }
 
     public String fromFrequency(float hz) {
-        String closest = "";
-        float best = Float.MAX_VALUE;
-        for (Map.Entry<String, Float> pair : NOTE_FREQUENCIES.entrySet()) {
-            float f = pair.getValue();
-            float diff = Math.abs(f - hz);
-            if (diff < best) {
-                best = diff;
-                closest = pair.getKey();
-            }
+        return nameForMidi(midiFromFrequency(hz));
+    }
+
+    // Nearest note in range, in constant time: round(12 * log2(hz / A4) + 69), clamped.
+    // Called once per audio frame.
+    public int midiFromFrequency(float hz) {
+        if (!(hz > 0f)) {
+            return MIN_MIDI;
+        }
+        long midi = Math.round(fractionalMidi(hz));
+        return (int) Math.max(MIN_MIDI, Math.min(MAX_MIDI, midi));
+    }
+
+    // Pitch of hz on the MIDI scale, e.g. 69.5 for a quarter tone above A4.
+    public double fractionalMidi(float hz) {
+        return (Math.log(hz) - logReferenceA4) * SEMITONES_PER_LOG + 69d;
+    }
+
+    // Deviation of hz from the note midiFromFrequency picks, in cents; beyond +-50 only when
+    // hz lies outside the recorder range.
+    public float centsFromNearest(float hz) {
+        if (!(hz > 0f)) {
+            return 0f;
         }
-        return closest;
+        double position = fractionalMidi(hz);
+        long midi = Math.max(MIN_MIDI, Math.min(MAX_MIDI, Math.round(position)));
+        return (float) ((position - midi) * 100d);
+    }
+
+    // Table name of a MIDI number, spelled with sharps as fromFrequency does; null outside the range.
+    public String nameForMidi(int midi) {
+        return midi >= 0 && midi < NAMES_BY_MIDI.length ? NAMES_BY_MIDI[midi] : null;
+    }
+
+    // 0 outside the range.
+    public float frequencyForMidi(int midi) {
+        return midi >= MIN_MIDI && midi <= MAX_MIDI ? frequencyByMidi[midi] : 0f;
     }
 
     public float frequencyFor(String note) {
@@ -137,51 +167,28 @@ public class RecorderNoteMapper {
             Log.w(TAG, "frequencyFor: unparseable note key='" + note + "'");
             return 0f;
         }
-        Float frequency = NOTE_FREQUENCIES.get(normalized);
-        return frequency == null ? 0f : frequency;
+        MusicNotation.ParsedNote parsed = MusicNotation.parseNormalizedNoteKey(normalized);
+        if (parsed == null) {
+            return 0f;
+        }
+        return frequencyForMidi(MusicNotation.midiFor(parsed.noteName, parsed.octave));
     }
 
     public String fingeringFor(String note) {
         String normalized = MusicNotation.normalizeNoteKey(note);
-        if (normalized == null) {
+        MusicNotation.ParsedNote parsed = MusicNotation.parseNormalizedNoteKey(normalized);
+        if (parsed == null) {
             Log.w(TAG, "fingeringFor: unparseable note key='" + note + "'");
             return "нет данных";
         }
-        if (FINGERINGS.containsKey(normalized)) {
-            return FINGERINGS.get(normalized);
-        }
-        String fallback = nearestFingering(normalized);
-        if (fallback == null) {
+        int midi = MusicNotation.midiFor(parsed.noteName, parsed.octave);
+        if (midi < 0 || midi >= FINGERINGS_BY_MIDI.length) {
             Log.w(TAG, "fingeringFor: no exact/fallback fingering for note='" + note + "' normalized='" + normalized + "'");
             return "нет данных";
         }
-        Log.w(TAG, "fingeringFor: using nearest fingering for note='" + note + "' normalized='" + normalized + "'");
-        return fallback;
-    }
-
-    private String nearestFingering(String note) {
-        MusicNotation.ParsedNote parsed = MusicNotation.parseNormalizedNoteKey(note);
-        if (parsed == null) {
-            return null;
-        }
-
-        int targetMidi = MusicNotation.midiFor(parsed.noteName, parsed.octave);
-        String closestKey = null;
-        int minDistance = Integer.MAX_VALUE;
-        for (String key : FINGERINGS.keySet()) {
-            if (key.length() < 2) continue;
-            try {
-                MusicNotation.ParsedNote keyParsed = MusicNotation.parseNormalizedNoteKey(key);
-                if (keyParsed == null) continue;
-                int keyMidi = MusicNotation.midiFor(keyParsed.noteName, keyParsed.octave);
-                int distance = Math.abs(keyMidi - targetMidi);
-                if (distance < minDistance) {
-                    minDistance = distance;
-                    closestKey = key;
-                }
-            } catch (NumberFormatException ignored) {
-            }
+        if (!EXACT_FINGERING[midi]) {
+            Log.w(TAG, "fingeringFor: using nearest fingering for note='" + note + "' normalized='" + normalized + "'");
         }
-        return closestKey == null ? null : FINGERINGS.get(closestKey);
+        return FINGERINGS_BY_MIDI[midi];
     }
 }
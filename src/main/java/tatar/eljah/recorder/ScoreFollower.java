@@ -0,0 +1,420 @@
+package tatar.eljah.recorder;
+
+import tatar.eljah.audio.FrameFeatures;
+
+// Matches pitch frames against the expected notes of a score and keeps the attempt metrics.
+// Time comes from the frame timestamps rather than the wall clock, so the same engine runs on
+// the audio worker thread in ScorePlayActivity and at many times real-time in tests.
+// Results are reported to the Listener as state changes on the calling thread. Methods are
+// synchronized so the UI thread may restart or reconfigure the follower while frames arrive.
+// Notes are compared as MIDI numbers against a CompiledScore, so a frame allocates nothing.
+// A note counts as started at the onset PitchAnalyzer detected for it when there is one, which
+// is sample-accurate, rather than at the first frame whose pitch matched; the pitch estimator
+// needs a varying number of frames to lock on, and that would end up in the durations.
+// Durations are judged against the player's own tempo, estimated from the notes played so far.
+// Whether a frame belongs to the expected note is decided by ScoreViterbiDecoder rather than by
+// the frame's pitch alone: the pointer advances once the decoder is in the expected note, and a
+// frame only counts as a mismatch once the decoder has ruled out both the expected note and the
+// tail of the previous one, so octave slips and single noisy frames neither stall nor fail a note.
+public final class ScoreFollower {
+    private static final long TABLATURE_MISMATCH_GRACE_MS = 120L;
+    private static final int MIN_MATCH_HOLD_MS = 110;
+    private static final float MIN_MATCH_HOLD_DURATION_FRACTION = 0.45f;
+    private static final float DURATION_MISMATCH_TOLERANCE_FRACTION = 0.60f;
+    // An onset this long before the first matching frame is taken as the start of the note.
+    private static final long ONSET_MATCH_WINDOW_MS = 200L;
+    private static final long NONE = -1L;
+    private static final long NO_TIME = Long.MIN_VALUE;
+    private static final int NO_MIDI = -1;
+
+    public interface Listener {
+        // A pitched frame below the intensity threshold; nothing was matched.
+        void onWaitingForIntensity(int pointer, float expectedHz);
+
+        // A pitched frame about to be matched against the note at pointer. Detected notes are
+        // MIDI numbers; RecorderNoteMapper.nameForMidi spells them.
+        void onPitch(int pointer, float expectedHz, float detectedHz, int detectedMidi);
+
+        void onNoteMismatch(int index, int detectedMidi);
+
+        // Also clears any mismatch marks of the note.
+        void onNoteMatched(int index, int detectedMidi);
+
+        void onDurationChecked(int index, boolean mismatch);
+
+        // pointer equals the note count once the last note was played.
+        void onPointerChanged(int pointer);
+
+        void onCompleted();
+
+        // The last note of a loop was played and the pointer went back to start; the notes from
+        // start (inclusive) to end (exclusive) are to be played again. Followed by
+        // onPointerChanged(start).
+        void onLoopRestarted(int start, int end);
+    }
+
+    private final CompiledScore score;
+    private final RecorderNoteMapper mapper;
+    private final Listener listener;
+    private final long[] actualDurationMs;
+    // Generation each duration was measured in; older ones read as not played.
+    private final int[] actualDurationGeneration;
+    private final float minMappedHz;
+    private final float maxMappedHz;
+    private final ScoreViterbiDecoder decoder;
+    private final TempoEstimator tempo = new TempoEstimator();
+
+    private boolean simplifiedMode;
+    private boolean tablaturePlayback;
+    private boolean durationCheckEnabled = true;
+    private float intensityThreshold;
+    private int loopStart;
+    private int loopEnd;
+    private boolean looping;
+
+    // Volatile so the UI can read it every vsync without waiting for a frame to finish.
+    private volatile int generation;
+    private int pointer;
+    private boolean onsetPending;
+    private long lastOnsetMs;
+    private boolean pointerUpdatePending;
+    private long pointerUpdatedAtMs;
+    private long lastMatchAcceptedAtMs;
+
+    private int attemptHitCount;
+    private int attemptMissCount;
+    private boolean waitingRecoveryAfterMiss;
+    private int attemptsSinceMiss;
+    private int recoverySamples;
+    private int recoveryEvents;
+    private int durationMatchCount;
+    private int durationMeasuredCount;
+    private int advancedNotesCount;
+
+    // frameSeconds is the nominal distance between frames, used to turn note lengths into
+    // frame counts for the score decoder.
+    public ScoreFollower(CompiledScore score, RecorderNoteMapper mapper, float frameSeconds, Listener listener) {
+        this.score = score;
+        this.mapper = mapper;
+        this.listener = listener;
+        actualDurationMs = new long[score.size()];
+        actualDurationGeneration = new int[score.size()];
+        loopEnd = score.size();
+        minMappedHz = mapper.frequencyFor("D4");
+        maxMappedHz = mapper.frequencyFor("A6");
+        // Decided on the latest frame: the minimum note length and the transition costs already
+        // keep one bad frame from moving the decoder, and a look-back would delay every advance.
+        decoder = new ScoreViterbiDecoder(score.expectedHz, score.durationMs, frameSeconds, 0);
+        restart();
+    }
+
+    public synchronized void setSimplifiedMode(boolean simplifiedMode) {
+        this.simplifiedMode = simplifiedMode;
+    }
+
+    // While the app plays the tablature itself, the microphone hears the synth: intensity is
+    // not gated and mismatches are ignored for a moment after each advance.
+    public synchronized void setTablaturePlayback(boolean tablaturePlayback) {
+        this.tablaturePlayback = tablaturePlayback;
+    }
+
+    public synchronized void setDurationCheckEnabled(boolean enabled) {
+        durationCheckEnabled = enabled;
+    }
+
+    public synchronized void setIntensityThreshold(float threshold) {
+        intensityThreshold = threshold;
+    }
+
+    // Stream time of a frame: the centre of its analysis window, which is where the pitch it
+    // reports was sounding.
+    public static long frameTimeMs(FrameFeatures features) {
+        return streamTimeMs(features.position() + features.length() / 2, features.sampleRate());
+    }
+
+    public static long streamTimeMs(long samplePosition, int sampleRate) {
+        return samplePosition * 1000L / sampleRate;
+    }
+
+    // Repeats the notes from start (inclusive) to end (exclusive): once the last of them is
+    // played the pointer goes back to start within the same frame, without a restart. Takes
+    // effect with the next restart().
+    public synchronized void setLoop(int start, int end) {
+        if (start < 0 || end > score.size() || start >= end) {
+            throw new IllegalArgumentException("Loop " + start + ".." + end + " is outside the score");
+        }
+        loopStart = start;
+        loopEnd = end;
+        looping = true;
+    }
+
+    public synchronized void clearLoop() {
+        loopStart = 0;
+        loopEnd = score.size();
+        looping = false;
+    }
+
+    public synchronized boolean isLooping() {
+        return looping;
+    }
+
+    // Back to the first note, or the start of the loop, with fresh metrics. Listener calls made
+    // before the restart carry an older generation(), which lets a UI drop updates that were
+    // still queued. Allocates nothing and does not depend on the length of the score.
+    public synchronized void restart() {
+        generation++;
+        pointer = looping ? loopStart : 0;
+        pointerUpdatePending = true;
+        lastMatchAcceptedAtMs = NO_TIME;
+        onsetPending = false;
+        lastOnsetMs = NO_TIME;
+        resetAttemptMetrics();
+        tempo.reset();
+        decoder.reset(pointer);
+    }
+
+    // An onset reported by PitchAnalyzer at timeMs of the stream (see streamTimeMs); the
+    // decoder sees it with the next frame.
+    public synchronized void onOnset(long timeMs) {
+        onsetPending = true;
+        lastOnsetMs = timeMs;
+    }
+
+    // One analysis frame: timeMs is its time in the stream (see frameTimeMs), pitchHz 0 when
+    // unpitched and intensity its RMS level.
+    public synchronized void onFrame(long timeMs, float pitchHz, float confidence, float intensity) {
+        if (pointerUpdatePending) {
+            pointerUpdatePending = false;
+            pointerUpdatedAtMs = timeMs;
+        }
+        boolean onset = onsetPending;
+        onsetPending = false;
+        boolean playing = pitchHz > 0f && pointer < score.size();
+        float normalizedHz = pitchHz;
+        int detected = NO_MIDI;
+        boolean matches = false;
+        if (playing) {
+            normalizedHz = normalizeDetectedPitch(pitchHz, score.expectedHz[pointer]);
+            detected = mapper.midiFromFrequency(normalizedHz);
+            matches = score.matches(pointer, detected, simplifiedMode);
+        }
+        // A frame the score accepts reaches the decoder at the expected pitch, so the neighbouring
+        // semitone that simplified mode allows counts as the note there too.
+        int decodedNote = decoder.consume(matches ? score.expectedHz[pointer] : normalizedHz, confidence, onset);
+        if (decoder.position() > pointer) {
+            // The decoder went past a note the follower has not accepted (skipped, or held too
+            // short): anchor it back at the expected note.
+            decoder.reset(pointer);
+            decodedNote = ScoreViterbiDecoder.NO_NOTE;
+        }
+        if (!playing) {
+            return;
+        }
+
+        float expected = score.expectedHz[pointer];
+        if (!tablaturePlayback && intensity < intensityThreshold) {
+            listener.onWaitingForIntensity(pointer, expected);
+            return;
+        }
+
+        registerNoteAttempt();
+        listener.onPitch(pointer, expected, normalizedHz, detected);
+
+        if (decodedNote != pointer) {
+            // A matching frame the decoder has not taken as the note yet, or the previous note's
+            // release tail, is not a wrong note.
+            if (matches || (pointer > 0 && decodedNote == pointer - 1) || shouldDeferTablatureMismatch(timeMs)) {
+                return;
+            }
+            listener.onNoteMismatch(pointer, detected);
+            recordMissAttempt();
+            return;
+        }
+
+        recordSuccessfulAttempt();
+        listener.onNoteMatched(pointer, detected);
+        long startedAtMs = noteStartMs(timeMs);
+        if (!canAdvanceToNextNote(startedAtMs, pointer)) {
+            return;
+        }
+        updateDurationMismatchForPrevious(startedAtMs, pointer);
+        lastMatchAcceptedAtMs = startedAtMs;
+        advancedNotesCount++;
+        pointer++;
+        pointerUpdatedAtMs = timeMs;
+        if (looping && pointer >= loopEnd) {
+            pointer = loopStart;
+            decoder.reset(loopStart);
+            listener.onLoopRestarted(loopStart, loopEnd);
+            listener.onPointerChanged(pointer);
+            return;
+        }
+        listener.onPointerChanged(pointer);
+        if (pointer >= score.size()) {
+            listener.onCompleted();
+        }
+    }
+
+    public int generation() {
+        return generation;
+    }
+
+    public synchronized int pointer() {
+        return pointer;
+    }
+
+    // Never true while looping.
+    public synchronized boolean isCompleted() {
+        return !looping && advancedNotesCount >= score.size();
+    }
+
+    // Time between accepting note index and the note after it, or -1 if not played yet.
+    public synchronized long actualDurationMs(int index) {
+        return actualDurationGeneration[index] == generation ? actualDurationMs[index] : NONE;
+    }
+
+    public synchronized float hitRatio() {
+        int totalAttempts = attemptHitCount + attemptMissCount;
+        return totalAttempts > 0 ? (attemptHitCount / (float) totalAttempts) : 0f;
+    }
+
+    public synchronized float recoveryRatio() {
+        if (recoveryEvents <= 0) {
+            return attemptMissCount > 0 ? 0f : 1f;
+        }
+        float avgAttemptsToRecover = recoverySamples / (float) recoveryEvents;
+        return 1f / (1f + avgAttemptsToRecover);
+    }
+
+    // Played to nominal note lengths as estimated so far in this attempt; above 1 is slower.
+    public synchronized float tempoRatio() {
+        return tempo.ratio();
+    }
+
+    public synchronized float durationRatio() {
+        return durationMeasuredCount > 0
+                ? durationMatchCount / (float) durationMeasuredCount
+                : 1f;
+    }
+
+    private void updateDurationMismatchForPrevious(long nowMs, int currentIndex) {
+        // After a loop restart the note played before the start of the loop is its last note.
+        boolean acrossLoop = looping && currentIndex == loopStart && lastMatchAcceptedAtMs != NO_TIME;
+        int previous = acrossLoop ? loopEnd - 1 : currentIndex - 1;
+        if (previous < 0) {
+            return;
+        }
+        if (lastMatchAcceptedAtMs == NO_TIME) {
+            listener.onDurationChecked(previous, false);
+            return;
+        }
+
+        long actual = nowMs - lastMatchAcceptedAtMs;
+        actualDurationMs[previous] = actual;
+        actualDurationGeneration[previous] = generation;
+        // Judged at the tempo before this note, so one wrong length cannot excuse itself.
+        long expectedDurationMs = tempo.expectedMs(score.durationMs[previous]);
+        tempo.observe(actual, score.durationMs[previous]);
+        if (!durationCheckEnabled) {
+            return;
+        }
+        long allowedDeviation = (long) (expectedDurationMs * DURATION_MISMATCH_TOLERANCE_FRACTION);
+        long deviation = Math.abs(actual - expectedDurationMs);
+        durationMeasuredCount++;
+        boolean mismatch = deviation > allowedDeviation;
+        if (!mismatch) {
+            durationMatchCount++;
+        }
+        listener.onDurationChecked(previous, mismatch);
+    }
+
+    // The recent onset that started the note being matched at timeMs, or timeMs without one.
+    private long noteStartMs(long timeMs) {
+        boolean usable = lastOnsetMs != NO_TIME
+                && lastOnsetMs <= timeMs
+                && timeMs - lastOnsetMs <= ONSET_MATCH_WINDOW_MS
+                && (lastMatchAcceptedAtMs == NO_TIME || lastOnsetMs > lastMatchAcceptedAtMs);
+        return usable ? lastOnsetMs : timeMs;
+    }
+
+    private boolean canAdvanceToNextNote(long nowMs, int index) {
+        if (lastMatchAcceptedAtMs == NO_TIME) {
+            return true;
+        }
+
+        // The note that has to be held is the one before index, at the player's tempo.
+        int held = looping && index == loopStart ? loopEnd - 1 : Math.max(0, index - 1);
+        long minHoldMs = Math.max(MIN_MATCH_HOLD_MS,
+                (long) (tempo.expectedMs(score.durationMs[held]) * MIN_MATCH_HOLD_DURATION_FRACTION));
+        return nowMs - lastMatchAcceptedAtMs >= minHoldMs;
+    }
+
+    // The synth takes a moment to reach the next note after an advance.
+    private boolean shouldDeferTablatureMismatch(long nowMs) {
+        return tablaturePlayback && nowMs - pointerUpdatedAtMs < TABLATURE_MISMATCH_GRACE_MS;
+    }
+
+    private void resetAttemptMetrics() {
+        attemptHitCount = 0;
+        attemptMissCount = 0;
+        waitingRecoveryAfterMiss = false;
+        attemptsSinceMiss = 0;
+        recoverySamples = 0;
+        recoveryEvents = 0;
+        durationMatchCount = 0;
+        durationMeasuredCount = 0;
+        advancedNotesCount = 0;
+    }
+
+    private void registerNoteAttempt() {
+        if (waitingRecoveryAfterMiss) {
+            attemptsSinceMiss++;
+        }
+    }
+
+    private void recordMissAttempt() {
+        attemptMissCount++;
+        if (!waitingRecoveryAfterMiss) {
+            waitingRecoveryAfterMiss = true;
+            attemptsSinceMiss = 0;
+        }
+    }
+
+    private void recordSuccessfulAttempt() {
+        attemptHitCount++;
+        if (waitingRecoveryAfterMiss) {
+            recoverySamples += attemptsSinceMiss;
+            recoveryEvents++;
+            waitingRecoveryAfterMiss = false;
+            attemptsSinceMiss = 0;
+        }
+    }
+
+    // Autocorrelation can report the octave above; fold it back into the recorder range.
+    private float normalizeDetectedPitch(float detectedHz, float expectedFrequency) {
+        if (detectedHz <= 0f) {
+            return detectedHz;
+        }
+
+        float halvedHz = detectedHz / 2f;
+        boolean directInRange = detectedHz >= minMappedHz && detectedHz <= maxMappedHz;
+        boolean halvedInRange = halvedHz >= minMappedHz && halvedHz <= maxMappedHz;
+
+        if (!directInRange && halvedInRange) {
+            return halvedHz;
+        }
+
+        if (expectedFrequency <= 0f) {
+            return detectedHz;
+        }
+
+        float directDiff = Math.abs(detectedHz - expectedFrequency);
+        float halvedDiff = Math.abs(halvedHz - expectedFrequency);
+
+        if (halvedInRange && halvedDiff < directDiff) {
+            return halvedHz;
+        }
+
+        return detectedHz;
+    }
+}
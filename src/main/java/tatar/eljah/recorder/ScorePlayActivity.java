@@ -1,15 +1,17 @@
 package tatar.eljah.recorder;
 
 import android.Manifest;
+import android.content.Context;
 import android.content.pm.PackageManager;
 import android.media.AudioFormat;
 import android.media.AudioManager;
+import android.media.AudioTimestamp;
 import android.media.AudioTrack;
 import android.os.Build;
 import android.os.Bundle;
-import android.os.SystemClock;
 import android.support.v7.app.AppCompatActivity;
 import android.util.Log;
+import android.view.Choreographer;
 import android.view.View;
 import android.widget.Button;
 import android.widget.CompoundButton;
@@ -19,8 +21,16 @@ import android.widget.RadioGroup;
 import android.widget.TextView;
 import android.widget.FrameLayout;
 
+import java.io.File;
+
 import tatar.eljah.audio.AudioSettingsStore;
+import tatar.eljah.audio.EventRing;
+import tatar.eljah.audio.FrameFeatures;
+import tatar.eljah.audio.PcmCache;
+import tatar.eljah.audio.PlaybackClock;
 import tatar.eljah.audio.PitchAnalyzer;
+import tatar.eljah.audio.TripleBuffer;
+import tatar.eljah.audio.WavetableSynth;
 import tatar.eljah.fluitblox.R;
 
 public class ScorePlayActivity extends AppCompatActivity {
@@ -28,22 +38,35 @@ public class ScorePlayActivity extends AppCompatActivity {
     private static final String TAG = "ScorePlayActivity";
     private static final int SYNTH_SAMPLE_RATE = 22050;
     private static final int SAFE_SAMPLE_RATE = 44100;
-    private static final int ENVELOPE_FADE_MS = 8;
-    private static final long TABLATURE_MISMATCH_GRACE_MS = 120L;
-    private static final int TABLATURE_MISMATCH_CONFIRMATION_FRAMES = 2;
-    private static final int MIN_MATCH_HOLD_MS = 110;
-    private static final float MIN_MATCH_HOLD_DURATION_FRACTION = 0.45f;
-    private static final float DURATION_MISMATCH_TOLERANCE_FRACTION = 0.60f;
+    private static final float PLAYBACK_TEMPO = 1f;
+    // Longer renders are streamed in buffer-sized writes instead of one static track.
+    private static final int MAX_STATIC_TRACK_BYTES = 8 * 1024 * 1024;
+    private static final long PLAYBACK_POLL_MS = 15L;
+    private static final long PCM_CACHE_MEMORY_BYTES = 16L * 1024 * 1024;
+    private static final long PCM_CACHE_DISK_BYTES = 64L * 1024 * 1024;
+    // Several seconds of follower events at the analysis frame rate.
+    private static final int UI_EVENT_CAPACITY = 1024;
+    private static final int EVENT_MISMATCH = 1;
+    private static final int EVENT_MATCHED = 2;
+    private static final int EVENT_DURATION_CHECKED = 3;
+    private static final int EVENT_POINTER_CHANGED = 4;
+    private static final int EVENT_COMPLETED = 5;
+    private static final int EVENT_LOOP_RESTARTED = 6;
+
+    private static PcmCache pcmCache;
 
     private final PitchAnalyzer pitchAnalyzer = new PitchAnalyzer();
     private final RecorderNoteMapper mapper = new RecorderNoteMapper();
     private final Object focusLock = new Object();
 
     private ScorePiece piece;
+    private CompiledScore compiledScore;
+    private ScoreFollower follower;
     private int pointer = 0;
 
     private TextView status;
     private PitchOverlayView overlayView;
+    private SpectrogramView spectrogramView;
     private PitchOverlayView panoramaOverlayView;
     private FrameLayout panoramaOverlayContainer;
     private LinearLayout panoramaNavMenu;
@@ -65,25 +88,66 @@ public class ScorePlayActivity extends AppCompatActivity {
     private int focusCounter;
     private int activeFocusToken;
 
+    // A-B loop as note indices, end exclusive; -1 when the whole piece is played.
+    private volatile int loopStartNote = -1;
+    private volatile int loopEndNote = -1;
+
+    // The playback thread keeps the clock in step with the output; the ticker reads it on vsync.
+    private final PlaybackClock playbackClock = new PlaybackClock();
+    private volatile NoteOnsetTable playbackNotes;
+    private boolean playbackTickerMidiMode;
+    private boolean playbackTickerRunning;
+    private int shownPlaybackNote = -1;
+    private final Choreographer.FrameCallback playbackTicker = new Choreographer.FrameCallback() {
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            NoteOnsetTable notes = playbackNotes;
+            if (notes != null && playbackClock.isRunning()) {
+                int note = notes.noteAt(playbackClock.positionFrames(frameTimeNanos));
+                if (note != shownPlaybackNote) {
+                    shownPlaybackNote = note;
+                    showPlaybackNote(playbackTickerMidiMode, note);
+                }
+            }
+            if (playbackRequested(playbackTickerMidiMode)) {
+                Choreographer.getInstance().postFrameCallback(this);
+            } else {
+                playbackTickerRunning = false;
+            }
+        }
+    };
+
+    // The analysis worker hands its results to the UI through these, without locks or
+    // allocation: the pitch readout keeps only its latest value, note events are queued. The
+    // drain empties them once per vsync, so a stalled UI skips stale frames instead of
+    // replaying them. Spectra bypass the UI thread and go to the spectrogram's render thread.
+    private final TripleBuffer<PitchFrame> pitchFrames =
+            new TripleBuffer<PitchFrame>(new PitchFrame(), new PitchFrame(), new PitchFrame());
+    private final EventRing followerEvents = new EventRing(UI_EVENT_CAPACITY);
+    private final int[] followerEvent = new int[4];
+    private volatile boolean listening;
+    private boolean uiDrainRunning;
+    private final Choreographer.FrameCallback uiDrain = new Choreographer.FrameCallback() {
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            drainAnalysisResults();
+            if (listening) {
+                Choreographer.getInstance().postFrameCallback(this);
+            } else {
+                uiDrainRunning = false;
+            }
+        }
+    };
+
+    // Latest readout of the follower, for the spectrogram; only used on the analysis worker.
+    private float workerExpectedHz;
+    private float workerDetectedHz;
+
     private volatile float currentInputIntensity;
-    private float intensityThreshold;
-    private long pointerUpdatedAtMs;
-    private int consecutiveTablatureMismatchFrames;
-    private String lastTablatureMismatchPitch;
-    private long lastMatchAcceptedAtMs;
-    private long[] actualDurationMsByIndex;
+    // Read by the analysis worker to blank the spectrum below the threshold.
+    private volatile float intensityThreshold;
     private boolean simplifiedMode;
 
-    private int attemptHitCount;
-    private int attemptMissCount;
-    private boolean waitingRecoveryAfterMiss;
-    private int attemptsSinceMiss;
-    private int recoverySamples;
-    private int recoveryEvents;
-    private int durationMatchCount;
-    private int durationMeasuredCount;
-    private int userAdvancedNotesCount;
-
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
@@ -94,6 +158,8 @@ public class ScorePlayActivity extends AppCompatActivity {
 
         status = findViewById(R.id.text_status);
         overlayView = findViewById(R.id.pitch_overlay);
+        overlayView.setSpectrogramPanelEnabled(false);
+        spectrogramView = findViewById(R.id.play_spectrogram);
         panoramaOverlayView = findViewById(R.id.pitch_overlay_panorama);
         panoramaOverlayContainer = findViewById(R.id.panorama_overlay);
         panoramaNavMenu = findViewById(R.id.panorama_nav_menu);
@@ -101,6 +167,7 @@ public class ScorePlayActivity extends AppCompatActivity {
         panoramaDetailText = findViewById(R.id.text_panorama_detail);
         panoramaDetailExtraText = findViewById(R.id.text_panorama_detail_extra);
         audioManager = (AudioManager) getSystemService(AUDIO_SERVICE);
+        pitchAnalyzer.setAutocorrelationMethod(PitchAnalyzer.AutocorrelationMethod.FFT);
 
         setupPanoramaControls();
 
@@ -112,18 +179,19 @@ public class ScorePlayActivity extends AppCompatActivity {
         ((TextView) findViewById(R.id.text_piece_title)).setText(piece.title);
         overlayView.setNotes(piece.notes);
         updateCurrentFingeringHint();
-        actualDurationMsByIndex = new long[piece.notes.size()];
-        for (int i = 0; i < actualDurationMsByIndex.length; i++) {
-            actualDurationMsByIndex[i] = -1L;
-        }
-        resetMatchCadenceTracking();
-        resetAttemptMetrics();
+        compiledScore = CompiledScore.compile(piece.notes, mapper);
+        follower = new ScoreFollower(compiledScore, mapper,
+                pitchAnalyzer.getHopSize() / (float) PitchAnalyzer.REALTIME_SAMPLE_RATE, new FollowerListener());
+        follower.setIntensityThreshold(intensityThreshold);
+        pitchAnalyzer.setOnsetListener(new PitchAnalyzer.OnsetListener() {
+            @Override
+            public void onOnset(long samplePosition, float strength, int latencySamples) {
+                follower.onOnset(ScoreFollower.streamTimeMs(samplePosition, PitchAnalyzer.REALTIME_SAMPLE_RATE));
+            }
+        });
         recordAttemptStart();
-        setPointerWithTracking(-1);
-        if (!piece.notes.isEmpty()) {
-            NoteEvent firstExpected = piece.notes.get(pointer);
-            overlayView.setFrequencies(expectedFrequencyFor(firstExpected), 0f);
-        }
+        showPointer(-1);
+        overlayView.setFrequencies(compiledScore.expectedHz(pointer), 0f);
         overlayView.setOnPlayedNoteClickListener(new PitchOverlayView.OnPlayedNoteClickListener() {
             @Override
             public void onPlayedNoteClick(int index, String expectedFullName, String actualFullName) {
@@ -141,11 +209,13 @@ public class ScorePlayActivity extends AppCompatActivity {
 
         final CheckBox simplifiedModeCheck = findViewById(R.id.check_simplified_mode);
         simplifiedMode = simplifiedModeCheck != null && simplifiedModeCheck.isChecked();
+        follower.setSimplifiedMode(simplifiedMode);
         if (simplifiedModeCheck != null) {
             simplifiedModeCheck.setOnCheckedChangeListener(new CompoundButton.OnCheckedChangeListener() {
                 @Override
                 public void onCheckedChanged(CompoundButton buttonView, boolean isChecked) {
                     simplifiedMode = isChecked;
+                    follower.setSimplifiedMode(isChecked);
                 }
             });
         }
@@ -155,17 +225,17 @@ public class ScorePlayActivity extends AppCompatActivity {
             @Override
             public void onCheckedChanged(RadioGroup group, int checkedId) {
                 if (checkedId == R.id.radio_mode_midi) {
-                    overlayView.setMicMode(false);
+                    setMicMode(false);
                     stopTablaturePlayback();
-                    pitchAnalyzer.stop();
+                    stopListening();
                     startMidiPlayback();
                 } else if (checkedId == R.id.radio_mode_tablature) {
-                    overlayView.setMicMode(false);
+                    setMicMode(false);
                     stopMidiPlayback();
                     ensureMicListening();
                     startTablaturePlayback();
                 } else {
-                    overlayView.setMicMode(true);
+                    setMicMode(true);
                     stopMidiPlayback();
                     stopTablaturePlayback();
                     ensureMicListening();
@@ -173,10 +243,15 @@ public class ScorePlayActivity extends AppCompatActivity {
             }
         });
 
-        overlayView.setMicMode(true);
+        setMicMode(true);
         ensureMicListening();
     }
 
+    private void setMicMode(boolean micMode) {
+        overlayView.setMicMode(micMode);
+        spectrogramView.setMicMode(micMode);
+    }
+
     private void setupPanoramaControls() {
         Button closeButton = findViewById(R.id.btn_panorama_close);
         Button upButton = findViewById(R.id.btn_panorama_up);
@@ -209,6 +284,25 @@ public class ScorePlayActivity extends AppCompatActivity {
                 updatePanoramaMenuState();
             }
         });
+        findViewById(R.id.btn_panorama_loop_start).setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View v) {
+                setLoop(panoramaSelectedIndex, loopEndNote > panoramaSelectedIndex ? loopEndNote : piece.notes.size());
+            }
+        });
+        findViewById(R.id.btn_panorama_loop_end).setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View v) {
+                setLoop(loopStartNote >= 0 && loopStartNote <= panoramaSelectedIndex ? loopStartNote : 0,
+                        panoramaSelectedIndex + 1);
+            }
+        });
+        findViewById(R.id.btn_panorama_loop_clear).setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View v) {
+                setLoop(-1, -1);
+            }
+        });
         backToNavButton.setOnClickListener(new View.OnClickListener() {
             @Override
             public void onClick(View v) {
@@ -255,7 +349,7 @@ public class ScorePlayActivity extends AppCompatActivity {
         }
         NoteEvent selected = piece.notes.get(panoramaSelectedIndex);
         panoramaOverlayView.setPointer(panoramaSelectedIndex);
-        panoramaOverlayView.setFrequencies(expectedFrequencyFor(selected), 0f);
+        panoramaOverlayView.setFrequencies(compiledScore.expectedHz(panoramaSelectedIndex), 0f);
 
         String expectedLabel = MusicNotation.toLocalizedLabel(this, selected.noteName, selected.octave);
         panoramaNoteText.setText(expectedLabel);
@@ -299,6 +393,9 @@ public class ScorePlayActivity extends AppCompatActivity {
     protected void onResume() {
         super.onResume();
         intensityThreshold = AudioSettingsStore.intensityThreshold(this);
+        if (follower != null) {
+            follower.setIntensityThreshold(intensityThreshold);
+        }
     }
 
     private void ensureMicListening() {
@@ -311,348 +408,269 @@ public class ScorePlayActivity extends AppCompatActivity {
     }
 
     private void startListening() {
-        pitchAnalyzer.startRealtimePitch(new PitchAnalyzer.PitchListener() {
-            @Override
-            public void onPitch(final float pitchHz) {
-                runOnUiThread(new Runnable() {
-                    @Override
-                    public void run() {
-                        consumePitch(pitchHz);
-                    }
-                });
-            }
-        }, new PitchAnalyzer.SpectrumListener() {
-            @Override
-            public void onSpectrum(final float[] magnitudes, final int sampleRate) {
-                runOnUiThread(new Runnable() {
-                    @Override
-                    public void run() {
-                        if (!tablaturePlaybackRequested && currentInputIntensity < intensityThreshold) {
-                            overlayView.setSpectrum(new float[magnitudes.length], sampleRate);
-                        } else {
-                            overlayView.setSpectrum(magnitudes, sampleRate);
-                        }
-                    }
-                });
-            }
-        }, new PitchAnalyzer.AudioListener() {
+        pitchAnalyzer.startRealtimePitch(null, null, new PitchAnalyzer.FrameListener() {
             @Override
-            public void onAudio(short[] samples, int length, int sampleRate) {
-                currentInputIntensity = rms(samples, length);
+            public void onFrame(FrameFeatures features) {
+                currentInputIntensity = features.rms();
+                if (follower != null) {
+                    follower.onFrame(ScoreFollower.frameTimeMs(features), features.pitchHz(),
+                            features.pitchConfidence(), features.rms());
+                }
+                boolean silent = !tablaturePlaybackRequested && currentInputIntensity < intensityThreshold;
+                spectrogramView.pushFrame(features.spectrum(), features.sampleRate(), silent,
+                        workerExpectedHz, workerDetectedHz);
             }
         });
-    }
-
-    private float rms(short[] samples, int length) {
-        if (samples == null || length <= 0) {
-            return 0f;
+        listening = true;
+        if (!uiDrainRunning) {
+            uiDrainRunning = true;
+            Choreographer.getInstance().postFrameCallback(uiDrain);
         }
-        double sum = 0d;
-        for (int i = 0; i < length; i++) {
-            double n = samples[i] / 32768.0;
-            sum += n * n;
-        }
-        return (float) Math.sqrt(sum / length);
     }
 
-    private void consumePitch(float hz) {
-        if (piece == null || pointer >= piece.notes.size()) {
-            return;
-        }
-
-        NoteEvent expected = piece.notes.get(pointer);
-        String expectedName = expected.fullName();
-        float expectedFrequency = expectedFrequencyFor(expected);
-
-        if (!tablaturePlaybackRequested && currentInputIntensity < intensityThreshold) {
-            overlayView.setFrequencies(expectedFrequency, 0f);
-            status.setText(getString(R.string.play_waiting_intensity, intensityThreshold));
-            return;
-        }
-
-        float normalizedHz = normalizeDetectedPitch(hz, expectedFrequency);
-        String detected = mapper.fromFrequency(normalizedHz);
-        registerNoteAttempt();
-
-        overlayView.setFrequencies(expectedFrequency, normalizedHz);
-        overlayView.setPointer(pointer);
-        status.setText(getString(R.string.play_status_template,
-                MusicNotation.toLocalizedLabel(ScorePlayActivity.this, expected.noteName, expected.octave),
-                toEuropeanLabelFromFull(detected),
-                (int) normalizedHz));
+    private void stopListening() {
+        listening = false;
+        pitchAnalyzer.stop();
+    }
 
-        if (!PitchMatchUtil.samePitch(detected, expectedName, simplifiedMode)) {
-            if (shouldDeferTablatureMismatch(detected)) {
-                return;
+    // On the UI thread, once per vsync: events first, in order, then the latest readouts.
+    // Anything from before the last restart of the follower is dropped.
+    private void drainAnalysisResults() {
+        int generation = follower == null ? -1 : follower.generation();
+        int[] event = followerEvent;
+        while (followerEvents.poll(event)) {
+            if (event[3] == generation) {
+                applyFollowerEvent(event[0], event[1], event[2]);
             }
-            overlayView.markMismatch(pointer, detected);
-            recordMissAttempt();
-            return;
         }
-
-        recordSuccessfulAttempt();
-        resetTablatureMismatchTracking();
-        overlayView.clearMismatch(pointer);
-        overlayView.markMatched(pointer, detected);
-        overlayView.clearDurationMismatch(pointer);
-        if (!canAdvanceToNextNote(expected)) {
-            return;
-        }
-        updateDurationMismatchForPrevious(pointer);
-        lastMatchAcceptedAtMs = SystemClock.elapsedRealtime();
-        userAdvancedNotesCount++;
-        pointer++;
-        if (pointer < piece.notes.size()) {
-            setPointerWithTracking(pointer);
-            NoteEvent nextExpected = piece.notes.get(pointer);
-            overlayView.setFrequencies(expectedFrequencyFor(nextExpected), 0f);
-        } else {
-            saveCompletedAttempt();
-            status.setText(R.string.play_done);
-            stopTablaturePlayback();
-            updateCurrentFingeringHint();
+        PitchFrame pitch = pitchFrames.poll();
+        if (pitch != null && pitch.generation == generation) {
+            if (pitch.waiting) {
+                overlayView.setFrequencies(pitch.expectedHz, 0f);
+                status.setText(getString(R.string.play_waiting_intensity, intensityThreshold));
+            } else {
+                NoteEvent expected = piece.notes.get(pitch.index);
+                overlayView.setFrequencies(pitch.expectedHz, pitch.detectedHz);
+                overlayView.setPointer(pitch.index);
+                status.setText(getString(R.string.play_status_template,
+                        MusicNotation.toLocalizedLabel(this, expected.noteName, expected.octave),
+                        toEuropeanLabelFromFull(mapper.nameForMidi(pitch.detectedMidi)),
+                        (int) pitch.detectedHz));
+            }
         }
     }
 
-    private void updateCurrentFingeringHint() {
-        if (piece == null || piece.notes == null || piece.notes.isEmpty() || pointer < 0 || pointer >= piece.notes.size()) {
-            setTitle(getString(R.string.app_name));
-            return;
+    private void applyFollowerEvent(int type, int index, int arg) {
+        switch (type) {
+            case EVENT_MISMATCH:
+                overlayView.markMismatch(index, mapper.nameForMidi(arg));
+                break;
+            case EVENT_MATCHED:
+                overlayView.clearMismatch(index);
+                overlayView.markMatched(index, mapper.nameForMidi(arg));
+                overlayView.clearDurationMismatch(index);
+                break;
+            case EVENT_DURATION_CHECKED:
+                if (arg != 0) {
+                    overlayView.markDurationMismatch(index);
+                } else {
+                    overlayView.clearDurationMismatch(index);
+                }
+                break;
+            case EVENT_POINTER_CHANGED:
+                pointer = index;
+                if (index < piece.notes.size()) {
+                    showPointer(index);
+                    overlayView.setFrequencies(compiledScore.expectedHz(index), 0f);
+                }
+                break;
+            case EVENT_COMPLETED:
+                saveCompletedAttempt();
+                status.setText(R.string.play_done);
+                stopTablaturePlayback();
+                updateCurrentFingeringHint();
+                break;
+            case EVENT_LOOP_RESTARTED:
+                overlayView.clearMarks(index, arg);
+                status.setText(getString(R.string.play_loop_repeat, index + 1, arg));
+                break;
+            default:
+                break;
         }
+    }
 
-        NoteEvent currentNote = piece.notes.get(pointer);
-        String fingering = mapper.fingeringFor(currentNote.fullName());
-        setTitle(getString(R.string.play_header_with_fingering, fingering));
+    // Filled on the analysis worker thread, shown on the UI thread.
+    private static final class PitchFrame {
+        int generation;
+        boolean waiting;
+        int index;
+        float expectedHz;
+        float detectedHz;
+        int detectedMidi;
     }
 
-    private void updateDurationMismatchForPrevious(int currentIndex) {
-        if (currentIndex <= 0 || piece == null || currentIndex - 1 >= piece.notes.size()) {
-            return;
+    // Called by the follower on the audio worker thread, inside follower.onFrame; hands every
+    // change to drainAnalysisResults, tagged with the follower generation it belongs to.
+    private final class FollowerListener implements ScoreFollower.Listener {
+        @Override
+        public void onWaitingForIntensity(int index, float expectedHz) {
+            publishPitch(true, index, expectedHz, 0f, 0);
         }
 
-        long now = SystemClock.elapsedRealtime();
-        if (lastMatchAcceptedAtMs <= 0L) {
-            overlayView.clearDurationMismatch(currentIndex - 1);
-            return;
+        @Override
+        public void onPitch(int index, float expectedHz, float detectedHz, int detectedMidi) {
+            publishPitch(false, index, expectedHz, detectedHz, detectedMidi);
         }
 
-        NoteEvent previousNote = piece.notes.get(currentIndex - 1);
-        long actualDurationMs = now - lastMatchAcceptedAtMs;
-        if (actualDurationMsByIndex != null && currentIndex - 1 >= 0 && currentIndex - 1 < actualDurationMsByIndex.length) {
-            actualDurationMsByIndex[currentIndex - 1] = actualDurationMs;
-        }
-        long expectedDurationMs = durationMs(previousNote.duration);
-        long allowedDeviation = (long) (expectedDurationMs * DURATION_MISMATCH_TOLERANCE_FRACTION);
-        long deviation = Math.abs(actualDurationMs - expectedDurationMs);
-        durationMeasuredCount++;
-        if (deviation > allowedDeviation) {
-            overlayView.markDurationMismatch(currentIndex - 1);
-        } else {
-            durationMatchCount++;
-            overlayView.clearDurationMismatch(currentIndex - 1);
+        @Override
+        public void onNoteMismatch(int index, int detectedMidi) {
+            post(EVENT_MISMATCH, index, detectedMidi);
         }
-    }
 
-    private boolean canAdvanceToNextNote(NoteEvent note) {
-        long now = SystemClock.elapsedRealtime();
-        if (lastMatchAcceptedAtMs <= 0L) {
-            return true;
+        @Override
+        public void onNoteMatched(int index, int detectedMidi) {
+            post(EVENT_MATCHED, index, detectedMidi);
         }
 
-        long minHoldMs = Math.max(MIN_MATCH_HOLD_MS,
-                (long) (durationMs(note.duration) * MIN_MATCH_HOLD_DURATION_FRACTION));
-        return now - lastMatchAcceptedAtMs >= minHoldMs;
-    }
+        @Override
+        public void onDurationChecked(int index, boolean mismatch) {
+            post(EVENT_DURATION_CHECKED, index, mismatch ? 1 : 0);
+        }
 
-    private boolean shouldDeferTablatureMismatch(String detectedPitch) {
-        if (!tablaturePlaybackRequested) {
-            return false;
+        @Override
+        public void onPointerChanged(int newPointer) {
+            post(EVENT_POINTER_CHANGED, newPointer, 0);
         }
 
-        long elapsedSincePointerUpdate = SystemClock.elapsedRealtime() - pointerUpdatedAtMs;
-        if (elapsedSincePointerUpdate < TABLATURE_MISMATCH_GRACE_MS) {
-            return true;
+        @Override
+        public void onCompleted() {
+            post(EVENT_COMPLETED, 0, 0);
         }
 
-        if (detectedPitch == null) {
-            return true;
+        @Override
+        public void onLoopRestarted(int start, int end) {
+            post(EVENT_LOOP_RESTARTED, start, end);
         }
 
-        if (detectedPitch.equals(lastTablatureMismatchPitch)) {
-            consecutiveTablatureMismatchFrames++;
-        } else {
-            lastTablatureMismatchPitch = detectedPitch;
-            consecutiveTablatureMismatchFrames = 1;
+        private void publishPitch(boolean waiting, int index, float expectedHz, float detectedHz,
+                                  int detectedMidi) {
+            workerExpectedHz = expectedHz;
+            workerDetectedHz = detectedHz;
+            PitchFrame frame = pitchFrames.editable();
+            frame.generation = follower.generation();
+            frame.waiting = waiting;
+            frame.index = index;
+            frame.expectedHz = expectedHz;
+            frame.detectedHz = detectedHz;
+            frame.detectedMidi = detectedMidi;
+            pitchFrames.publish();
         }
 
-        return consecutiveTablatureMismatchFrames < TABLATURE_MISMATCH_CONFIRMATION_FRAMES;
+        private void post(int type, int index, int arg) {
+            if (!followerEvents.offer(type, index, arg, follower.generation())) {
+                Log.w(TAG, "UI event queue full, dropped follower event " + type);
+            }
+        }
     }
 
-    private void resetTablatureMismatchTracking() {
-        consecutiveTablatureMismatchFrames = 0;
-        lastTablatureMismatchPitch = null;
-    }
+    private void updateCurrentFingeringHint() {
+        if (piece == null || piece.notes == null || piece.notes.isEmpty() || pointer < 0 || pointer >= piece.notes.size()) {
+            setTitle(getString(R.string.app_name));
+            return;
+        }
 
-    private void resetMatchCadenceTracking() {
-        lastMatchAcceptedAtMs = 0L;
+        NoteEvent currentNote = piece.notes.get(pointer);
+        String fingering = mapper.fingeringFor(currentNote.fullName());
+        setTitle(getString(R.string.play_header_with_fingering, fingering));
     }
 
-    private void setPointerWithTracking(int newPointer) {
+    private void showPointer(int newPointer) {
         if (newPointer >= 0) {
             pointer = newPointer;
         }
-        pointerUpdatedAtMs = SystemClock.elapsedRealtime();
-        resetTablatureMismatchTracking();
         overlayView.setPointer(newPointer);
         updateCurrentFingeringHint();
     }
 
+    // Back to the first note, or the start of the loop; the follower drops updates still
+    // queued from the old attempt.
+    private void restartFollower() {
+        follower.restart();
+        pointer = follower.pointer();
+    }
+
     private void clearAllNoteStates() {
         if (piece == null) {
             return;
         }
-        if (actualDurationMsByIndex != null) {
-            for (int i = 0; i < actualDurationMsByIndex.length; i++) {
-                actualDurationMsByIndex[i] = -1L;
-            }
-        }
-        for (int i = 0; i < piece.notes.size(); i++) {
-            overlayView.clearMismatch(i);
-            overlayView.clearMatched(i);
-            overlayView.clearDurationMismatch(i);
-        }
+        overlayView.clearAllMarks();
     }
 
     private void restartProgress() {
         stopMidiPlayback();
         stopTablaturePlayback();
-        pointer = 0;
-        clearAllNoteStates();
-        resetMatchCadenceTracking();
-        resetAttemptMetrics();
-        recordAttemptStart();
-        setPointerWithTracking(-1);
-        if (piece != null && !piece.notes.isEmpty()) {
-            overlayView.setFrequencies(expectedFrequencyFor(piece.notes.get(0)), 0f);
+        if (follower != null) {
+            restartFollower();
+            clearAllNoteStates();
+            recordAttemptStart();
+            showPointer(-1);
+            overlayView.setFrequencies(compiledScore.expectedHz(pointer), 0f);
         }
         status.setText(R.string.play_restarted);
         updateCurrentFingeringHint();
     }
 
-    private void recordAttemptStart() {
-        if (piece == null || piece.id == null) {
+    // Repeats notes start..end-1 in every mode; start < 0 plays the whole piece again. Playback
+    // restarts from the loop; later repetitions follow on without a gap.
+    private void setLoop(int start, int end) {
+        if (piece == null || follower == null) {
             return;
         }
-        new PerformanceMetricsStore(this).incrementStartedAttempt(piece.id);
-    }
-
-    private void resetAttemptMetrics() {
-        attemptHitCount = 0;
-        attemptMissCount = 0;
-        waitingRecoveryAfterMiss = false;
-        attemptsSinceMiss = 0;
-        recoverySamples = 0;
-        recoveryEvents = 0;
-        durationMatchCount = 0;
-        durationMeasuredCount = 0;
-        userAdvancedNotesCount = 0;
-    }
-
-    private void registerNoteAttempt() {
-        if (waitingRecoveryAfterMiss) {
-            attemptsSinceMiss++;
+        boolean looping = start >= 0 && end > start && end <= piece.notes.size();
+        loopStartNote = looping ? start : -1;
+        loopEndNote = looping ? end : -1;
+        if (looping) {
+            follower.setLoop(start, end);
+        } else {
+            follower.clearLoop();
         }
-    }
-
-    private void recordMissAttempt() {
-        attemptMissCount++;
-        if (!waitingRecoveryAfterMiss) {
-            waitingRecoveryAfterMiss = true;
-            attemptsSinceMiss = 0;
+        closePanoramaContext();
+        boolean midi = midiPlaybackRequested;
+        boolean tablature = tablaturePlaybackRequested;
+        restartProgress();
+        if (midi) {
+            startMidiPlayback();
+        } else if (tablature) {
+            startTablaturePlayback();
+        }
+        if (looping) {
+            status.setText(getString(R.string.play_loop_set, start + 1, end));
         }
     }
 
-    private void recordSuccessfulAttempt() {
-        attemptHitCount++;
-        if (waitingRecoveryAfterMiss) {
-            recoverySamples += attemptsSinceMiss;
-            recoveryEvents++;
-            waitingRecoveryAfterMiss = false;
-            attemptsSinceMiss = 0;
+    private void recordAttemptStart() {
+        if (piece == null || piece.id == null) {
+            return;
         }
+        new PerformanceMetricsStore(this).incrementStartedAttempt(piece.id);
     }
 
     private void saveCompletedAttempt() {
         if (piece == null || piece.id == null) {
             return;
         }
-        if (userAdvancedNotesCount < piece.notes.size()) {
+        if (!follower.isCompleted()) {
             return;
         }
 
-        int totalAttempts = attemptHitCount + attemptMissCount;
-        float hitRatio = totalAttempts > 0 ? (attemptHitCount / (float) totalAttempts) : 0f;
-        float recoveryRatio;
-        if (recoveryEvents <= 0) {
-            recoveryRatio = attemptMissCount > 0 ? 0f : 1f;
-        } else {
-            float avgAttemptsToRecover = recoverySamples / (float) recoveryEvents;
-            recoveryRatio = 1f / (1f + avgAttemptsToRecover);
-        }
-        float durationRatio = durationMeasuredCount > 0
-                ? durationMatchCount / (float) durationMeasuredCount
-                : 1f;
-
         PerformanceMetricsStore.PerformanceAttempt attempt = new PerformanceMetricsStore.PerformanceAttempt();
-        attempt.hitRatio = hitRatio;
-        attempt.recoveryRatio = recoveryRatio;
-        attempt.durationRatio = durationRatio;
+        attempt.hitRatio = follower.hitRatio();
+        attempt.recoveryRatio = follower.recoveryRatio();
+        attempt.durationRatio = follower.durationRatio();
         attempt.savedAt = System.currentTimeMillis();
         new PerformanceMetricsStore(this).saveCompletedAttempt(piece.id, attempt);
     }
 
-    private float expectedFrequencyFor(NoteEvent note) {
-        if (note == null) {
-            return 0f;
-        }
-        float mapped = mapper.frequencyFor(note.fullName());
-        if (mapped > 0f) {
-            return mapped;
-        }
-        int midi = MusicNotation.midiFor(note.noteName, note.octave);
-        return (float) (440.0 * Math.pow(2.0, (midi - 69) / 12.0));
-    }
-
-    private float normalizeDetectedPitch(float detectedHz, float expectedFrequency) {
-        if (detectedHz <= 0f) {
-            return detectedHz;
-        }
-
-        float halvedHz = detectedHz / 2f;
-        float minMappedHz = mapper.frequencyFor("D4");
-        float maxMappedHz = mapper.frequencyFor("A6");
-
-        boolean directInRange = detectedHz >= minMappedHz && detectedHz <= maxMappedHz;
-        boolean halvedInRange = halvedHz >= minMappedHz && halvedHz <= maxMappedHz;
-
-        if (!directInRange && halvedInRange) {
-            return halvedHz;
-        }
-
-        if (expectedFrequency <= 0f) {
-            return detectedHz;
-        }
-
-        float directDiff = Math.abs(detectedHz - expectedFrequency);
-        float halvedDiff = Math.abs(halvedHz - expectedFrequency);
-
-        if (halvedInRange && halvedDiff < directDiff) {
-            return halvedHz;
-        }
-
-        return detectedHz;
-    }
-
     private void startMidiPlayback() {
         int focusToken = requestMusicFocus();
         if (focusToken == 0) {
@@ -661,11 +679,9 @@ public class ScorePlayActivity extends AppCompatActivity {
         }
         midiFocusToken = focusToken;
         midiPlaybackRequested = true;
+        restartFollower();
         clearAllNoteStates();
-        resetMatchCadenceTracking();
-        resetAttemptMetrics();
-        pointer = 0;
-        setPointerWithTracking(pointer);
+        showPointer(pointer);
         status.setText(R.string.play_midi_started);
         if (midiThread != null && midiThread.isAlive()) {
             return;
@@ -679,6 +695,7 @@ public class ScorePlayActivity extends AppCompatActivity {
             }
         }, "midi-playback");
         midiThread.start();
+        startPlaybackTicker(true);
     }
 
     private void stopMidiPlayback() {
@@ -700,12 +717,10 @@ public class ScorePlayActivity extends AppCompatActivity {
             return;
         }
         tablatureFocusToken = focusToken;
-        tablaturePlaybackRequested = true;
+        setTablaturePlaybackRequested(true);
+        restartFollower();
         clearAllNoteStates();
-        resetMatchCadenceTracking();
-        resetAttemptMetrics();
-        pointer = 0;
-        setPointerWithTracking(pointer);
+        showPointer(pointer);
         analyzeTablatureFrequencies();
         if (tablatureThread != null && tablatureThread.isAlive()) {
             return;
@@ -720,10 +735,11 @@ public class ScorePlayActivity extends AppCompatActivity {
             }
         }, "tablature-playback");
         tablatureThread.start();
+        startPlaybackTicker(false);
     }
 
     private void stopTablaturePlayback() {
-        tablaturePlaybackRequested = false;
+        setTablaturePlaybackRequested(false);
         Thread thread = tablatureThread;
         if (thread != null) {
             thread.interrupt();
@@ -783,70 +799,88 @@ public class ScorePlayActivity extends AppCompatActivity {
             return;
         }
 
+        // Tablature playback is what the microphone matches against, so it stays a pure tone.
+        WavetableSynth.Timbre timbre = midiMode ? WavetableSynth.Timbre.RECORDER : WavetableSynth.Timbre.SINE;
+        short[] pcm = ScoreRenderer.renderCached(pcmCache(this), piece.id, compiledScore, timbre,
+                PLAYBACK_TEMPO, sampleRate);
+        NoteOnsetTable notes = new NoteOnsetTable(ScoreRenderer.noteStarts(compiledScore, PLAYBACK_TEMPO, sampleRate));
+        boolean staticMode = pcm.length * 2 <= MAX_STATIC_TRACK_BYTES;
+        int loopStart = loopStartNote;
+        int loopEnd = loopEndNote;
+        boolean loop = loopStart >= 0 && loopEnd > loopStart && loopEnd <= notes.noteCount();
+        int loopFrom = loop ? notes.startOf(loopStart) : 0;
+        int loopTo = loop ? notes.startOf(loopEnd) : pcm.length;
+        loop = loop && loopTo > loopFrom;
+
         AudioTrack track = null;
         try {
             track = new AudioTrack(AudioManager.STREAM_MUSIC,
                     sampleRate,
                     channelConfig,
                     encoding,
-                    bufferSize,
-                    AudioTrack.MODE_STREAM);
-            if (track.getState() != AudioTrack.STATE_INITIALIZED) {
+                    staticMode ? pcm.length * 2 : bufferSize,
+                    staticMode ? AudioTrack.MODE_STATIC : AudioTrack.MODE_STREAM);
+            if (staticMode && track.write(pcm, 0, pcm.length) < pcm.length
+                    || track.getState() != AudioTrack.STATE_INITIALIZED) {
                 postPlaybackError();
                 setPlaybackRequested(midiMode, false);
                 return;
             }
+            // A static track repeats the loop by itself, so the mixer never runs dry between
+            // repetitions; a stream keeps being fed the loop.
+            if (staticMode && loop) {
+                track.setLoopPoints(loopFrom, loopTo, -1);
+                track.setPlaybackHeadPosition(loopFrom);
+            }
+            playbackNotes = notes;
+            if (loop) {
+                playbackClock.startLoop(sampleRate, loopFrom, loopTo, System.nanoTime());
+            } else {
+                playbackClock.start(sampleRate, pcm.length, System.nanoTime());
+            }
             track.play();
 
-            short[] buffer = new short[Math.max(sampleRate / 8, 512)];
-            for (int i = 0; i < piece.notes.size() && playbackRequested(midiMode); i++) {
-                if (Thread.currentThread().isInterrupted()) {
+            AudioTimestamp timestamp = new AudioTimestamp();
+            // Heads and timestamps count frames played since play(), for static tracks as well,
+            // so both are offset by where playback started; the clock wraps them into the loop.
+            int written = staticMode ? pcm.length : loopFrom;
+            int chunk = bufferSize / frameSize;
+            while (playbackRequested(midiMode) && !Thread.currentThread().isInterrupted()) {
+                int head = track.getPlaybackHeadPosition();
+                // The timestamp accounts for output latency but is not available right after play().
+                if (track.getTimestamp(timestamp)) {
+                    playbackClock.update(loopFrom + timestamp.framePosition, timestamp.nanoTime);
+                } else {
+                    playbackClock.update(loopFrom + head, System.nanoTime());
+                }
+                if (!loop && head >= pcm.length) {
                     break;
                 }
-                final NoteEvent note = piece.notes.get(i);
-                final int idx = i;
-                runOnUiThread(new Runnable() {
-                    @Override
-                    public void run() {
-                        if (midiMode) {
-                            pointer = idx;
-                            overlayView.setPointer(idx);
-                        }
-                        status.setText(getString(midiMode ? R.string.play_midi_note : R.string.play_tablature_note,
-                                MusicNotation.toLocalizedLabel(ScorePlayActivity.this, note.noteName, note.octave)));
-                    }
-                });
-
-                double freq = midiMode
-                        ? midiToFrequency(MusicNotation.midiFor(note.noteName, note.octave))
-                        : resolveTablatureFrequency(note);
-                int ms = durationMs(note.duration);
-                int totalSamples = sampleRate * ms / 1000;
-                int fadeSamples = Math.min(sampleRate * ENVELOPE_FADE_MS / 1000, totalSamples / 2);
-                int written = 0;
-                while (written < totalSamples && playbackRequested(midiMode)) {
-                    if (Thread.currentThread().isInterrupted()) {
-                        break;
-                    }
-                    int chunk = Math.min(buffer.length, totalSamples - written);
-                    for (int s = 0; s < chunk; s++) {
-                        double t = (written + s) / (double) sampleRate;
-                        float envelope = amplitudeEnvelope(written + s, totalSamples, fadeSamples);
-                        buffer[s] = (short) (Math.sin(2d * Math.PI * freq * t) * 12000 * envelope);
-                    }
-                    int result = track.write(buffer, 0, chunk);
+                if (written < loopTo) {
+                    int result = track.write(pcm, written, Math.min(chunk, loopTo - written));
                     if (result <= 0) {
                         setPlaybackRequested(midiMode, false);
                         postPlaybackError();
                         break;
                     }
                     written += result;
+                    if (loop && written >= loopTo) {
+                        written = loopFrom;
+                    }
+                    continue;
+                }
+                try {
+                    Thread.sleep(PLAYBACK_POLL_MS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
                 }
             }
         } catch (IllegalStateException ignored) {
             setPlaybackRequested(midiMode, false);
             postPlaybackError();
         } finally {
+            playbackClock.stop(System.nanoTime());
             if (track != null) {
                 try {
                     if (track.getPlayState() == AudioTrack.PLAYSTATE_PLAYING) {
@@ -876,6 +910,36 @@ public class ScorePlayActivity extends AppCompatActivity {
         }
     }
 
+    private void startPlaybackTicker(boolean midiMode) {
+        playbackTickerMidiMode = midiMode;
+        shownPlaybackNote = -1;
+        if (!playbackTickerRunning) {
+            playbackTickerRunning = true;
+            Choreographer.getInstance().postFrameCallback(playbackTicker);
+        }
+    }
+
+    private void showPlaybackNote(boolean midiMode, int index) {
+        if (piece == null || index < 0 || index >= piece.notes.size()) {
+            return;
+        }
+        NoteEvent note = piece.notes.get(index);
+        if (midiMode) {
+            pointer = index;
+            overlayView.setPointer(index);
+        }
+        status.setText(getString(midiMode ? R.string.play_midi_note : R.string.play_tablature_note,
+                MusicNotation.toLocalizedLabel(ScorePlayActivity.this, note.noteName, note.octave)));
+    }
+
+    private static synchronized PcmCache pcmCache(Context context) {
+        if (pcmCache == null) {
+            pcmCache = new PcmCache(new File(context.getApplicationContext().getCacheDir(), "pcm"),
+                    PCM_CACHE_MEMORY_BYTES, PCM_CACHE_DISK_BYTES);
+        }
+        return pcmCache;
+    }
+
     private void postPlaybackError() {
         runOnUiThread(new Runnable() {
             @Override
@@ -893,7 +957,14 @@ public class ScorePlayActivity extends AppCompatActivity {
         if (midiMode) {
             midiPlaybackRequested = value;
         } else {
-            tablaturePlaybackRequested = value;
+            setTablaturePlaybackRequested(value);
+        }
+    }
+
+    private void setTablaturePlaybackRequested(boolean value) {
+        tablaturePlaybackRequested = value;
+        if (follower != null) {
+            follower.setTablaturePlayback(value);
         }
     }
 
@@ -930,28 +1001,6 @@ public class ScorePlayActivity extends AppCompatActivity {
         }
     }
 
-    private int durationMs(String duration) {
-        if ("16th".equals(duration)) return 120;
-        if ("eighth".equals(duration)) return 240;
-        if ("half".equals(duration)) return 900;
-        if ("whole".equals(duration)) return 1800;
-        return 450;
-    }
-
-    private float amplitudeEnvelope(int sampleIndex, int totalSamples, int fadeSamples) {
-        if (totalSamples <= 0 || fadeSamples <= 0) {
-            return 1f;
-        }
-        if (sampleIndex < fadeSamples) {
-            return sampleIndex / (float) fadeSamples;
-        }
-        int samplesToEnd = totalSamples - sampleIndex;
-        if (samplesToEnd <= fadeSamples) {
-            return Math.max(0f, samplesToEnd / (float) fadeSamples);
-        }
-        return 1f;
-    }
-
     private double resolveTablatureFrequency(NoteEvent note) {
         String noteName = note.fullName();
         float mappedFrequency = mapper.frequencyFor(noteName);
@@ -1015,7 +1064,7 @@ public class ScorePlayActivity extends AppCompatActivity {
     @Override
     protected void onDestroy() {
         super.onDestroy();
-        pitchAnalyzer.stop();
+        stopListening();
         stopMidiPlayback();
         stopTablaturePlayback();
     }
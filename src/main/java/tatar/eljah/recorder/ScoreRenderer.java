@@ -0,0 +1,64 @@
+package tatar.eljah.recorder;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+import tatar.eljah.audio.PcmCache;
+import tatar.eljah.audio.WavetableSynth;
+
+// Renders a whole piece to PCM for playback, going through a PcmCache so repeated plays of the
+// same piece, timbre and tempo skip synthesis. tempo scales the nominal note lengths: 2 plays
+// twice as fast.
+final class ScoreRenderer {
+    static final int ENVELOPE_FADE_MS = 8;
+
+    private ScoreRenderer() {
+    }
+
+    // First sample of every note at the given tempo, plus the total length as the last entry.
+    static int[] noteStarts(CompiledScore score, float tempo, int sampleRate) {
+        int[] starts = new int[score.size() + 1];
+        for (int i = 0; i < score.size(); i++) {
+            starts[i + 1] = starts[i] + noteSamples(score, i, tempo, sampleRate);
+        }
+        return starts;
+    }
+
+    static short[] render(CompiledScore score, WavetableSynth.Timbre timbre, float tempo, int sampleRate) {
+        int[] starts = noteStarts(score, tempo, sampleRate);
+        short[] pcm = new short[starts[score.size()]];
+        WavetableSynth synth = new WavetableSynth(sampleRate, timbre);
+        int fade = sampleRate * ENVELOPE_FADE_MS / 1000;
+        for (int i = 0; i < score.size(); i++) {
+            int length = starts[i + 1] - starts[i];
+            synth.startNote(score.expectedHz(i), length, Math.min(fade, length / 2));
+            synth.render(pcm, starts[i], length);
+        }
+        return pcm;
+    }
+
+    // pieceId may be null for unsaved pieces; the key also covers the notes themselves, so an
+    // edited piece does not play a stale render.
+    static String cacheKey(String pieceId, CompiledScore score, WavetableSynth.Timbre timbre,
+                           float tempo, int sampleRate) {
+        int content = Arrays.hashCode(score.midi);
+        content = 31 * content + Arrays.hashCode(score.expectedHz);
+        content = 31 * content + Arrays.hashCode(score.durationMs);
+        return String.format(Locale.US, "%s|%08x|%s|%.3f|%d", pieceId, content, timbre.name(), tempo, sampleRate);
+    }
+
+    static short[] renderCached(PcmCache cache, String pieceId, CompiledScore score,
+                                WavetableSynth.Timbre timbre, float tempo, int sampleRate) {
+        String key = cacheKey(pieceId, score, timbre, tempo, sampleRate);
+        short[] pcm = cache.get(key);
+        if (pcm == null) {
+            pcm = render(score, timbre, tempo, sampleRate);
+            cache.put(key, pcm, sampleRate);
+        }
+        return pcm;
+    }
+
+    private static int noteSamples(CompiledScore score, int index, float tempo, int sampleRate) {
+        return (int) ((long) sampleRate * score.durationMs(index) / 1000 / tempo);
+    }
+}
@@ -0,0 +1,273 @@
+package tatar.eljah.recorder;
+
+import java.util.Arrays;
+
+// Score-informed pitch tracking: an HMM whose states walk through the expected notes, with a
+// "silence/other" state before each note and one after the last. Frames are decoded online
+// with Viterbi; the reported state is the best path traced lookBack frames into the past, so
+// a single octave slip or noisy frame is outvoted by its neighbours instead of being acted on.
+//
+// Each note is a chain of NOTE_PHASES states, which gives it a minimum length of that many
+// frames; without it two repeated notes of the same pitch could swap one long and one
+// one-frame note at no cost. Only a band of states around the current best state is updated,
+// so the per-frame cost does not depend on the length of the score.
+public final class ScoreViterbiDecoder {
+    public static final int NO_NOTE = -1;
+    public static final int DEFAULT_LOOK_BACK = 2;
+
+    private static final int NOTE_PHASES = 3;
+    private static final int BLOCK = NOTE_PHASES + 1;
+    // Notes updated behind and ahead of the current best state.
+    private static final int BAND_NOTES_BEHIND = 1;
+    private static final int BAND_NOTES_AHEAD = 3;
+    // Farthest transition: from the first phase of a note to the first phase two notes later.
+    private static final int MAX_JUMP = 2 * BLOCK;
+    private static final double IMPOSSIBLE = Double.NEGATIVE_INFINITY;
+
+    // Emission model. Pitch errors are measured in semitones; an estimate one octave off is
+    // explained as an octave slip of the estimator with weight OCTAVE_SLIP_WEIGHT.
+    private static final double PITCH_SIGMA_SEMITONES = 0.45d;
+    private static final double OCTAVE_SLIP_WEIGHT = 0.2d;
+    private static final double OUTLIER_LIKELIHOOD = 0.02d;
+    private static final double UNVOICED_IN_NOTE = 0.2d;
+    private static final double UNVOICED_IN_SILENCE = 0.9d;
+    private static final double VOICED_IN_SILENCE = 0.08d;
+
+    // Transition model: of the probability of leaving a note, most goes to the next note
+    // (legato), some to the gap before it, a little to skipping a note.
+    private static final double LEAVE_TO_NEXT_NOTE = 0.7d;
+    private static final double LEAVE_TO_GAP = 0.25d;
+    private static final double LEAVE_SKIPPING_NOTE = 0.05d;
+    private static final double SILENCE_STAY = 0.9d;
+    // Probability of leaving a note on a frame with a detected onset, from any of its phases.
+    // Repeated notes of the same pitch can only be told apart this way.
+    private static final double LEAVE_ON_ONSET = 0.8d;
+
+    private static final double LOG_UNVOICED_IN_NOTE = Math.log(UNVOICED_IN_NOTE);
+    private static final double LOG_UNVOICED_IN_SILENCE = Math.log(UNVOICED_IN_SILENCE);
+    private static final double LOG_VOICED_IN_SILENCE = Math.log(VOICED_IN_SILENCE);
+    private static final double LOG_SILENCE_STAY = Math.log(SILENCE_STAY);
+    private static final double LOG_SILENCE_LEAVE = Math.log(1d - SILENCE_STAY);
+    private static final double LOG_STAY_ON_ONSET = Math.log(1d - LEAVE_ON_ONSET);
+    private static final double LOG_NEXT_ON_ONSET = Math.log(LEAVE_ON_ONSET * LEAVE_TO_NEXT_NOTE);
+    private static final double LOG_GAP_ON_ONSET = Math.log(LEAVE_ON_ONSET * LEAVE_TO_GAP);
+    private static final double LOG_SKIP_ON_ONSET = Math.log(LEAVE_ON_ONSET * LEAVE_SKIPPING_NOTE);
+    private static final double SEMITONES_PER_LOG_UNIT = 12d / Math.log(2d);
+
+    private final int noteCount;
+    private final int stateCount;
+    private final int lookBack;
+    private final double[] logExpectedHz;
+    // Per note: staying in a phase, moving to the next phase, and leaving the last phase.
+    private final double[] logStay;
+    private final double[] logAdvance;
+    private final double[] logLeaveToNext;
+    private final double[] logLeaveToGap;
+    private final double[] logLeaveSkipping;
+
+    private double[] score;
+    private double[] next;
+    private final int[][] backPointers;
+    private int low;
+    private int high;
+    private int best;
+    private long frames;
+    private int decoded;
+
+    public ScoreViterbiDecoder(float[] expectedHz, int[] durationMs, float frameSeconds) {
+        this(expectedHz, durationMs, frameSeconds, DEFAULT_LOOK_BACK);
+    }
+
+    // lookBack is the decision delay in frames; 0 reports the best state of the latest frame.
+    public ScoreViterbiDecoder(float[] expectedHz, int[] durationMs, float frameSeconds, int lookBack) {
+        if (expectedHz.length != durationMs.length) {
+            throw new IllegalArgumentException("expectedHz and durationMs must describe the same notes");
+        }
+        this.noteCount = expectedHz.length;
+        this.stateCount = noteCount * BLOCK + 1;
+        this.lookBack = Math.max(0, lookBack);
+        this.logExpectedHz = new double[noteCount];
+        this.logStay = new double[noteCount];
+        this.logAdvance = new double[noteCount];
+        this.logLeaveToNext = new double[noteCount];
+        this.logLeaveToGap = new double[noteCount];
+        this.logLeaveSkipping = new double[noteCount];
+        for (int i = 0; i < noteCount; i++) {
+            logExpectedHz[i] = Math.log(Math.max(1f, expectedHz[i]));
+            // Each phase lasts a geometric number of frames; together they add up to the note.
+            double expectedFrames = Math.max(NOTE_PHASES + 1d, durationMs[i] / 1000d / frameSeconds);
+            double leave = NOTE_PHASES / expectedFrames;
+            logStay[i] = Math.log(1d - leave);
+            logAdvance[i] = Math.log(leave);
+            logLeaveToNext[i] = Math.log(leave * LEAVE_TO_NEXT_NOTE);
+            logLeaveToGap[i] = Math.log(leave * LEAVE_TO_GAP);
+            logLeaveSkipping[i] = Math.log(leave * LEAVE_SKIPPING_NOTE);
+        }
+        this.score = new double[stateCount];
+        this.next = new double[stateCount];
+        Arrays.fill(score, IMPOSSIBLE);
+        Arrays.fill(next, IMPOSSIBLE);
+        this.backPointers = new int[this.lookBack + 1][stateCount];
+        reset();
+    }
+
+    public void reset() {
+        reset(0);
+    }
+
+    // Starts over in the gap before note startNote, e.g. at the start of a repeated passage.
+    // Only the states of the current band hold scores, so this does not touch the whole score.
+    public void reset(int startNote) {
+        for (int state = low; state <= high; state++) {
+            score[state] = IMPOSSIBLE;
+            next[state] = IMPOSSIBLE;
+        }
+        int start = Math.max(0, Math.min(noteCount, startNote)) * BLOCK;
+        score[start] = 0d;
+        low = start;
+        high = start;
+        best = start;
+        frames = 0L;
+        decoded = start;
+    }
+
+    public int consume(float pitchHz, float confidence) {
+        return consume(pitchHz, confidence, false);
+    }
+
+    // pitchHz is 0 for unpitched frames; confidence in [0, 1] weighs the pitch against noise;
+    // onset marks a frame on which PitchAnalyzer reported a note onset.
+    // Returns the note decided for the frame lookBack frames ago, or NO_NOTE in silence.
+    public int consume(float pitchHz, float confidence, boolean onset) {
+        int newLow = Math.max(0, (best / BLOCK - BAND_NOTES_BEHIND) * BLOCK);
+        int newHigh = Math.min(stateCount - 1, (best / BLOCK + BAND_NOTES_AHEAD + 1) * BLOCK);
+        double logPitch = pitchHz > 0f ? Math.log(pitchHz) : 0d;
+        double weight = Math.max(0.05d, Math.min(1d, confidence));
+        int[] pointers = backPointers[(int) (frames % backPointers.length)];
+
+        double top = IMPOSSIBLE;
+        int topState = newLow;
+        for (int state = newLow; state <= newHigh; state++) {
+            double bestIncoming = IMPOSSIBLE;
+            int from = state;
+            for (int previous = Math.max(low, state - MAX_JUMP); previous <= Math.min(high, state); previous++) {
+                if (score[previous] == IMPOSSIBLE) {
+                    continue;
+                }
+                double value = score[previous] + transition(previous, state, onset);
+                if (value > bestIncoming) {
+                    bestIncoming = value;
+                    from = previous;
+                }
+            }
+            double value = bestIncoming == IMPOSSIBLE ? IMPOSSIBLE
+                    : bestIncoming + emission(state, pitchHz, logPitch, weight);
+            next[state] = value;
+            pointers[state] = from;
+            if (value > top) {
+                top = value;
+                topState = state;
+            }
+        }
+        // States that fell out of the band are dropped; keep the rest normalized.
+        for (int state = low; state <= high; state++) {
+            score[state] = IMPOSSIBLE;
+        }
+        double[] swap = score;
+        score = next;
+        next = swap;
+        for (int state = newLow; state <= newHigh; state++) {
+            if (score[state] != IMPOSSIBLE) {
+                score[state] -= top;
+            }
+        }
+        low = newLow;
+        high = newHigh;
+        best = topState;
+        frames++;
+
+        decoded = traceBack(topState);
+        return noteForState(decoded);
+    }
+
+    // Index of the note the decided state is in or waiting for: i for both note i and the gap
+    // before it; the note count once the last note has ended.
+    public int position() {
+        return decoded / BLOCK;
+    }
+
+    public boolean inNote() {
+        return decoded % BLOCK != 0;
+    }
+
+    public int lookBack() {
+        return lookBack;
+    }
+
+    private int traceBack(int state) {
+        int steps = (int) Math.min(lookBack, frames - 1);
+        for (int step = 0; step < steps; step++) {
+            state = backPointers[(int) ((frames - 1 - step) % backPointers.length)][state];
+        }
+        return state;
+    }
+
+    private int noteForState(int state) {
+        return state % BLOCK != 0 ? state / BLOCK : NO_NOTE;
+    }
+
+    private double transition(int from, int to, boolean onset) {
+        int note = from / BLOCK;
+        int phase = from % BLOCK - 1;
+        if (phase < 0) {
+            // Silence before the note; the final silence is absorbing.
+            if (to == from) {
+                return from == stateCount - 1 ? 0d : LOG_SILENCE_STAY;
+            }
+            return to == from + 1 ? LOG_SILENCE_LEAVE : IMPOSSIBLE;
+        }
+        if (to == from) {
+            return onset ? Math.min(LOG_STAY_ON_ONSET, logStay[note]) : logStay[note];
+        }
+        if (phase < NOTE_PHASES - 1 && to == from + 1) {
+            return logAdvance[note];
+        }
+        // Leaving the note: normally from its last phase only, on an onset from any phase.
+        if (phase < NOTE_PHASES - 1 && !onset) {
+            return IMPOSSIBLE;
+        }
+        int gap = (note + 1) * BLOCK;
+        if (to == gap) {
+            // Into the gap before the next note, or the final silence after the last one.
+            if (note == noteCount - 1) {
+                return onset ? Math.max(LOG_NEXT_ON_ONSET, logLeaveToNext[note]) : logLeaveToNext[note];
+            }
+            return onset ? Math.max(LOG_GAP_ON_ONSET, logLeaveToGap[note]) : logLeaveToGap[note];
+        }
+        if (to == gap + 1) {
+            return onset ? Math.max(LOG_NEXT_ON_ONSET, logLeaveToNext[note]) : logLeaveToNext[note];
+        }
+        if (to == gap + BLOCK + 1) {
+            return onset ? Math.max(LOG_SKIP_ON_ONSET, logLeaveSkipping[note]) : logLeaveSkipping[note];
+        }
+        return IMPOSSIBLE;
+    }
+
+    private double emission(int state, float pitchHz, double logPitch, double weight) {
+        if (state % BLOCK == 0) {
+            return pitchHz > 0f ? LOG_VOICED_IN_SILENCE : LOG_UNVOICED_IN_SILENCE;
+        }
+        if (pitchHz <= 0f) {
+            return LOG_UNVOICED_IN_NOTE;
+        }
+        double semitones = SEMITONES_PER_LOG_UNIT * (logPitch - logExpectedHz[state / BLOCK]);
+        double slip = Math.min(Math.abs(semitones - 12d), Math.abs(semitones + 12d));
+        double match = gaussian(semitones) + OCTAVE_SLIP_WEIGHT * gaussian(slip);
+        return Math.log(weight * match + (1d - weight) * OUTLIER_LIKELIHOOD + 1e-6d);
+    }
+
+    private static double gaussian(double semitones) {
+        double z = semitones / PITCH_SIGMA_SEMITONES;
+        return Math.exp(-0.5d * z * z);
+    }
+}
@@ -0,0 +1,108 @@
+package tatar.eljah.recorder;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.graphics.RectF;
+
+// Scrolling spectrogram kept as pixels: every spectrum frame is written once, as one column of a
+// ring-buffer bitmap, through a precomputed colour table. Drawing blits the bitmap in at most
+// two pieces, oldest column first, so its cost does not depend on the history length or on the
+// number of frequency bins. Rows cover 0..maxHz linearly, lowest frequency at the bottom.
+final class SpectrogramBitmap {
+    private static final int[] HEAT_COLORS = heatColors(256);
+
+    private final int columns;
+    private final int rows;
+    private final float maxHz;
+    private final int[] column;
+    // Per row, the spectrum bins it covers: [rowFirstBin, rowEndBin).
+    private final int[] rowFirstBin;
+    private final int[] rowEndBin;
+    private final Rect source = new Rect();
+    private final RectF target = new RectF();
+    private final Paint paint = new Paint();
+    private Bitmap bitmap;
+    private int mappedBins;
+    private int mappedSampleRate;
+    private int nextColumn;
+    private int filledColumns;
+
+    SpectrogramBitmap(int columns, int rows, float maxHz) {
+        this.columns = columns;
+        this.rows = rows;
+        this.maxHz = maxHz;
+        column = new int[rows];
+        rowFirstBin = new int[rows];
+        rowEndBin = new int[rows];
+    }
+
+    // Appends one frame of magnitudes covering 0..sampleRate/2, scaled to its own loudest bin.
+    void addFrame(float[] magnitudes, int sampleRate) {
+        int bins = magnitudes.length;
+        if (bins != mappedBins || sampleRate != mappedSampleRate) {
+            mapRows(bins, sampleRate);
+        }
+        if (bitmap == null) {
+            bitmap = Bitmap.createBitmap(columns, rows, Bitmap.Config.ARGB_8888);
+        }
+        float frameMax = 0f;
+        for (int bin = 0; bin < bins; bin++) {
+            if (magnitudes[bin] > frameMax) frameMax = magnitudes[bin];
+        }
+        float scale = frameMax > 0f ? (HEAT_COLORS.length - 1) / frameMax : 0f;
+        for (int row = 0; row < rows; row++) {
+            float value = 0f;
+            for (int bin = rowFirstBin[row]; bin < rowEndBin[row]; bin++) {
+                if (magnitudes[bin] > value) value = magnitudes[bin];
+            }
+            column[rows - 1 - row] = HEAT_COLORS[(int) (value * scale)];
+        }
+        bitmap.setPixels(column, 0, 1, nextColumn, 0, 1, rows);
+        nextColumn = (nextColumn + 1) % columns;
+        if (filledColumns < columns) filledColumns++;
+    }
+
+    // Stretches the columns written so far over left..right, oldest on the left.
+    void draw(Canvas canvas, float left, float top, float right, float bottom) {
+        if (filledColumns == 0) return;
+        float columnWidth = (right - left) / filledColumns;
+        int oldest = filledColumns < columns ? 0 : nextColumn;
+        int firstPiece = Math.min(filledColumns, columns - oldest);
+        source.set(oldest, 0, oldest + firstPiece, rows);
+        target.set(left, top, left + firstPiece * columnWidth, bottom);
+        canvas.drawBitmap(bitmap, source, target, paint);
+        if (firstPiece < filledColumns) {
+            source.set(0, 0, filledColumns - firstPiece, rows);
+            target.set(target.right, top, right, bottom);
+            canvas.drawBitmap(bitmap, source, target, paint);
+        }
+    }
+
+    private void mapRows(int bins, int sampleRate) {
+        float binsPerHz = 2f * bins / sampleRate;
+        for (int row = 0; row < rows; row++) {
+            int first = (int) (row * maxHz / rows * binsPerHz);
+            int end = (int) Math.ceil((row + 1) * maxHz / rows * binsPerHz);
+            rowFirstBin[row] = Math.min(first, bins);
+            rowEndBin[row] = Math.min(Math.max(end, first + 1), bins);
+        }
+        mappedBins = bins;
+        mappedSampleRate = sampleRate;
+    }
+
+    // Blue through red with rising brightness; index 0 is black.
+    private static int[] heatColors(int size) {
+        int[] colors = new int[size];
+        float[] hsv = new float[]{0f, 1f, 0f};
+        for (int i = 0; i < size; i++) {
+            float intensity = i / (float) (size - 1);
+            hsv[0] = (1f - intensity) * 240f;
+            hsv[2] = intensity;
+            colors[i] = Color.HSVToColor(hsv);
+        }
+        return colors;
+    }
+}
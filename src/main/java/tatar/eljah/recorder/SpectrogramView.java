@@ -0,0 +1,230 @@
+package tatar.eljah.recorder;
+
+import android.content.Context;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.PorterDuff;
+import android.graphics.SurfaceTexture;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.util.AttributeSet;
+import android.view.Choreographer;
+import android.view.TextureView;
+
+import tatar.eljah.audio.SpectrumRing;
+
+// Spectrogram and pitch trace drawn on a render thread of their own, so the analysis display
+// does not compete with layout and input on the UI thread. The analysis worker pushes every frame
+// into a SpectrumRing; on each vsync the render thread takes whatever arrived, writes it into the
+// scrolling SpectrogramBitmap and redraws the surface. While the render thread is a full ring
+// behind, new frames are dropped, which shows as a gap in the history.
+public class SpectrogramView extends TextureView implements TextureView.SurfaceTextureListener {
+    private static final float MAX_SPECTROGRAM_HZ = 2000f;
+    private static final int SPECTROGRAM_COLUMNS = 260;
+    private static final int SPECTROGRAM_ROWS = 256;
+    // About a second and a half of analysis frames.
+    private static final int RING_FRAMES = 64;
+
+    private final SpectrumRing ring = new SpectrumRing(RING_FRAMES);
+    private final Object renderLock = new Object();
+    private volatile boolean micMode = true;
+
+    // Render thread state.
+    private final SpectrogramBitmap spectrogram =
+            new SpectrogramBitmap(SPECTROGRAM_COLUMNS, SPECTROGRAM_ROWS, MAX_SPECTROGRAM_HZ);
+    private final FloatRing pitchTrace = new FloatRing(SPECTROGRAM_COLUMNS);
+    private final SpectrumRing.Frame frame = new SpectrumRing.Frame();
+    private final float[] traceLines = new float[SPECTROGRAM_COLUMNS * 4];
+    private final Paint gridPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+    private final Paint labelPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+    private final Paint expectedPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+    private final Paint tracePaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+    private float expectedHz;
+    private boolean dirty;
+
+    private HandlerThread renderThread;
+    private Handler renderHandler;
+    private volatile boolean rendering;
+    private volatile int surfaceWidth;
+    private volatile int surfaceHeight;
+
+    private final Choreographer.FrameCallback renderFrame = new Choreographer.FrameCallback() {
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            if (!rendering) {
+                return;
+            }
+            drainFrames();
+            if (dirty) {
+                dirty = false;
+                render();
+            }
+            Choreographer.getInstance().postFrameCallback(this);
+        }
+    };
+
+    public SpectrogramView(Context context, AttributeSet attrs) {
+        super(context, attrs);
+        setOpaque(false);
+        setSurfaceTextureListener(this);
+
+        gridPaint.setColor(Color.LTGRAY);
+        gridPaint.setStrokeWidth(2f);
+
+        labelPaint.setColor(Color.parseColor("#424242"));
+        labelPaint.setTextSize(24f);
+
+        expectedPaint.setColor(Color.parseColor("#8E24AA"));
+        expectedPaint.setStrokeWidth(1.5f);
+
+        tracePaint.setColor(Color.parseColor("#2E7D32"));
+        tracePaint.setStrokeWidth(3f);
+        tracePaint.setStrokeCap(Paint.Cap.ROUND);
+    }
+
+    // Called on the analysis worker thread for every frame; never blocks and does not allocate.
+    public void pushFrame(float[] magnitudes, int sampleRate, boolean silent, float expectedHz, float detectedHz) {
+        ring.offer(magnitudes, sampleRate, silent, expectedHz, detectedHz);
+    }
+
+    // Shows the expected-pitch guide only while the microphone is being followed.
+    public void setMicMode(boolean micMode) {
+        this.micMode = micMode;
+    }
+
+    @Override
+    public void onSurfaceTextureAvailable(SurfaceTexture surface, int width, int height) {
+        surfaceWidth = width;
+        surfaceHeight = height;
+        synchronized (renderLock) {
+            rendering = true;
+            renderThread = new HandlerThread("spectrogram-render");
+            renderThread.start();
+            renderHandler = new Handler(renderThread.getLooper());
+            renderHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    dirty = true;
+                    Choreographer.getInstance().postFrameCallback(renderFrame);
+                }
+            });
+        }
+    }
+
+    @Override
+    public void onSurfaceTextureSizeChanged(SurfaceTexture surface, int width, int height) {
+        surfaceWidth = width;
+        surfaceHeight = height;
+        final Handler handler = renderHandler;
+        if (handler != null) {
+            handler.post(new Runnable() {
+                @Override
+                public void run() {
+                    dirty = true;
+                }
+            });
+        }
+    }
+
+    // Waits for the render thread to finish its current frame: the surface must not be drawn on
+    // once this returns.
+    @Override
+    public boolean onSurfaceTextureDestroyed(SurfaceTexture surface) {
+        HandlerThread thread;
+        synchronized (renderLock) {
+            rendering = false;
+            thread = renderThread;
+            renderThread = null;
+            renderHandler = null;
+        }
+        if (thread != null) {
+            thread.quitSafely();
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public void onSurfaceTextureUpdated(SurfaceTexture surface) {
+    }
+
+    private void drainFrames() {
+        while (ring.poll(frame)) {
+            spectrogram.addFrame(frame.magnitudes, frame.sampleRate);
+            pitchTrace.add(frame.detectedHz);
+            expectedHz = frame.expectedHz;
+            dirty = true;
+        }
+    }
+
+    private void render() {
+        int width = surfaceWidth;
+        int height = surfaceHeight;
+        if (width <= 0 || height <= 0) {
+            return;
+        }
+        Canvas canvas = lockCanvas();
+        if (canvas == null) {
+            return;
+        }
+        try {
+            canvas.drawColor(Color.TRANSPARENT, PorterDuff.Mode.CLEAR);
+            float top = 0f;
+            float bottom = height;
+            drawGrid(canvas, width, top, bottom);
+            spectrogram.draw(canvas, 0f, top, width, bottom);
+            drawPitchTrace(canvas, width, top, bottom);
+            if (micMode && expectedHz > 0f) {
+                float guideHz = Math.min(expectedHz * 2f, MAX_SPECTROGRAM_HZ);
+                float expectedY = yForFrequency(guideHz, top, bottom);
+                canvas.drawLine(0, expectedY, width, expectedY, expectedPaint);
+            }
+        } finally {
+            unlockCanvasAndPost(canvas);
+        }
+    }
+
+    private void drawGrid(Canvas canvas, float w, float top, float bottom) {
+        int gridLines = Math.max(1, (int) (MAX_SPECTROGRAM_HZ / 1000f));
+        for (int i = 0; i <= gridLines; i++) {
+            float hz = i * 1000f;
+            float y = yForFrequency(hz, top, bottom);
+            canvas.drawLine(0, y, w, y, gridPaint);
+            canvas.drawText(((int) hz) + " Hz", 8f, y - 4f, labelPaint);
+        }
+    }
+
+    // Detected pitch of each column, joined where consecutive columns both have one.
+    private void drawPitchTrace(Canvas canvas, float w, float top, float bottom) {
+        int columns = pitchTrace.size();
+        if (columns < 2) {
+            return;
+        }
+        float columnWidth = w / columns;
+        int points = 0;
+        for (int i = 1; i < columns; i++) {
+            float previous = pitchTrace.get(i - 1);
+            float current = pitchTrace.get(i);
+            if (previous <= 0f || current <= 0f) {
+                continue;
+            }
+            traceLines[points++] = (i - 0.5f) * columnWidth;
+            traceLines[points++] = yForFrequency(previous, top, bottom);
+            traceLines[points++] = (i + 0.5f) * columnWidth;
+            traceLines[points++] = yForFrequency(current, top, bottom);
+        }
+        if (points > 0) {
+            canvas.drawLines(traceLines, 0, points, tracePaint);
+        }
+    }
+
+    private float yForFrequency(float hz, float top, float bottom) {
+        float clamped = Math.max(0f, Math.min(MAX_SPECTROGRAM_HZ, hz));
+        return bottom - clamped / MAX_SPECTROGRAM_HZ * (bottom - top);
+    }
+}
@@ -0,0 +1,83 @@
+package tatar.eljah.recorder;
+
+// Running estimate of how fast the player is going, as the ratio of played to nominal note
+// lengths (2 is half speed). A scalar Kalman filter on the log of the ratio: every measured
+// note is one noisy observation, and the tempo is allowed to drift a little per note. Notes
+// far off the estimate are taken as wrong durations rather than a tempo change and are left
+// out, unless several in a row are off the same way: then the player did change tempo, and the
+// estimate starts over from its initial uncertainty.
+// Constant time and no allocation per note.
+final class TempoEstimator {
+    static final float MIN_RATIO = 0.5f;
+    static final float MAX_RATIO = 2f;
+
+    // Variances in squared log units: a note length is typically off by about 15%, the
+    // tempo drifts by about 3% per note and starts within about 15% of the nominal one.
+    private static final double MEASUREMENT_VARIANCE = 0.15d * 0.15d;
+    private static final double DRIFT_VARIANCE = 0.03d * 0.03d;
+    private static final double INITIAL_VARIANCE = 0.15d * 0.15d;
+    // Observations further than this many standard deviations away are rejected.
+    private static final double GATE_SIGMAS = 2.5d;
+    private static final int REJECTIONS_BEFORE_RESTART = 3;
+    private static final double LOG_MIN_RATIO = Math.log(MIN_RATIO);
+    private static final double LOG_MAX_RATIO = Math.log(MAX_RATIO);
+
+    private double logRatio;
+    private double variance;
+    private int observations;
+    // Consecutive rejected observations; negative when they were shorter than expected.
+    private int rejectedRun;
+
+    TempoEstimator() {
+        reset();
+    }
+
+    void reset() {
+        logRatio = 0d;
+        variance = INITIAL_VARIANCE;
+        observations = 0;
+        rejectedRun = 0;
+    }
+
+    // Played length of a note with the given nominal length; returns whether it was used.
+    boolean observe(long actualMs, long nominalMs) {
+        if (actualMs <= 0L || nominalMs <= 0L) {
+            return false;
+        }
+        variance += DRIFT_VARIANCE;
+        double measured = Math.log(actualMs / (double) nominalMs);
+        double innovation = measured - logRatio;
+        double innovationVariance = variance + MEASUREMENT_VARIANCE;
+        if (innovation * innovation > GATE_SIGMAS * GATE_SIGMAS * innovationVariance) {
+            rejectedRun = innovation > 0d ? Math.max(0, rejectedRun) + 1 : Math.min(0, rejectedRun) - 1;
+            if (Math.abs(rejectedRun) < REJECTIONS_BEFORE_RESTART) {
+                return false;
+            }
+            // Take the latest length as the new tempo guess.
+            logRatio = Math.max(LOG_MIN_RATIO, Math.min(LOG_MAX_RATIO, measured));
+            variance = INITIAL_VARIANCE;
+            rejectedRun = 0;
+            observations++;
+            return true;
+        }
+        rejectedRun = 0;
+        double gain = variance / innovationVariance;
+        logRatio = Math.max(LOG_MIN_RATIO, Math.min(LOG_MAX_RATIO, logRatio + gain * innovation));
+        variance *= 1d - gain;
+        observations++;
+        return true;
+    }
+
+    float ratio() {
+        return (float) Math.exp(logRatio);
+    }
+
+    // Expected played length of a note of nominalMs at the current tempo.
+    long expectedMs(long nominalMs) {
+        return Math.round(nominalMs * Math.exp(logRatio));
+    }
+
+    int observations() {
+        return observations;
+    }
+}
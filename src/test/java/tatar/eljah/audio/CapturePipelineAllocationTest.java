@@ -0,0 +1,251 @@
+package tatar.eljah.audio;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+
+public class CapturePipelineAllocationTest {
+    private static final int SAMPLE_RATE = 22050;
+
+    private int pitchFrames;
+    private int spectrumFrames;
+    private long audioSamples;
+
+    public void steadyStateCaptureShouldNotAllocate() {
+        PitchEstimator estimator = new AutocorrelationPitchEstimator(PitchAnalyzer.AutocorrelationMethod.FFT);
+        int frameSize = estimator.preferredFrameSize(SAMPLE_RATE);
+        FrameProcessor frames = new FrameProcessor(estimator, SAMPLE_RATE,
+                new PitchAnalyzer.PitchListener() {
+                    @Override
+                    public void onPitch(float pitchHz) {
+                        pitchFrames++;
+                    }
+                },
+                new PitchAnalyzer.SpectrumListener() {
+                    @Override
+                    public void onSpectrum(float[] magnitudes, int sampleRate) {
+                        spectrumFrames++;
+                    }
+                },
+                null,
+                false);
+        CapturePipeline pipeline = new CapturePipeline(SAMPLE_RATE, frameSize, PitchAnalyzer.DEFAULT_HOP_SIZE,
+                frames,
+                new PitchAnalyzer.AudioListener() {
+                    @Override
+                    public void onAudio(AudioBlock block) {
+                        audioSamples += block.length();
+                    }
+                });
+
+        long[] phase = new long[1];
+        feed(pipeline, phase, 200);
+
+        com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long thread = Thread.currentThread().getId();
+        long before = threads.getThreadAllocatedBytes(thread);
+        feed(pipeline, phase, 2000);
+        long allocated = threads.getThreadAllocatedBytes(thread) - before;
+
+        if (pitchFrames == 0 || spectrumFrames == 0 || audioSamples == 0L) {
+            throw new AssertionError("Pipeline must deliver pitch, spectrum and audio callbacks");
+        }
+        // Leave room for the measurement itself; a per-block copy alone would be ~1 MB here.
+        if (allocated > 4096L) {
+            throw new AssertionError("Steady-state capture allocated " + allocated + " bytes");
+        }
+    }
+
+    public void retainedBlockShouldNotBeReusedBeforeRelease() {
+        AudioBlockPool pool = new AudioBlockPool(64, 2);
+        AudioBlock first = pool.acquire();
+        first.retain();
+        first.release();
+        AudioBlock second = pool.acquire();
+        if (second == first) {
+            throw new AssertionError("Retained block must not be handed out again");
+        }
+        first.release();
+        second.release();
+        AudioBlock third = pool.acquire();
+        if (third != first && third != second) {
+            throw new AssertionError("Released blocks must be recycled");
+        }
+        third.release();
+        try {
+            third.release();
+            throw new AssertionError("Double release must be rejected");
+        } catch (IllegalStateException expected) {
+            // expected
+        }
+    }
+
+    public void recorderBacklogShouldSkipAnalysisButNotAudio() {
+        PitchEstimator estimator = new AutocorrelationPitchEstimator(PitchAnalyzer.AutocorrelationMethod.FFT);
+        int frameSize = estimator.preferredFrameSize(SAMPLE_RATE);
+        int hop = PitchAnalyzer.DEFAULT_HOP_SIZE;
+        final List<Long> positions = new ArrayList<Long>();
+        FrameProcessor frames = new FrameProcessor(estimator, SAMPLE_RATE, null, null,
+                new PitchAnalyzer.FrameListener() {
+                    @Override
+                    public void onFrame(FrameFeatures features) {
+                        positions.add(features.position());
+                    }
+                },
+                false);
+        audioSamples = 0L;
+        CapturePipeline pipeline = new CapturePipeline(SAMPLE_RATE, frameSize, hop, frames,
+                new PitchAnalyzer.AudioListener() {
+                    @Override
+                    public void onAudio(AudioBlock block) {
+                        audioSamples += block.length();
+                    }
+                });
+        long[] phase = new long[1];
+        feed(pipeline, phase, 40);
+        if (pipeline.skipBacklog((long) hop * CapturePipeline.MAX_BACKLOG_HOPS) != 0) {
+            throw new AssertionError("A backlog within the limit must not skip anything");
+        }
+        int before = positions.size();
+        long lastBefore = positions.get(before - 1);
+
+        // The recorder holds 40 more blocks than were read: their windows are skipped, except
+        // the newest one they complete.
+        int skipped = pipeline.skipBacklog(40L * hop);
+        feed(pipeline, phase, 40);
+        if (skipped != 39 || positions.size() != before + 1) {
+            throw new AssertionError("Expected 39 windows skipped and 1 analyzed, got " + skipped
+                    + " and " + (positions.size() - before));
+        }
+        if (positions.get(before) != lastBefore + 40L * hop) {
+            throw new AssertionError("Analysis should resume at the newest window, got " + positions.get(before));
+        }
+        if (audioSamples != 80L * hop) {
+            throw new AssertionError("Skipped windows must still reach the audio listener");
+        }
+    }
+
+    // Notes of 400 ms, each tongued with 10 ms of silence before it. A skip hides the start of
+    // note 3: no onset may be reported for it, nor anywhere but at a real note start.
+    public void onsetsShouldNotSpanSkippedWindows() {
+        PitchEstimator estimator = new AutocorrelationPitchEstimator(PitchAnalyzer.AutocorrelationMethod.FFT);
+        int frameSize = estimator.preferredFrameSize(SAMPLE_RATE);
+        int hop = PitchAnalyzer.DEFAULT_HOP_SIZE;
+        final List<Long> onsets = new ArrayList<Long>();
+        FrameProcessor frames = new FrameProcessor(estimator, SAMPLE_RATE, null, null, null, false);
+        frames.setOnsetDetector(new OnsetDetector(frameSize, hop, new PitchAnalyzer.OnsetListener() {
+            @Override
+            public void onOnset(long samplePosition, float strength, int latencySamples) {
+                onsets.add(samplePosition);
+            }
+        }));
+        CapturePipeline pipeline = new CapturePipeline(SAMPLE_RATE, frameSize, hop, frames, null);
+
+        int noteLength = SAMPLE_RATE * 2 / 5;
+        int silence = SAMPLE_RATE / 100;
+        float[] notes = new float[]{440f, 523.25f, 659.25f, 587.33f, 392f, 493.88f};
+        short[] pcm = new short[noteLength * notes.length];
+        for (int i = 0; i < pcm.length; i++) {
+            int note = i / noteLength;
+            int inNote = i % noteLength;
+            if (inNote >= silence) {
+                pcm[i] = (short) (8000 * Math.sin(2.0 * Math.PI * notes[note] * inNote / SAMPLE_RATE));
+            }
+        }
+
+        int blocks = pcm.length / hop;
+        int skipAt = (2 * noteLength - frameSize) / hop;
+        int skippedWindows = 0;
+        for (int b = 0; b < blocks; b++) {
+            if (b == skipAt) {
+                // Analysis resumes well inside note 3.
+                skippedWindows = pipeline.skipBacklog(noteLength);
+            }
+            AudioBlock block = pipeline.acquireBlock();
+            System.arraycopy(pcm, b * hop, block.samples(), 0, hop);
+            pipeline.process(block, hop);
+        }
+        if (skippedWindows == 0) {
+            throw new AssertionError("The backlog should have skipped windows");
+        }
+
+        long tolerance = hop / 2;
+        List<Integer> found = new ArrayList<Integer>();
+        for (long onset : onsets) {
+            int note = (int) ((onset + noteLength / 2) / noteLength);
+            if (Math.abs(onset - ((long) note * noteLength + silence)) > tolerance) {
+                throw new AssertionError("Onset at " + onset + " is not at a note start: " + onsets);
+            }
+            found.add(note);
+        }
+        if (found.contains(2)) {
+            throw new AssertionError("The start of note 3 was skipped and must not be reported: " + onsets);
+        }
+        if (!found.contains(1) || !found.contains(3) || !found.contains(4) || !found.contains(5)) {
+            throw new AssertionError("Notes before and after the gap should be found: " + onsets);
+        }
+    }
+
+    // Silence until a skip right after the first window, a steady tone from there on. The
+    // second window must not be compared with the first, or the gap reads as an attack.
+    public void skipAfterFirstWindowShouldNotReportAnOnset() {
+        PitchEstimator estimator = new AutocorrelationPitchEstimator(PitchAnalyzer.AutocorrelationMethod.FFT);
+        int frameSize = estimator.preferredFrameSize(SAMPLE_RATE);
+        int hop = PitchAnalyzer.DEFAULT_HOP_SIZE;
+        final List<Long> onsets = new ArrayList<Long>();
+        FrameProcessor frames = new FrameProcessor(estimator, SAMPLE_RATE, null, null, null, false);
+        frames.setOnsetDetector(new OnsetDetector(frameSize, hop, new PitchAnalyzer.OnsetListener() {
+            @Override
+            public void onOnset(long samplePosition, float strength, int latencySamples) {
+                onsets.add(samplePosition);
+            }
+        }));
+        CapturePipeline pipeline = new CapturePipeline(SAMPLE_RATE, frameSize, hop, frames, null);
+
+        int blocks = SAMPLE_RATE / hop;
+        int firstWindow = frameSize / hop;
+        int skippedWindows = 0;
+        for (int b = 0; b < blocks; b++) {
+            if (b == firstWindow) {
+                skippedWindows = pipeline.skipBacklog(frameSize * 2L);
+            }
+            AudioBlock block = pipeline.acquireBlock();
+            short[] samples = block.samples();
+            for (int i = 0; i < hop; i++) {
+                long n = (long) b * hop + i;
+                samples[i] = n < frameSize ? 0 : (short) (8000 * Math.sin(2.0 * Math.PI * 440.0 * n / SAMPLE_RATE));
+            }
+            pipeline.process(block, hop);
+        }
+        if (skippedWindows == 0) {
+            throw new AssertionError("The backlog should have skipped windows");
+        }
+        if (!onsets.isEmpty()) {
+            throw new AssertionError("The skip after the first window was taken for an onset: " + onsets);
+        }
+    }
+
+    private static void feed(CapturePipeline pipeline, long[] phase, int blocks) {
+        double step = 2.0 * Math.PI * 523.25 / SAMPLE_RATE;
+        for (int b = 0; b < blocks; b++) {
+            AudioBlock block = pipeline.acquireBlock();
+            short[] samples = block.samples();
+            int length = pipeline.blockSize();
+            for (int i = 0; i < length; i++) {
+                samples[i] = (short) (8000 * Math.sin(step * phase[0]++));
+            }
+            pipeline.process(block, length);
+        }
+    }
+
+    public static void main(String[] args) {
+        CapturePipelineAllocationTest test = new CapturePipelineAllocationTest();
+        test.steadyStateCaptureShouldNotAllocate();
+        test.retainedBlockShouldNotBeReusedBeforeRelease();
+        test.recorderBacklogShouldSkipAnalysisButNotAudio();
+        test.onsetsShouldNotSpanSkippedWindows();
+        test.skipAfterFirstWindowShouldNotReportAnOnset();
+        System.out.println("Capture pipeline allocation checks passed");
+    }
+}
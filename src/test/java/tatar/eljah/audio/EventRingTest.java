@@ -0,0 +1,102 @@
+package tatar.eljah.audio;
+
+public class EventRingTest {
+
+    public void eventsShouldArriveInOrderAcrossThreads() throws InterruptedException {
+        final EventRing ring = new EventRing(64);
+        final int count = 200000;
+        Thread producer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < count; i++) {
+                    while (!ring.offer(i & 7, i, -i, i * 3)) {
+                        Thread.yield();
+                    }
+                }
+            }
+        });
+        producer.start();
+        int[] event = new int[4];
+        int expected = 0;
+        while (expected < count) {
+            if (!ring.poll(event)) {
+                Thread.yield();
+                continue;
+            }
+            if (event[0] != (expected & 7) || event[1] != expected || event[2] != -expected
+                    || event[3] != expected * 3) {
+                throw new AssertionError("Event " + expected + " read back as " + event[1]);
+            }
+            expected++;
+        }
+        producer.join();
+        if (ring.poll(event)) {
+            throw new AssertionError("Ring should be empty once everything was read");
+        }
+    }
+
+    public void fullRingShouldRejectInsteadOfOverwriting() {
+        EventRing ring = new EventRing(6);
+        for (int i = 0; i < ring.capacity(); i++) {
+            ring.offer(1, i, 0, 0);
+        }
+        if (ring.offer(1, 99, 0, 0) || ring.dropped() != 1 || ring.size() != ring.capacity()) {
+            throw new AssertionError("A full ring must reject and count the event");
+        }
+        int[] event = new int[4];
+        ring.poll(event);
+        if (event[1] != 0 || !ring.offer(1, 100, 0, 0)) {
+            throw new AssertionError("The oldest event must survive and free a slot when read");
+        }
+    }
+
+    public void tripleBufferShouldHandOverOnlyTheLatestValue() throws InterruptedException {
+        final TripleBuffer<long[]> latest = new TripleBuffer<long[]>(new long[2], new long[2], new long[2]);
+        if (latest.poll() != null) {
+            throw new AssertionError("Nothing was published yet");
+        }
+        latest.editable()[0] = 1L;
+        latest.publish();
+        latest.editable()[0] = 2L;
+        latest.publish();
+        long[] value = latest.poll();
+        if (value == null || value[0] != 2L || latest.poll() != null) {
+            throw new AssertionError("Only the latest value should be handed over, once");
+        }
+
+        // Both halves of a value are written together, so a torn read shows up as a mismatch.
+        final long count = 500000L;
+        Thread producer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                for (long i = 3L; i <= count; i++) {
+                    long[] slot = latest.editable();
+                    slot[0] = i;
+                    slot[1] = -i;
+                    latest.publish();
+                }
+            }
+        });
+        producer.start();
+        long last = 2L;
+        while (last < count) {
+            value = latest.poll();
+            if (value == null) {
+                continue;
+            }
+            if (value[1] != -value[0] || value[0] <= last) {
+                throw new AssertionError("Read " + value[0] + "/" + value[1] + " after " + last);
+            }
+            last = value[0];
+        }
+        producer.join();
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        EventRingTest test = new EventRingTest();
+        test.eventsShouldArriveInOrderAcrossThreads();
+        test.fullRingShouldRejectInsteadOfOverwriting();
+        test.tripleBufferShouldHandOverOnlyTheLatestValue();
+        System.out.println("Event ring tests passed");
+    }
+}
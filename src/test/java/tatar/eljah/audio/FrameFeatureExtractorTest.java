@@ -0,0 +1,63 @@
+package tatar.eljah.audio;
+
+public class FrameFeatureExtractorTest {
+    private static final int SAMPLE_RATE = 22050;
+
+    public void levelsAndSpectrumShouldComeFromOnePass() {
+        short[] samples = new short[1024];
+        for (int i = 0; i < samples.length; i++) {
+            samples[i] = (short) (1000 + 8000 * Math.sin(2.0 * Math.PI * 440.0 * i / SAMPLE_RATE));
+        }
+        double sum = 0d;
+        double sumSquares = 0d;
+        int peak = 0;
+        for (short sample : samples) {
+            sum += sample;
+            sumSquares += (double) sample * sample;
+            peak = Math.max(peak, Math.abs(sample));
+        }
+
+        AutocorrelationPitchEstimator estimator = new AutocorrelationPitchEstimator(PitchAnalyzer.AutocorrelationMethod.FFT);
+        FrameFeatures features = new FrameFeatureExtractor()
+                .extract(samples, 0, samples.length, 4096L, SAMPLE_RATE, estimator, true);
+
+        assertClose("rms", Math.sqrt(sumSquares / samples.length) / 32768.0, features.rms(), 1e-6);
+        assertClose("dc", sum / samples.length / 32768.0, features.dcOffset(), 1e-6);
+        assertClose("peak", peak / 32768.0, features.peak(), 1e-6);
+        assertClose("pitch", 440.0, features.pitchHz(), 5.0);
+        if (features.pitchConfidence() < 0.9f || features.position() != 4096L) {
+            throw new AssertionError("Unexpected confidence " + features.pitchConfidence()
+                    + " or position " + features.position());
+        }
+
+        float[] expected = new float[512];
+        new FftPlan(1024).magnitudeSpectrum(samples, 0, expected);
+        float[] spectrum = features.spectrum();
+        for (int i = 0; i < expected.length; i++) {
+            assertClose("bin " + i, expected[i], spectrum[i], 1e-3);
+        }
+    }
+
+    public void silentFrameShouldHaveNoPitchAndNoSpectrumWhenNotRequested() {
+        short[] samples = new short[1024];
+        FrameFeatures features = new FrameFeatureExtractor()
+                .extract(samples, 0, samples.length, 0L, SAMPLE_RATE, new YinPitchEstimator(), false);
+        if (features.pitchHz() != 0f || features.pitchConfidence() != 0f || features.rms() != 0f
+                || features.spectrum() != null) {
+            throw new AssertionError("Silent frame must be unpitched and carry no spectrum");
+        }
+    }
+
+    private static void assertClose(String label, double expected, double actual, double tolerance) {
+        if (Math.abs(expected - actual) > tolerance) {
+            throw new AssertionError(label + ": expected " + expected + " but was " + actual);
+        }
+    }
+
+    public static void main(String[] args) {
+        FrameFeatureExtractorTest test = new FrameFeatureExtractorTest();
+        test.levelsAndSpectrumShouldComeFromOnePass();
+        test.silentFrameShouldHaveNoPitchAndNoSpectrumWhenNotRequested();
+        System.out.println("Frame feature tests passed");
+    }
+}
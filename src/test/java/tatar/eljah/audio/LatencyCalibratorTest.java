@@ -0,0 +1,76 @@
+package tatar.eljah.audio;
+
+import java.util.Random;
+
+public class LatencyCalibratorTest {
+    private static final int SAMPLE_RATE = PitchAnalyzer.REALTIME_SAMPLE_RATE;
+    private static final long MS = 1000000L;
+
+    public void clicksHeardThroughTheAnalyzerShouldGiveTheRoundTrip() {
+        int roundTripMs = 123;
+        final LatencyCalibrator calibrator = new LatencyCalibrator(SAMPLE_RATE);
+        short[] clicks = calibrator.clickTrack();
+
+        // Capture started 400 ms before playback; the clicks come back roundTripMs later, in
+        // a little room noise.
+        int warmUp = SAMPLE_RATE * 400 / 1000;
+        int delay = SAMPLE_RATE * roundTripMs / 1000;
+        short[] captured = new short[warmUp + delay + clicks.length + SAMPLE_RATE / 2];
+        Random random = new Random(7L);
+        for (int i = 0; i < captured.length; i++) {
+            captured[i] = (short) (random.nextGaussian() * 60d);
+        }
+        for (int i = 0; i < clicks.length; i++) {
+            captured[warmUp + delay + i] += (short) (clicks[i] / 4);
+        }
+
+        long playbackStart = 5000 * MS;
+        long captureStart = playbackStart - 400 * MS;
+        calibrator.playbackStarted(playbackStart);
+        calibrator.captured(captured.length, captureStart + captured.length * 1000L * MS / SAMPLE_RATE);
+
+        PitchAnalyzer analyzer = new PitchAnalyzer();
+        analyzer.setFrameSpectrumEnabled(false);
+        analyzer.setOnsetListener(new PitchAnalyzer.OnsetListener() {
+            @Override
+            public void onOnset(long samplePosition, float strength, int latencySamples) {
+                calibrator.onOnset(samplePosition);
+            }
+        });
+        analyzer.analyzePcm(captured, SAMPLE_RATE, null, null);
+
+        if (calibrator.detectedClicks() != calibrator.clickCount()) {
+            throw new AssertionError("Every click should be heard once, got " + calibrator.detectedClicks());
+        }
+        int measured = calibrator.latencyMs();
+        if (Math.abs(measured - roundTripMs) > 15) {
+            throw new AssertionError("Expected about " + roundTripMs + " ms, measured " + measured);
+        }
+    }
+
+    public void tooFewClicksShouldNotGiveALatency() {
+        LatencyCalibrator calibrator = new LatencyCalibrator(SAMPLE_RATE, 8);
+        calibrator.playbackStarted(0L);
+        calibrator.captured(0L, 0L);
+        for (int click = 0; click < 3; click++) {
+            long onsetSample = (calibrator.clickPosition(click) + SAMPLE_RATE / 10);
+            calibrator.onOnset(onsetSample);
+            // An echo of the same click does not count again.
+            calibrator.onOnset(onsetSample + SAMPLE_RATE / 20);
+        }
+        if (calibrator.detectedClicks() != 3 || calibrator.latencyMs() != -1) {
+            throw new AssertionError("Three of eight clicks are not enough for a measurement");
+        }
+        calibrator.onOnset(calibrator.clickPosition(3) + SAMPLE_RATE / 10);
+        if (calibrator.latencyMs() != 100) {
+            throw new AssertionError("Half of the clicks give the median, got " + calibrator.latencyMs());
+        }
+    }
+
+    public static void main(String[] args) {
+        LatencyCalibratorTest test = new LatencyCalibratorTest();
+        test.clicksHeardThroughTheAnalyzerShouldGiveTheRoundTrip();
+        test.tooFewClicksShouldNotGiveALatency();
+        System.out.println("Latency calibrator tests passed");
+    }
+}
@@ -0,0 +1,124 @@
+package tatar.eljah.audio;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+
+public class MappedWavSourceTest {
+    private static final int SAMPLE_RATE = 22050;
+
+    public void stereoFileWithExtraChunksShouldReadAsMono() throws Exception {
+        short[] left = tone(4000, 660.0);
+        short[] right = tone(4000, 660.0);
+        for (int i = 0; i < right.length; i++) {
+            right[i] = (short) (right[i] / 2);
+        }
+        File file = new File("target/mapped_wav_stereo.wav");
+        writeWav(file, left, right);
+
+        MappedWavSource source = MappedWavSource.open(file);
+        try {
+            if (source.channels() != 2 || source.sampleRate() != SAMPLE_RATE || source.length() != left.length) {
+                throw new AssertionError("Unexpected format: " + source.channels() + " ch, "
+                        + source.sampleRate() + " Hz, " + source.length() + " samples");
+            }
+            short[] mono = new short[300];
+            int read = source.read(left.length - 100, mono, 0, mono.length);
+            if (read != 100) {
+                throw new AssertionError("Read past the end must be truncated, got " + read);
+            }
+            for (int i = 0; i < read; i++) {
+                int sample = left.length - 100 + i;
+                if (mono[i] != (short) ((left[sample] + right[sample]) >> 1)) {
+                    throw new AssertionError("Sample " + sample + " is not the channel average");
+                }
+            }
+        } finally {
+            source.close();
+        }
+    }
+
+    public void streamedAnalysisShouldMatchInMemoryAnalysis() throws Exception {
+        short[] pcm = tone(SAMPLE_RATE * 2, 784.0);
+        File file = new File("target/mapped_wav_mono.wav");
+        writeWav(file, pcm, null);
+
+        PitchAnalyzer analyzer = new PitchAnalyzer();
+        final List<Float> inMemory = new ArrayList<Float>();
+        analyzer.analyzePcm(pcm, SAMPLE_RATE, null, null, null, new PitchAnalyzer.FrameListener() {
+            @Override
+            public void onFrame(FrameFeatures features) {
+                inMemory.add(features.pitchHz());
+            }
+        });
+
+        final List<Float> streamed = new ArrayList<Float>();
+        MappedWavSource source = MappedWavSource.open(file);
+        try {
+            analyzer.analyzePcm(source, null, null, null, new PitchAnalyzer.FrameListener() {
+                @Override
+                public void onFrame(FrameFeatures features) {
+                    streamed.add(features.pitchHz());
+                }
+            });
+            PitchTrack batch = analyzer.analyzePcmBatch(source, null, false);
+            for (int i = 0; i < batch.frameCount(); i++) {
+                if (batch.pitchHz()[i] != inMemory.get(i)) {
+                    throw new AssertionError("Batch frame " + i + " differs from in-memory analysis");
+                }
+            }
+        } finally {
+            source.close();
+        }
+        if (!inMemory.equals(streamed)) {
+            throw new AssertionError("Mapped WAV analysis must see the same frames as the in-memory array");
+        }
+    }
+
+    private static short[] tone(int length, double hz) {
+        short[] pcm = new short[length];
+        for (int i = 0; i < length; i++) {
+            pcm[i] = (short) (12000 * Math.sin(2.0 * Math.PI * hz * i / SAMPLE_RATE));
+        }
+        return pcm;
+    }
+
+    // Writes a minimal RIFF file with a LIST chunk before the data, like many recorders do.
+    private static void writeWav(File file, short[] left, short[] right) throws Exception {
+        File parent = file.getParentFile();
+        if (parent != null && !parent.exists()) {
+            parent.mkdirs();
+        }
+        int channels = right == null ? 1 : 2;
+        int dataBytes = left.length * channels * 2;
+        byte[] list = "INFOISFT\u0005\u0000\u0000\u0000test\u0000\u0000".getBytes("ISO-8859-1");
+        ByteBuffer out = ByteBuffer.allocate(12 + 24 + 8 + list.length + 8 + dataBytes).order(ByteOrder.LITTLE_ENDIAN);
+        out.put("RIFF".getBytes("US-ASCII")).putInt(out.capacity() - 8).put("WAVE".getBytes("US-ASCII"));
+        out.put("fmt ".getBytes("US-ASCII")).putInt(16).putShort((short) 1).putShort((short) channels)
+                .putInt(SAMPLE_RATE).putInt(SAMPLE_RATE * channels * 2).putShort((short) (channels * 2)).putShort((short) 16);
+        out.put("LIST".getBytes("US-ASCII")).putInt(list.length).put(list);
+        out.put("data".getBytes("US-ASCII")).putInt(dataBytes);
+        for (int i = 0; i < left.length; i++) {
+            out.putShort(left[i]);
+            if (right != null) {
+                out.putShort(right[i]);
+            }
+        }
+        FileOutputStream stream = new FileOutputStream(file);
+        try {
+            stream.write(out.array());
+        } finally {
+            stream.close();
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        MappedWavSourceTest test = new MappedWavSourceTest();
+        test.stereoFileWithExtraChunksShouldReadAsMono();
+        test.streamedAnalysisShouldMatchInMemoryAnalysis();
+        System.out.println("Mapped WAV source tests passed");
+    }
+}
@@ -0,0 +1,88 @@
+package tatar.eljah.audio;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+public class ParallelPcmAnalysisTest {
+    private static final int SAMPLE_RATE = 22050;
+
+    public void batchTrackShouldMatchSequentialFrames() {
+        short[] pcm = melody(6);
+        PitchAnalyzer analyzer = new PitchAnalyzer();
+        analyzer.setAutocorrelationMethod(PitchAnalyzer.AutocorrelationMethod.FFT);
+
+        final List<Float> pitches = new ArrayList<Float>();
+        final List<float[]> spectra = new ArrayList<float[]>();
+        analyzer.analyzePcm(pcm, SAMPLE_RATE, null, null, null, new PitchAnalyzer.FrameListener() {
+            @Override
+            public void onFrame(FrameFeatures features) {
+                pitches.add(features.pitchHz());
+                spectra.add(features.spectrum().clone());
+            }
+        });
+
+        PitchTrack track = analyzer.analyzePcmBatch(pcm, SAMPLE_RATE, true);
+        if (track.frameCount() != pitches.size()) {
+            throw new AssertionError("Expected " + pitches.size() + " frames but got " + track.frameCount());
+        }
+        int bins = track.spectrumBins();
+        int voiced = 0;
+        for (int i = 0; i < pitches.size(); i++) {
+            if (Float.floatToIntBits(pitches.get(i)) != Float.floatToIntBits(track.pitchHz()[i])) {
+                throw new AssertionError("Frame " + i + ": sequential " + pitches.get(i)
+                        + " vs batch " + track.pitchHz()[i]);
+            }
+            if (!Arrays.equals(spectra.get(i), Arrays.copyOfRange(track.spectrogram(), i * bins, (i + 1) * bins))) {
+                throw new AssertionError("Spectrum of frame " + i + " differs");
+            }
+            if (pitches.get(i) > 0f) {
+                voiced++;
+            }
+        }
+        if (voiced < pitches.size() / 2) {
+            throw new AssertionError("Melody should be mostly voiced, got " + voiced + "/" + pitches.size());
+        }
+    }
+
+    public void repeatedBatchRunsShouldBeIdentical() {
+        short[] pcm = melody(4);
+        PitchAnalyzer analyzer = new PitchAnalyzer();
+        PitchAnalyzer.EstimatorFactory yin = new PitchAnalyzer.EstimatorFactory() {
+            @Override
+            public PitchEstimator create() {
+                return new YinPitchEstimator();
+            }
+        };
+        PitchTrack first = analyzer.analyzePcmBatch(pcm, SAMPLE_RATE, yin, false);
+        for (int run = 0; run < 5; run++) {
+            PitchTrack again = analyzer.analyzePcmBatch(pcm, SAMPLE_RATE, yin, false);
+            if (!Arrays.equals(first.pitchHz(), again.pitchHz()) || again.hasSpectrogram()) {
+                throw new AssertionError("Batch analysis must be deterministic");
+            }
+        }
+    }
+
+    // Notes of one second each with a little noise, so some frames sit on note boundaries.
+    private static short[] melody(int seconds) {
+        double[] notes = {523.25, 698.46, 880.0, 587.33, 1046.5, 659.25};
+        Random random = new Random(7L);
+        short[] pcm = new short[seconds * SAMPLE_RATE];
+        double phase = 0d;
+        for (int i = 0; i < pcm.length; i++) {
+            double hz = notes[(i / SAMPLE_RATE) % notes.length];
+            phase += 2.0 * Math.PI * hz / SAMPLE_RATE;
+            double value = 0.6 * Math.sin(phase) + 0.2 * Math.sin(2.0 * phase) + 0.02 * random.nextGaussian();
+            pcm[i] = (short) (value * 20000);
+        }
+        return pcm;
+    }
+
+    public static void main(String[] args) {
+        ParallelPcmAnalysisTest test = new ParallelPcmAnalysisTest();
+        test.batchTrackShouldMatchSequentialFrames();
+        test.repeatedBatchRunsShouldBeIdentical();
+        System.out.println("Parallel PCM analysis tests passed");
+    }
+}
@@ -0,0 +1,103 @@
+package tatar.eljah.audio;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.Arrays;
+
+public class PcmCacheTest {
+    private static final int SAMPLE_RATE = 22050;
+
+    public void entriesShouldSurviveANewCacheThroughDisk() throws Exception {
+        File dir = freshDirectory("reload");
+        short[] pcm = samples(5000, 3);
+        new PcmCache(dir, 1L << 20, 1L << 20).put("piece|SINE", pcm, SAMPLE_RATE);
+
+        PcmCache reopened = new PcmCache(dir, 1L << 20, 1L << 20);
+        short[] loaded = reopened.get("piece|SINE");
+        if (!Arrays.equals(pcm, loaded)) {
+            throw new AssertionError("Disk copy should load the same samples");
+        }
+        if (!reopened.inMemory("piece|SINE") || reopened.get("other") != null) {
+            throw new AssertionError("Loaded entries are kept in memory; unknown keys miss");
+        }
+        MappedWavSource wav = MappedWavSource.open(reopened.fileFor("piece|SINE"));
+        try {
+            if (wav.sampleRate() != SAMPLE_RATE || wav.length() != pcm.length) {
+                throw new AssertionError("Disk entries should be plain WAV files");
+            }
+        } finally {
+            wav.close();
+        }
+    }
+
+    public void memoryShouldEvictLeastRecentlyUsed() {
+        File dir = freshDirectory("memory");
+        // Room for two entries of 1000 samples.
+        PcmCache cache = new PcmCache(dir, 4000L, 1L << 20);
+        cache.put("a", samples(1000, 1), SAMPLE_RATE);
+        cache.put("b", samples(1000, 2), SAMPLE_RATE);
+        cache.get("a");
+        cache.put("c", samples(1000, 3), SAMPLE_RATE);
+        if (!cache.inMemory("a") || cache.inMemory("b") || !cache.inMemory("c")) {
+            throw new AssertionError("b was least recently used and should have left memory");
+        }
+        if (cache.get("b") == null) {
+            throw new AssertionError("Evicted entries should still come back from disk");
+        }
+    }
+
+    public void diskShouldEvictOldestFilesOverBudget() throws Exception {
+        File dir = freshDirectory("disk");
+        // Each file is 2044 bytes; the budget holds two.
+        PcmCache cache = new PcmCache(dir, 0L, 4200L);
+        cache.put("a", samples(1000, 1), SAMPLE_RATE);
+        cache.fileFor("a").setLastModified(System.currentTimeMillis() - 60000L);
+        cache.put("b", samples(1000, 2), SAMPLE_RATE);
+        cache.fileFor("b").setLastModified(System.currentTimeMillis() - 30000L);
+        cache.put("c", samples(1000, 3), SAMPLE_RATE);
+        if (cache.fileFor("a").exists() || !cache.fileFor("b").exists() || !cache.fileFor("c").exists()) {
+            throw new AssertionError("The oldest file should be evicted first");
+        }
+    }
+
+    public void corruptFilesShouldMissAndBeRemoved() throws Exception {
+        File dir = freshDirectory("corrupt");
+        PcmCache cache = new PcmCache(dir, 1L << 20, 1L << 20);
+        File file = cache.fileFor("broken");
+        FileOutputStream out = new FileOutputStream(file);
+        out.write(new byte[]{1, 2, 3});
+        out.close();
+        if (cache.get("broken") != null || file.exists()) {
+            throw new AssertionError("Unreadable files should be dropped");
+        }
+    }
+
+    private short[] samples(int count, int seed) {
+        short[] pcm = new short[count];
+        for (int i = 0; i < count; i++) {
+            pcm[i] = (short) ((i * 31 + seed * 977) % 20000 - 10000);
+        }
+        return pcm;
+    }
+
+    private File freshDirectory(String name) {
+        File dir = new File("target/pcm-cache-test/" + name);
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        dir.mkdirs();
+        return dir;
+    }
+
+    public static void main(String[] args) throws Exception {
+        PcmCacheTest test = new PcmCacheTest();
+        test.entriesShouldSurviveANewCacheThroughDisk();
+        test.memoryShouldEvictLeastRecentlyUsed();
+        test.diskShouldEvictOldestFilesOverBudget();
+        test.corruptFilesShouldMissAndBeRemoved();
+        System.out.println("PCM cache tests passed");
+    }
+}
@@ -0,0 +1,61 @@
+package tatar.eljah.audio;
+
+public class PlaybackClockTest {
+    private static final int SAMPLE_RATE = 44100;
+    private static final long MS = 1000000L;
+
+    public void positionShouldExtrapolateFromTheLastAnchor() {
+        PlaybackClock clock = new PlaybackClock();
+        clock.start(SAMPLE_RATE, SAMPLE_RATE * 10L, 1000 * MS);
+        expect(clock.positionFrames(1000 * MS), 0L, "Playback starts at frame 0");
+        expect(clock.positionFrames(1100 * MS), 4410L, "100 ms after start");
+
+        // The output reports it is 20 ms behind the free-running estimate.
+        clock.update(3528L, 1100 * MS);
+        expect(clock.positionFrames(1100 * MS), 3528L, "An anchor replaces the estimate");
+        expect(clock.positionFrames(1150 * MS), 3528L + 2205L, "50 ms after the anchor");
+    }
+
+    public void positionShouldStayWithinThePiece() {
+        PlaybackClock clock = new PlaybackClock();
+        clock.start(SAMPLE_RATE, 1000L, 0L);
+        expect(clock.positionFrames(5000 * MS), 1000L, "Position stops at the end of the piece");
+        clock.update(0L, 10 * MS);
+        expect(clock.positionFrames(5 * MS), 0L, "Times before the anchor do not run backwards");
+    }
+
+    public void stopShouldFreezeThePosition() {
+        PlaybackClock clock = new PlaybackClock();
+        clock.start(SAMPLE_RATE, SAMPLE_RATE * 10L, 0L);
+        clock.stop(200 * MS);
+        if (clock.isRunning()) {
+            throw new AssertionError("Clock should not run after stop");
+        }
+        expect(clock.positionFrames(900 * MS), 8820L, "Stopped clock keeps the stop position");
+    }
+
+    public void loopShouldWrapBackToItsStart() {
+        PlaybackClock clock = new PlaybackClock();
+        clock.startLoop(SAMPLE_RATE, 1000L, 5410L, 0L);
+        expect(clock.positionFrames(0L), 1000L, "A loop starts at its first frame");
+        expect(clock.positionFrames(150 * MS), 1000L + 6615L - 4410L, "150 ms into a 100 ms loop");
+        // Frame counts past the loop end, as reported by the output, wrap the same way.
+        clock.update(1000L + 4410L * 3 + 10L, 400 * MS);
+        expect(clock.positionFrames(400 * MS), 1010L, "Reported frames wrap into the loop");
+    }
+
+    private static void expect(long actual, long expected, String message) {
+        if (actual != expected) {
+            throw new AssertionError(message + ": expected " + expected + " but was " + actual);
+        }
+    }
+
+    public static void main(String[] args) {
+        PlaybackClockTest test = new PlaybackClockTest();
+        test.positionShouldExtrapolateFromTheLastAnchor();
+        test.positionShouldStayWithinThePiece();
+        test.stopShouldFreezeThePosition();
+        test.loopShouldWrapBackToItsStart();
+        System.out.println("Playback clock tests passed");
+    }
+}
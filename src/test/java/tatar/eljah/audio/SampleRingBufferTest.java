@@ -0,0 +1,61 @@
+package tatar.eljah.audio;
+
+public class SampleRingBufferTest {
+
+    public void overlappingWindowsShouldSeeContinuousStream() {
+        SampleRingBuffer ring = new SampleRingBuffer(1024 + 256 * 6);
+        int frameSize = 1024;
+        int hop = 256;
+        short[] block = new short[100];
+        short[] frame = new short[frameSize];
+        long nextFrameStart = 0L;
+        short value = 0;
+        int frames = 0;
+        for (int iteration = 0; iteration < 500; iteration++) {
+            for (int i = 0; i < block.length; i++) {
+                block[i] = value++;
+            }
+            ring.write(block, 0, block.length);
+            while (nextFrameStart + frameSize <= ring.written()) {
+                if (!ring.read(nextFrameStart, frame, 0, frameSize)) {
+                    throw new AssertionError("Window at " + nextFrameStart + " must still be buffered");
+                }
+                for (int i = 0; i < frameSize; i++) {
+                    if (frame[i] != (short) (nextFrameStart + i)) {
+                        throw new AssertionError("Sample " + (nextFrameStart + i) + " read back as " + frame[i]);
+                    }
+                }
+                nextFrameStart += hop;
+                frames++;
+            }
+        }
+        long expectedFrames = (500L * block.length - frameSize) / hop + 1;
+        if (frames != expectedFrames) {
+            throw new AssertionError("Expected " + expectedFrames + " windows, got " + frames);
+        }
+    }
+
+    public void overwrittenRangeShouldBeRejected() {
+        SampleRingBuffer ring = new SampleRingBuffer(512);
+        short[] block = new short[ring.capacity()];
+        ring.write(block, 0, block.length);
+        ring.write(block, 0, 64);
+        short[] target = new short[128];
+        if (ring.read(0L, target, 0, target.length)) {
+            throw new AssertionError("Samples overwritten by the producer must not be returned");
+        }
+        if (!ring.read(64L, target, 0, target.length)) {
+            throw new AssertionError("Oldest retained samples must be readable");
+        }
+        if (ring.read(ring.written() - 10, target, 0, target.length)) {
+            throw new AssertionError("Samples not written yet must not be returned");
+        }
+    }
+
+    public static void main(String[] args) {
+        SampleRingBufferTest test = new SampleRingBufferTest();
+        test.overlappingWindowsShouldSeeContinuousStream();
+        test.overwrittenRangeShouldBeRejected();
+        System.out.println("SampleRingBuffer tests passed");
+    }
+}
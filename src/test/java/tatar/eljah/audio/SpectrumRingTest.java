@@ -0,0 +1,100 @@
+package tatar.eljah.audio;
+
+import java.util.Arrays;
+
+public class SpectrumRingTest {
+
+    public void framesShouldReadBackWithTheirPitch() {
+        SpectrumRing ring = new SpectrumRing(5);
+        if (ring.capacity() != 8) {
+            throw new AssertionError("Capacity should round up to a power of two, was " + ring.capacity());
+        }
+        SpectrumRing.Frame frame = new SpectrumRing.Frame();
+        if (ring.poll(frame)) {
+            throw new AssertionError("Nothing was written yet");
+        }
+        ring.offer(new float[]{1f, 2f, 3f}, 44100, false, 440f, 442f);
+        ring.offer(new float[]{4f, 5f, 6f}, 44100, true, 440f, 0f);
+        if (!ring.poll(frame) || frame.magnitudes[2] != 3f || frame.sampleRate != 44100
+                || frame.expectedHz != 440f || frame.detectedHz != 442f) {
+            throw new AssertionError("First frame should read back as written");
+        }
+        if (!ring.poll(frame) || frame.magnitudes[0] != 0f || frame.magnitudes[2] != 0f) {
+            throw new AssertionError("A silent frame should be stored as zeros");
+        }
+        if (ring.size() != 0) {
+            throw new AssertionError("Both frames were taken");
+        }
+    }
+
+    public void fullRingShouldRejectNewFrames() {
+        SpectrumRing ring = new SpectrumRing(4);
+        for (int i = 0; i < 6; i++) {
+            boolean accepted = ring.offer(new float[]{i}, 8000, false, 0f, i);
+            if (accepted != (i < 4)) {
+                throw new AssertionError("Frame " + i + " accepted = " + accepted);
+            }
+        }
+        if (ring.dropped() != 2 || ring.size() != 4) {
+            throw new AssertionError("Expected 2 drops and 4 queued, got " + ring.dropped() + " and " + ring.size());
+        }
+        SpectrumRing.Frame frame = new SpectrumRing.Frame();
+        if (!ring.poll(frame) || frame.magnitudes[0] != 0f || frame.detectedHz != 0f) {
+            throw new AssertionError("The oldest frame should survive a full ring");
+        }
+        if (!ring.offer(new float[]{1f, 1f}, 8000, false, 0f, 0f)) {
+            throw new AssertionError("A freed slot should take a new frame");
+        }
+        for (int i = 0; i < 3; i++) {
+            ring.poll(frame);
+        }
+        if (!ring.poll(frame) || frame.magnitudes.length != 2) {
+            throw new AssertionError("The frame should follow a change of spectrum size");
+        }
+    }
+
+    // Every bin of a frame holds its number, so a torn read shows up as a mismatch.
+    public void readerShouldNeverSeeATornFrame() throws InterruptedException {
+        final SpectrumRing ring = new SpectrumRing(8);
+        final int count = 100000;
+        Thread producer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                float[] magnitudes = new float[64];
+                for (int i = 0; i < count; i++) {
+                    Arrays.fill(magnitudes, i);
+                    while (!ring.offer(magnitudes, 8000, false, i, i)) {
+                        Thread.yield();
+                    }
+                }
+            }
+        });
+        producer.start();
+        SpectrumRing.Frame frame = new SpectrumRing.Frame();
+        int expected = 0;
+        while (expected < count) {
+            if (!ring.poll(frame)) {
+                Thread.yield();
+                continue;
+            }
+            for (int bin = 0; bin < frame.magnitudes.length; bin++) {
+                if (frame.magnitudes[bin] != expected) {
+                    throw new AssertionError("Frame " + expected + " had bin " + bin + " = " + frame.magnitudes[bin]);
+                }
+            }
+            if (frame.detectedHz != expected) {
+                throw new AssertionError("Frame " + expected + " had pitch " + frame.detectedHz);
+            }
+            expected++;
+        }
+        producer.join();
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        SpectrumRingTest test = new SpectrumRingTest();
+        test.framesShouldReadBackWithTheirPitch();
+        test.fullRingShouldRejectNewFrames();
+        test.readerShouldNeverSeeATornFrame();
+        System.out.println("Spectrum ring tests passed");
+    }
+}
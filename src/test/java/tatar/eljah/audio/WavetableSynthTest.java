@@ -0,0 +1,99 @@
+package tatar.eljah.audio;
+
+public class WavetableSynthTest {
+    private static final int SAMPLE_RATE = 22050;
+
+    public void sineShouldMatchDirectSynthesis() {
+        double frequency = 587.33;
+        int total = SAMPLE_RATE / 2;
+        int fade = SAMPLE_RATE * 8 / 1000;
+        WavetableSynth synth = new WavetableSynth(SAMPLE_RATE, WavetableSynth.Timbre.SINE);
+        synth.startNote(frequency, total, fade);
+        short[] out = render(synth, total, 1000);
+        for (int i = fade; i < total - fade; i++) {
+            double expected = Math.sin(2d * Math.PI * frequency * i / SAMPLE_RATE) * WavetableSynth.DEFAULT_AMPLITUDE;
+            if (Math.abs(out[i] - expected) > 2d) {
+                throw new AssertionError("Sample " + i + ": " + out[i] + " vs " + expected);
+            }
+        }
+        if (out[0] != 0 || out[total - 1] != 0) {
+            throw new AssertionError("Fades should start and end at silence");
+        }
+        for (int i = 1; i < fade; i++) {
+            if (Math.abs(out[i]) > WavetableSynth.DEFAULT_AMPLITUDE * i / (float) fade + 1f) {
+                throw new AssertionError("Attack exceeds its ramp at " + i);
+            }
+        }
+    }
+
+    public void phaseShouldStayAccurateOverLongNotes() {
+        // Ten minutes of one note: count rising zero crossings over the last second.
+        double frequency = 440d;
+        int total = SAMPLE_RATE * 600;
+        WavetableSynth synth = new WavetableSynth(SAMPLE_RATE, WavetableSynth.Timbre.SINE);
+        synth.startNote(frequency, total, 0);
+        short[] buffer = new short[4096];
+        int crossings = 0;
+        short previous = 0;
+        int lastSecondStart = total - SAMPLE_RATE;
+        int position = 0;
+        while (synth.remaining() > 0) {
+            int count = synth.render(buffer, 0, buffer.length);
+            for (int i = 0; i < count; i++, position++) {
+                if (position >= lastSecondStart && previous < 0 && buffer[i] >= 0) {
+                    crossings++;
+                }
+                previous = buffer[i];
+            }
+        }
+        if (Math.abs(crossings - 440) > 1) {
+            throw new AssertionError("Expected 440 cycles in the last second, counted " + crossings);
+        }
+    }
+
+    public void recorderTimbreShouldStayInRangeAndKeepPitch() {
+        WavetableSynth synth = new WavetableSynth(SAMPLE_RATE, WavetableSynth.Timbre.RECORDER);
+        int total = SAMPLE_RATE;
+        synth.startNote(523.25, total, 176);
+        short[] out = render(synth, total, 777);
+        int peak = 0;
+        for (short sample : out) {
+            peak = Math.max(peak, Math.abs(sample));
+        }
+        if (peak > WavetableSynth.DEFAULT_AMPLITUDE || peak < WavetableSynth.DEFAULT_AMPLITUDE / 2) {
+            throw new AssertionError("Unexpected peak " + peak);
+        }
+        float pitch = new McLeodPitchEstimator().estimatePitch(out, SAMPLE_RATE / 4, 2048, SAMPLE_RATE);
+        if (Math.abs(pitch - 523.25f) > 5f) {
+            throw new AssertionError("Recorder timbre should keep its fundamental: " + pitch);
+        }
+    }
+
+    public void renderShouldStopAtEndOfNote() {
+        WavetableSynth synth = new WavetableSynth(SAMPLE_RATE, WavetableSynth.Timbre.SINE);
+        synth.startNote(440d, 1000, 100);
+        short[] buffer = new short[600];
+        if (synth.render(buffer, 0, 600) != 600 || synth.render(buffer, 0, 600) != 400
+                || synth.render(buffer, 0, 600) != 0 || synth.remaining() != 0) {
+            throw new AssertionError("render should hand out exactly the note's samples");
+        }
+    }
+
+    private short[] render(WavetableSynth synth, int total, int chunk) {
+        short[] out = new short[total];
+        int position = 0;
+        while (synth.remaining() > 0) {
+            position += synth.render(out, position, Math.min(chunk, total - position));
+        }
+        return out;
+    }
+
+    public static void main(String[] args) {
+        WavetableSynthTest test = new WavetableSynthTest();
+        test.sineShouldMatchDirectSynthesis();
+        test.phaseShouldStayAccurateOverLongNotes();
+        test.recorderTimbreShouldStayInRangeAndKeepPitch();
+        test.renderShouldStopAtEndOfNote();
+        System.out.println("Wavetable synth tests passed");
+    }
+}
@@ -0,0 +1,83 @@
+package tatar.eljah.recorder;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class CompiledScoreTest {
+    private static final String[] NAMES = {
+            "C", "C#", "Db", "D", "D#", "Eb", "E", "F", "F#", "Gb", "G", "G#", "Ab", "A", "A#", "Bb", "B"
+    };
+
+    public void matchesShouldAgreeWithStringComparison() {
+        RecorderNoteMapper mapper = new RecorderNoteMapper();
+        List<NoteEvent> notes = new ArrayList<NoteEvent>();
+        for (int octave = 4; octave <= 6; octave++) {
+            for (String name : NAMES) {
+                notes.add(new NoteEvent(name, octave, "quarter", 0));
+            }
+        }
+        CompiledScore score = CompiledScore.compile(notes, mapper);
+        for (int i = 0; i < notes.size(); i++) {
+            NoteEvent note = notes.get(i);
+            for (int detectedMidi = 60; detectedMidi <= 93; detectedMidi++) {
+                String detected = mapper.nameForMidi(detectedMidi);
+                for (int mode = 0; mode < 2; mode++) {
+                    boolean simplified = mode == 1;
+                    boolean expected = PitchMatchUtil.samePitch(detected, note.fullName(), simplified);
+                    if (score.matches(i, detectedMidi, simplified) != expected) {
+                        throw new AssertionError(note.fullName() + " vs " + detected
+                                + (simplified ? " (simplified)" : "") + ": expected " + expected);
+                    }
+                }
+            }
+        }
+    }
+
+    // Note boundaries lie halfway between table frequencies in cents, not in Hz.
+    public void midiFromFrequencyShouldAgreeWithFrequencyLookup() {
+        RecorderNoteMapper mapper = new RecorderNoteMapper();
+        for (float hz = 200f; hz < 2200f; hz += 0.37f) {
+            String name = mapper.fromFrequency(hz);
+            int midi = mapper.midiFromFrequency(hz);
+            if (!name.equals(mapper.nameForMidi(midi))) {
+                throw new AssertionError(hz + " Hz: " + name + " vs MIDI " + midi);
+            }
+            double distance = Math.abs(Math.log(mapper.frequencyFor(name) / hz));
+            for (int neighbour = midi - 1; neighbour <= midi + 1; neighbour += 2) {
+                float neighbourHz = mapper.frequencyForMidi(neighbour);
+                if (neighbourHz > 0f && Math.abs(Math.log(neighbourHz / hz)) < distance) {
+                    throw new AssertionError(hz + " Hz: " + name + " is not the closest note in cents");
+                }
+            }
+        }
+        // 453 Hz is nearer to A4 (440) in Hz but nearer to A#4 (466.16) in cents.
+        if (!"A#4".equals(mapper.fromFrequency(453f))) {
+            throw new AssertionError("453 Hz should quantize to A#4, got " + mapper.fromFrequency(453f));
+        }
+    }
+
+    public void compiledArraysShouldFollowNotes() {
+        RecorderNoteMapper mapper = new RecorderNoteMapper();
+        List<NoteEvent> notes = new ArrayList<NoteEvent>();
+        notes.add(new NoteEvent("A", 4, "half", 0));
+        notes.add(new NoteEvent("C", 3, "16th", 0));
+        CompiledScore score = CompiledScore.compile(notes, mapper);
+        if (score.size() != 2 || score.midi(0) != 69 || score.midi(1) != 48) {
+            throw new AssertionError("Unexpected MIDI numbers");
+        }
+        if (score.expectedHz(0) != 440f || Math.abs(score.expectedHz(1) - 130.81f) > 0.01f) {
+            throw new AssertionError("Unexpected frequencies " + score.expectedHz(0) + ", " + score.expectedHz(1));
+        }
+        if (score.durationMs(0) != 900 || score.durationMs(1) != 120) {
+            throw new AssertionError("Unexpected durations");
+        }
+    }
+
+    public static void main(String[] args) {
+        CompiledScoreTest test = new CompiledScoreTest();
+        test.matchesShouldAgreeWithStringComparison();
+        test.midiFromFrequencyShouldAgreeWithFrequencyLookup();
+        test.compiledArraysShouldFollowNotes();
+        System.out.println("Compiled score tests passed");
+    }
+}
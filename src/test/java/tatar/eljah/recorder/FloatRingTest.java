@@ -0,0 +1,46 @@
+package tatar.eljah.recorder;
+
+public class FloatRingTest {
+
+    public void fullRingShouldDropTheOldestValue() {
+        FloatRing ring = new FloatRing(4);
+        for (int i = 0; i < 10; i++) {
+            ring.add(i);
+            int expectedSize = Math.min(i + 1, ring.capacity());
+            if (ring.size() != expectedSize) {
+                throw new AssertionError("Expected " + expectedSize + " values, got " + ring.size());
+            }
+            for (int k = 0; k < ring.size(); k++) {
+                float expected = i - ring.size() + 1 + k;
+                if (ring.get(k) != expected) {
+                    throw new AssertionError("After adding " + i + ", value " + k + " was " + ring.get(k));
+                }
+            }
+            if (ring.last() != i) {
+                throw new AssertionError("Latest value should be " + i);
+            }
+        }
+        ring.clear();
+        if (!ring.isEmpty()) {
+            throw new AssertionError("Cleared ring should be empty");
+        }
+    }
+
+    public void readingPastTheHeldValuesShouldFail() {
+        FloatRing ring = new FloatRing(3);
+        ring.add(1f);
+        try {
+            ring.get(1);
+        } catch (IndexOutOfBoundsException expected) {
+            return;
+        }
+        throw new AssertionError("Only one value is held");
+    }
+
+    public static void main(String[] args) {
+        FloatRingTest test = new FloatRingTest();
+        test.fullRingShouldDropTheOldestValue();
+        test.readingPastTheHeldValuesShouldFail();
+        System.out.println("Float ring tests passed");
+    }
+}
@@ -4,6 +4,13 @@ import org.w3c.dom.Document;
 import org.w3c.dom.Element;
 import org.w3c.dom.NodeList;
 
+import tatar.eljah.audio.FrameFeatures;
+import tatar.eljah.audio.MappedWavSource;
+import tatar.eljah.audio.McLeodPitchEstimator;
+import tatar.eljah.audio.PitchAnalyzer;
+import tatar.eljah.audio.PitchEstimator;
+import tatar.eljah.audio.YinPitchEstimator;
+
 import javax.sound.sampled.AudioFileFormat;
 import javax.sound.sampled.AudioFormat;
 import javax.sound.sampled.AudioInputStream;
@@ -18,9 +25,6 @@ public class MidiRecognitionRegressionTest {
     private static final int SAMPLE_RATE = 22050;
     private static final int FRAME_SIZE = 1024;
     private static final int HOP_SIZE = 512;
-    private static final int MIN_MATCH_HOLD_MS = 110;
-    private static final float MIN_MATCH_HOLD_DURATION_FRACTION = 0.45f;
-    private static final float DURATION_MISMATCH_TOLERANCE_FRACTION = 0.60f;
 
     private enum RecognitionMode {
         MIDI,
@@ -83,6 +87,273 @@ public class MidiRecognitionRegressionTest {
         }
     }
 
+    public void fftAutocorrelationShouldMatchTimeDomainEstimator() throws Exception {
+        List<NoteEvent> notes = parseReferenceScore(new File("src/main/assets/reference_score.xml"));
+        if (notes.isEmpty()) {
+            throw new AssertionError("reference score must not be empty");
+        }
+
+        short[] pcm = synthesizeScore(notes, false);
+        List<Float> timeDomain = analyzeWithMethod(pcm, PitchAnalyzer.AutocorrelationMethod.TIME_DOMAIN);
+        List<Float> fft = analyzeWithMethod(pcm, PitchAnalyzer.AutocorrelationMethod.FFT);
+        if (timeDomain.isEmpty()) {
+            throw new AssertionError("Time-domain estimator must detect pitches in the synthesized score");
+        }
+        if (timeDomain.size() != fft.size()) {
+            throw new AssertionError("FFT autocorrelation detected " + fft.size() + " pitched frames, time-domain " + timeDomain.size());
+        }
+        for (int i = 0; i < timeDomain.size(); i++) {
+            if (Float.compare(timeDomain.get(i), fft.get(i)) != 0) {
+                throw new AssertionError("Frame " + i + ": FFT autocorrelation picked " + fft.get(i)
+                        + " Hz, time-domain picked " + timeDomain.get(i) + " Hz");
+            }
+        }
+    }
+
+    public void yinAndMcLeodEstimatorsShouldTrackReferenceNotesWithoutOctaveCorrection() throws Exception {
+        List<NoteEvent> notes = parseReferenceScore(new File("src/main/assets/reference_score.xml"));
+        if (notes.isEmpty()) {
+            throw new AssertionError("reference score must not be empty");
+        }
+
+        RecorderNoteMapper mapper = new RecorderNoteMapper();
+        PitchEstimator[] estimators = new PitchEstimator[]{new YinPitchEstimator(), new McLeodPitchEstimator()};
+        for (PitchEstimator estimator : estimators) {
+            PitchAnalyzer analyzer = new PitchAnalyzer();
+            for (int i = 0; i < notes.size(); i++) {
+                NoteEvent note = notes.get(i);
+                List<NoteEvent> single = new ArrayList<NoteEvent>();
+                single.add(note);
+                final List<Float> pitches = new ArrayList<Float>();
+                analyzer.analyzePcm(synthesizeScore(single, false), SAMPLE_RATE, estimator, new PitchAnalyzer.PitchListener() {
+                    @Override
+                    public void onPitch(float pitchHz) {
+                        pitches.add(pitchHz);
+                    }
+                }, null);
+                if (pitches.isEmpty()) {
+                    throw new AssertionError(estimator.getClass().getSimpleName() + " detected nothing for note "
+                            + (i + 1) + " " + note.fullName());
+                }
+                for (float hz : pitches) {
+                    String detected = mapper.fromFrequency(hz);
+                    if (!samePitch(detected, note.fullName())) {
+                        throw new AssertionError(estimator.getClass().getSimpleName() + " heard " + detected + " (" + hz
+                                + " Hz) for note " + (i + 1) + " " + note.fullName());
+                    }
+                }
+            }
+        }
+    }
+
+    public void spectrumPeakShouldFollowSynthesizedNotes() {
+        String[] names = new String[]{"D4", "A4", "F5", "D6"};
+        for (String name : names) {
+            List<NoteEvent> single = new ArrayList<NoteEvent>();
+            single.add(new NoteEvent(name.substring(0, 1), Integer.parseInt(name.substring(1)), "half", 0));
+            final int midi = MusicNotation.midiFor(name.substring(0, 1), Integer.parseInt(name.substring(1)));
+            final double expectedHz = 440.0 * Math.pow(2.0, (midi - 69) / 12.0);
+            final int[] frames = new int[1];
+            new PitchAnalyzer().analyzePcm(synthesizeScore(single, false), SAMPLE_RATE, null, new PitchAnalyzer.SpectrumListener() {
+                @Override
+                public void onSpectrum(float[] magnitudes, int sampleRate) {
+                    int peak = 0;
+                    for (int i = 1; i < magnitudes.length; i++) {
+                        if (magnitudes[i] > magnitudes[peak]) {
+                            peak = i;
+                        }
+                    }
+                    double binHz = sampleRate / (2.0 * magnitudes.length);
+                    if (Math.abs(peak * binHz - expectedHz) > binHz) {
+                        throw new AssertionError("Spectrum peak at " + (peak * binHz) + " Hz, expected " + expectedHz + " Hz");
+                    }
+                    frames[0]++;
+                }
+            });
+            if (frames[0] == 0) {
+                throw new AssertionError("No spectrum frames for " + name);
+            }
+        }
+    }
+
+    public void mappedReferenceWavShouldStreamSamePitchesAsSynthesizedPcm() throws Exception {
+        List<NoteEvent> notes = parseReferenceScore(new File("src/main/assets/reference_score.xml"));
+        short[] pcm = synthesizeScore(notes, false);
+        File wav = new File("target/reference_score_synth.wav");
+        writeWav(pcm, SAMPLE_RATE, wav);
+
+        List<Float> expected = analyzeWithMethod(pcm, PitchAnalyzer.AutocorrelationMethod.TIME_DOMAIN);
+        final List<Float> streamed = new ArrayList<Float>();
+        MappedWavSource source = MappedWavSource.open(wav);
+        try {
+            if (source.length() != pcm.length || source.sampleRate() != SAMPLE_RATE) {
+                throw new AssertionError("Mapped WAV must expose the written samples: " + source.length() + "/" + pcm.length);
+            }
+            new PitchAnalyzer().analyzePcm(source, null, new PitchAnalyzer.PitchListener() {
+                @Override
+                public void onPitch(float pitchHz) {
+                    streamed.add(pitchHz);
+                }
+            }, null, null);
+        } finally {
+            source.close();
+        }
+        if (!expected.equals(streamed)) {
+            throw new AssertionError("Streaming from the mapped WAV must match in-memory analysis");
+        }
+    }
+
+    public void spectralFluxShouldMarkEveryNoteStartIncludingRepeatedPitches() throws Exception {
+        List<NoteEvent> notes = parseReferenceScore(new File("src/main/assets/reference_score.xml"));
+        short[] pcm = synthesizeScore(notes, false);
+        long[] starts = new long[notes.size()];
+        long position = 0L;
+        for (int i = 0; i < notes.size(); i++) {
+            starts[i] = position;
+            position += SAMPLE_RATE * notes.get(i).durationMs() / 1000;
+        }
+
+        final List<Long> onsets = new ArrayList<Long>();
+        final int[] latency = new int[1];
+        PitchAnalyzer analyzer = new PitchAnalyzer();
+        // At the realtime cadence rather than the half-frame hop of offline analysis.
+        analyzer.setHopSize(PitchAnalyzer.DEFAULT_HOP_SIZE);
+        analyzer.setOnsetListener(new PitchAnalyzer.OnsetListener() {
+            @Override
+            public void onOnset(long samplePosition, float strength, int latencySamples) {
+                onsets.add(samplePosition);
+                latency[0] = latencySamples;
+            }
+        });
+        analyzer.analyzePcm(pcm, SAMPLE_RATE, null, null, null);
+
+        // Within half a hop (about 6 ms) of the true boundary.
+        long tolerance = analyzer.getHopSize() / 2;
+        int found = 0;
+        for (long start : starts) {
+            for (long onset : onsets) {
+                if (Math.abs(onset - start) <= tolerance) {
+                    found++;
+                    break;
+                }
+            }
+        }
+        if (found < notes.size() - 1) {
+            throw new AssertionError("Onsets found for " + found + "/" + notes.size() + " notes: " + onsets);
+        }
+        if (onsets.size() > notes.size() + 2) {
+            throw new AssertionError("Too many spurious onsets: " + onsets.size() + " for " + notes.size() + " notes");
+        }
+        if (latency[0] <= 0 || latency[0] > FRAME_SIZE * 2) {
+            throw new AssertionError("Unexpected onset latency " + latency[0]);
+        }
+    }
+
+    public void viterbiDecoderShouldFollowScoreThroughOctaveSlipsAndNoise() throws Exception {
+        List<NoteEvent> notes = parseReferenceScore(new File("src/main/assets/reference_score.xml"));
+        short[] pcm = synthesizeScore(notes, false);
+        final List<float[]> frames = new ArrayList<float[]>();
+        final boolean[] onsetPending = new boolean[1];
+        PitchAnalyzer analyzer = new PitchAnalyzer();
+        analyzer.setHopSize(PitchAnalyzer.DEFAULT_HOP_SIZE);
+        analyzer.setFrameSpectrumEnabled(false);
+        // Onsets are reported while the frame after them is processed, before its callback.
+        analyzer.setOnsetListener(new PitchAnalyzer.OnsetListener() {
+            @Override
+            public void onOnset(long samplePosition, float strength, int latencySamples) {
+                onsetPending[0] = true;
+            }
+        });
+        analyzer.analyzePcm(pcm, SAMPLE_RATE, null, null, null, new PitchAnalyzer.FrameListener() {
+            @Override
+            public void onFrame(FrameFeatures features) {
+                frames.add(new float[]{features.pitchHz(), features.pitchConfidence(), onsetPending[0] ? 1f : 0f});
+                onsetPending[0] = false;
+            }
+        });
+        int hop = analyzer.getHopSize();
+
+        float[] expectedHz = new float[notes.size()];
+        int[] durations = new int[notes.size()];
+        int[] startFrames = new int[notes.size()];
+        long start = 0L;
+        for (int i = 0; i < notes.size(); i++) {
+            NoteEvent note = notes.get(i);
+            expectedHz[i] = (float) (440.0 * Math.pow(2.0, (MusicNotation.midiFor(note.noteName, note.octave) - 69) / 12.0));
+            durations[i] = note.durationMs();
+            // First frame whose window is mostly inside the note.
+            startFrames[i] = (int) Math.max(0L, (start - FRAME_SIZE / 2 + hop - 1) / hop);
+            start += SAMPLE_RATE * durations[i] / 1000;
+        }
+
+        int[] clean = decodeNoteEntries(frames, expectedHz, durations, hop);
+        for (int i = 0; i < notes.size(); i++) {
+            if (clean[i] < 0) {
+                throw new AssertionError("Decoder never entered note " + (i + 1));
+            }
+            if (Math.abs(clean[i] - startFrames[i]) > 4) {
+                throw new AssertionError("Note " + (i + 1) + " entered at frame " + clean[i]
+                        + " instead of about " + startFrames[i]);
+            }
+        }
+
+        // Every 7th voiced frame jumps an octave up and every 11th is unrelated noise.
+        java.util.Random random = new java.util.Random(3L);
+        int voiced = 0;
+        for (float[] frame : frames) {
+            if (frame[0] <= 0f) {
+                continue;
+            }
+            voiced++;
+            if (voiced % 7 == 0) {
+                frame[0] *= 2f;
+            } else if (voiced % 11 == 0) {
+                frame[0] = 300f + random.nextFloat() * 1500f;
+                frame[1] = 0.6f;
+            }
+        }
+        int[] noisy = decodeNoteEntries(frames, expectedHz, durations, hop);
+        for (int i = 0; i < notes.size(); i++) {
+            if (noisy[i] < 0 || Math.abs(noisy[i] - clean[i]) > 4) {
+                throw new AssertionError("Corrupted frames moved note " + (i + 1) + " from frame "
+                        + clean[i] + " to " + noisy[i]);
+            }
+        }
+    }
+
+    // Frame at which the decoder's decision first reports each note, or -1.
+    private int[] decodeNoteEntries(List<float[]> frames, float[] expectedHz, int[] durations, int hop) {
+        ScoreViterbiDecoder decoder = new ScoreViterbiDecoder(expectedHz, durations, hop / (float) SAMPLE_RATE);
+        int[] entries = new int[expectedHz.length];
+        java.util.Arrays.fill(entries, -1);
+        int lastNote = ScoreViterbiDecoder.NO_NOTE;
+        for (int i = 0; i < frames.size(); i++) {
+            float[] frame = frames.get(i);
+            int note = decoder.consume(frame[0], frame[1], frame[2] > 0f);
+            if (note != ScoreViterbiDecoder.NO_NOTE && note != lastNote) {
+                if (note < lastNote) {
+                    throw new AssertionError("Decoder moved backwards from note " + lastNote + " to " + note);
+                }
+                entries[note] = Math.max(0, i - decoder.lookBack());
+                lastNote = note;
+            }
+        }
+        return entries;
+    }
+
+    private List<Float> analyzeWithMethod(short[] pcm, PitchAnalyzer.AutocorrelationMethod method) {
+        final List<Float> pitches = new ArrayList<Float>();
+        PitchAnalyzer analyzer = new PitchAnalyzer();
+        analyzer.setAutocorrelationMethod(method);
+        analyzer.analyzePcm(pcm, SAMPLE_RATE, new PitchAnalyzer.PitchListener() {
+            @Override
+            public void onPitch(float pitchHz) {
+                pitches.add(pitchHz);
+            }
+        }, null);
+        return pitches;
+    }
+
     private int countTrue(boolean[] values) {
         int c = 0;
         for (boolean value : values) {
@@ -143,7 +414,7 @@ public class MidiRecognitionRegressionTest {
         List<Short> out = new ArrayList<Short>();
         for (int idx = 0; idx < notes.size(); idx++) {
             NoteEvent note = notes.get(idx);
-            int ms = durationMs(note.duration);
+            int ms = note.durationMs();
             if (alterDurations && idx >= 2 && idx % 4 == 0) {
                 ms = Math.max(80, (int) (ms * 2.20f));
             }
@@ -177,158 +448,70 @@ public class MidiRecognitionRegressionTest {
     }
 
     private RecognitionResult runRecognition(List<NoteEvent> notes, short[] pcm, RecognitionMode mode) {
-        RecorderNoteMapper mapper = new RecorderNoteMapper();
-        int pointer = 0;
-        long lastMatchAcceptedAtMs = -1L;
-        RecognitionResult result = new RecognitionResult();
+        final RecognitionResult result = new RecognitionResult();
         result.matched = new boolean[notes.size()];
         result.mismatch = new boolean[notes.size()];
         result.durationMismatch = new boolean[notes.size()];
 
-        for (int pos = 0; pos + FRAME_SIZE <= pcm.length && pointer < notes.size(); pos += HOP_SIZE) {
-            NoteEvent expected = notes.get(pointer);
-            float expectedHz = expectedFrequencyFor(expected, mapper);
-            float detectedHz = estimatePitch(pcm, pos, FRAME_SIZE, SAMPLE_RATE);
-            detectedHz = normalizeDetectedPitch(detectedHz, expectedHz, mapper);
-            String detected = mapper.fromFrequency(detectedHz);
-            if (!samePitch(detected, expected.fullName())) {
-                result.mismatch[pointer] = true;
-                continue;
+        RecorderNoteMapper mapper = new RecorderNoteMapper();
+        final ScoreFollower follower = new ScoreFollower(CompiledScore.compile(notes, mapper), mapper,
+                HOP_SIZE / (float) SAMPLE_RATE, new ScoreFollower.Listener() {
+            @Override
+            public void onWaitingForIntensity(int pointer, float expectedHz) {
             }
 
-            long nowMs = (pos * 1000L) / SAMPLE_RATE;
-            long minHoldMs = Math.max(MIN_MATCH_HOLD_MS,
-                    (long) (durationMs(expected.duration) * MIN_MATCH_HOLD_DURATION_FRACTION));
-            if (lastMatchAcceptedAtMs >= 0L && nowMs - lastMatchAcceptedAtMs < minHoldMs) {
-                continue;
+            @Override
+            public void onPitch(int pointer, float expectedHz, float detectedHz, int detectedMidi) {
             }
 
-            if (mode == RecognitionMode.TABLATURE && lastMatchAcceptedAtMs >= 0L && pointer > 0) {
-                long actualDurationMs = nowMs - lastMatchAcceptedAtMs;
-                NoteEvent previous = notes.get(pointer - 1);
-                long expectedDurationMs = durationMs(previous.duration);
-                long allowedDeviation = (long) (expectedDurationMs * DURATION_MISMATCH_TOLERANCE_FRACTION);
-                long deviation = Math.abs(actualDurationMs - expectedDurationMs);
-                result.durationMismatch[pointer - 1] = deviation > allowedDeviation;
+            @Override
+            public void onNoteMismatch(int index, int detectedMidi) {
+                result.mismatch[index] = true;
             }
 
-            lastMatchAcceptedAtMs = nowMs;
-            result.mismatch[pointer] = false;
-            result.matched[pointer] = true;
-            pointer++;
-        }
-
-        result.recognizedCount = pointer;
-        return result;
-    }
-
-    private float expectedFrequencyFor(NoteEvent note, RecorderNoteMapper mapper) {
-        float mapped = mapper.frequencyFor(note.fullName());
-        if (mapped > 0f) {
-            return mapped;
-        }
-        int midi = MusicNotation.midiFor(note.noteName, note.octave);
-        return (float) (440.0 * Math.pow(2.0, (midi - 69) / 12.0));
-    }
-
-    private float normalizeDetectedPitch(float detectedHz, float expectedFrequency, RecorderNoteMapper mapper) {
-        if (detectedHz <= 0f) {
-            return detectedHz;
-        }
-
-        float halvedHz = detectedHz / 2f;
-        float minMappedHz = mapper.frequencyFor("D4");
-        float maxMappedHz = mapper.frequencyFor("A6");
-
-        boolean directInRange = detectedHz >= minMappedHz && detectedHz <= maxMappedHz;
-        boolean halvedInRange = halvedHz >= minMappedHz && halvedHz <= maxMappedHz;
-
-        if (!directInRange && halvedInRange) {
-            return halvedHz;
-        }
-
-        if (expectedFrequency <= 0f) {
-            return detectedHz;
-        }
-
-        float directDiff = Math.abs(detectedHz - expectedFrequency);
-        float halvedDiff = Math.abs(halvedHz - expectedFrequency);
-
-        if (halvedInRange && halvedDiff < directDiff) {
-            return halvedHz;
-        }
-
-        return detectedHz;
-    }
-
-    private float estimatePitch(short[] pcm, int start, int length, int sampleRate) {
-        if (length < 64 || sampleRate <= 0) {
-            return 0f;
-        }
-
-        double mean = 0d;
-        for (int i = 0; i < length; i++) {
-            mean += pcm[start + i];
-        }
-        mean /= length;
-
-        double rms = 0d;
-        for (int i = 0; i < length; i++) {
-            double centered = pcm[start + i] - mean;
-            rms += centered * centered;
-        }
-        rms = Math.sqrt(rms / length);
-        if (rms < 250d) {
-            return 0f;
-        }
+            @Override
+            public void onNoteMatched(int index, int detectedMidi) {
+                result.mismatch[index] = false;
+                result.matched[index] = true;
+            }
 
-        int minLag = Math.max(4, sampleRate / 2600);
-        int maxLag = Math.min(length / 2, sampleRate / 120);
-        if (maxLag <= minLag) {
-            return 0f;
-        }
+            @Override
+            public void onDurationChecked(int index, boolean mismatch) {
+                result.durationMismatch[index] = mismatch;
+            }
 
-        double[] corr = new double[maxLag + 1];
-        for (int lag = minLag; lag <= maxLag; lag++) {
-            double sum = 0d;
-            double energyA = 0d;
-            double energyB = 0d;
-            int limit = length - lag;
-            for (int i = 0; i < limit; i++) {
-                double a = pcm[start + i] - mean;
-                double b = pcm[start + i + lag] - mean;
-                sum += a * b;
-                energyA += a * a;
-                energyB += b * b;
+            @Override
+            public void onPointerChanged(int pointer) {
+                result.recognizedCount = pointer;
             }
-            if (energyA <= 0d || energyB <= 0d) {
-                continue;
+
+            @Override
+            public void onCompleted() {
             }
-            corr[lag] = sum / Math.sqrt(energyA * energyB);
-        }
 
-        int bestLag = -1;
-        final double minCorr = 0.55d;
-        for (int lag = minLag + 1; lag < maxLag; lag++) {
-            double normalized = corr[lag];
-            if (normalized < minCorr) {
-                continue;
+            @Override
+            public void onLoopRestarted(int start, int end) {
             }
-            if (normalized > corr[lag - 1] && normalized >= corr[lag + 1]) {
-                bestLag = lag;
-                break;
+        });
+        follower.setDurationCheckEnabled(mode == RecognitionMode.TABLATURE);
+
+        PitchAnalyzer analyzer = new PitchAnalyzer();
+        analyzer.setHopSize(HOP_SIZE);
+        analyzer.setFrameSpectrumEnabled(false);
+        analyzer.setOnsetListener(new PitchAnalyzer.OnsetListener() {
+            @Override
+            public void onOnset(long samplePosition, float strength, int latencySamples) {
+                follower.onOnset(ScoreFollower.streamTimeMs(samplePosition, SAMPLE_RATE));
             }
-        }
-
-        if (bestLag <= 0) {
-            return 0f;
-        }
-
-        float frequency = sampleRate / (float) bestLag;
-        if (frequency < 120f || frequency > 2600f) {
-            return 0f;
-        }
-        return frequency;
+        });
+        analyzer.analyzePcm(pcm, SAMPLE_RATE, null, null, null, new PitchAnalyzer.FrameListener() {
+            @Override
+            public void onFrame(FrameFeatures features) {
+                follower.onFrame(ScoreFollower.frameTimeMs(features), features.pitchHz(),
+                        features.pitchConfidence(), features.rms());
+            }
+        });
+        return result;
     }
 
     private boolean samePitch(String firstFullName, String secondFullName) {
@@ -352,22 +535,6 @@ public class MidiRecognitionRegressionTest {
         }
     }
 
-    private int durationMs(String duration) {
-        if ("16th".equals(duration)) {
-            return 120;
-        }
-        if ("eighth".equals(duration)) {
-            return 240;
-        }
-        if ("half".equals(duration)) {
-            return 900;
-        }
-        if ("whole".equals(duration)) {
-            return 1800;
-        }
-        return 450;
-    }
-
     private void writeWav(short[] pcm, int sampleRate, File file) throws Exception {
         File parent = file.getParentFile();
         if (parent != null && !parent.exists()) {
@@ -390,6 +557,12 @@ public class MidiRecognitionRegressionTest {
         MidiRecognitionRegressionTest test = new MidiRecognitionRegressionTest();
         test.synthesizedReferenceScoreShouldRecognizeAllNotes();
         test.tablatureModeShouldDetectDurationMismatches();
+        test.fftAutocorrelationShouldMatchTimeDomainEstimator();
+        test.yinAndMcLeodEstimatorsShouldTrackReferenceNotesWithoutOctaveCorrection();
+        test.spectrumPeakShouldFollowSynthesizedNotes();
+        test.mappedReferenceWavShouldStreamSamePitchesAsSynthesizedPcm();
+        test.spectralFluxShouldMarkEveryNoteStartIncludingRepeatedPitches();
+        test.viterbiDecoderShouldFollowScoreThroughOctaveSlipsAndNoise();
         System.out.println("recognized=OK");
     }
 }
@@ -0,0 +1,89 @@
+package tatar.eljah.recorder;
+
+import java.util.Random;
+
+public class NoteLayoutIndexTest {
+
+    public void rangesAndNearestShouldMatchAFullScan() {
+        Random random = new Random(11L);
+        int count = 5000;
+        float[] xs = new float[count];
+        float[] ys = new float[count];
+        for (int i = 0; i < count; i++) {
+            xs[i] = random.nextFloat() * 10000f;
+            ys[i] = random.nextFloat() * 300f - 150f;
+        }
+        NoteLayoutIndex index = new NoteLayoutIndex();
+        index.setNotes(xs, ys, count);
+
+        for (int query = 0; query < 200; query++) {
+            float from = random.nextFloat() * 10000f;
+            float to = from + random.nextFloat() * 500f;
+            int inRange = 0;
+            for (int rank = index.firstRankFrom(from); rank < index.endRankAt(to); rank++) {
+                float x = xs[index.noteAt(rank)];
+                if (x < from || x > to) {
+                    throw new AssertionError("Note at " + x + " is outside " + from + ".." + to);
+                }
+                inRange++;
+            }
+            int expected = 0;
+            for (float x : xs) {
+                if (x >= from && x <= to) expected++;
+            }
+            if (inRange != expected) {
+                throw new AssertionError("Expected " + expected + " notes in range, got " + inRange);
+            }
+
+            float px = random.nextFloat() * 10000f;
+            float py = random.nextFloat() * 300f - 150f;
+            int nearest = index.nearestNote(px, py, 30f);
+            int scanned = -1;
+            float best = 30f * 30f;
+            for (int i = 0; i < count; i++) {
+                float d = (xs[i] - px) * (xs[i] - px) + (ys[i] - py) * (ys[i] - py);
+                if (d <= best) {
+                    best = d;
+                    scanned = i;
+                }
+            }
+            if (nearest != scanned && !(nearest >= 0 && scanned >= 0 && sameDistance(xs, ys, nearest, scanned, px, py))) {
+                throw new AssertionError("Nearest note " + nearest + " differs from the scan " + scanned);
+            }
+        }
+    }
+
+    public void labelStabShouldFindOverlappingLabels() {
+        // Two rows of labels; a long one in the first row spans several short ones below it.
+        float[] start = {0f, 10f, 20f, 30f, 5f};
+        float[] end = {8f, 18f, 28f, 38f, 60f};
+        float[] top = {0f, 0f, 0f, 0f, 20f};
+        float[] bottom = {10f, 10f, 10f, 10f, 30f};
+        NoteLayoutIndex index = new NoteLayoutIndex();
+        index.setLabels(start, end, top, bottom, start.length);
+        expect(index.labelAt(25f, 5f), 2, "Short label under the point");
+        expect(index.labelAt(50f, 25f), 4, "Long label started far to the left");
+        expect(index.labelAt(9f, 5f), -1, "Gap between labels");
+        expect(index.labelAt(70f, 25f), -1, "Past every label");
+        expect(index.labelAt(-1f, 5f), -1, "Before every label");
+    }
+
+    private static boolean sameDistance(float[] xs, float[] ys, int a, int b, float px, float py) {
+        float da = (xs[a] - px) * (xs[a] - px) + (ys[a] - py) * (ys[a] - py);
+        float db = (xs[b] - px) * (xs[b] - px) + (ys[b] - py) * (ys[b] - py);
+        return da == db;
+    }
+
+    private static void expect(int actual, int expected, String message) {
+        if (actual != expected) {
+            throw new AssertionError(message + ": expected " + expected + " but was " + actual);
+        }
+    }
+
+    public static void main(String[] args) {
+        NoteLayoutIndexTest test = new NoteLayoutIndexTest();
+        test.rangesAndNearestShouldMatchAFullScan();
+        test.labelStabShouldFindOverlappingLabels();
+        System.out.println("Note layout index tests passed");
+    }
+}
@@ -0,0 +1,80 @@
+package tatar.eljah.recorder;
+
+public class RecorderNoteMapperTest {
+
+    public void quantizerShouldPickNearestNoteOnLogScale() {
+        RecorderNoteMapper mapper = new RecorderNoteMapper();
+        for (float hz = 200f; hz < 2200f; hz += 0.37f) {
+            int midi = mapper.midiFromFrequency(hz);
+            int nearest = RecorderNoteMapper.MIN_MIDI;
+            double best = Double.MAX_VALUE;
+            for (int candidate = RecorderNoteMapper.MIN_MIDI; candidate <= RecorderNoteMapper.MAX_MIDI; candidate++) {
+                double distance = Math.abs(Math.log(hz / mapper.frequencyForMidi(candidate)));
+                if (distance < best) {
+                    best = distance;
+                    nearest = candidate;
+                }
+            }
+            if (midi != nearest) {
+                throw new AssertionError(hz + " Hz quantized to " + midi + ", nearest is " + nearest);
+            }
+            float cents = mapper.centsFromNearest(hz);
+            boolean inRange = midi > RecorderNoteMapper.MIN_MIDI && midi < RecorderNoteMapper.MAX_MIDI;
+            if (inRange && Math.abs(cents) > 50.001f) {
+                throw new AssertionError(hz + " Hz is " + cents + " cents from " + midi);
+            }
+            double expectedCents = 1200d * Math.log(hz / mapper.frequencyForMidi(midi)) / Math.log(2d);
+            if (Math.abs(cents - expectedCents) > 0.05d) {
+                throw new AssertionError(hz + " Hz: " + cents + " cents, expected " + expectedCents);
+            }
+        }
+    }
+
+    public void referencePitchShouldShiftTable() {
+        RecorderNoteMapper baroque = new RecorderNoteMapper(415f);
+        if (baroque.frequencyFor("A4") != 415f) {
+            throw new AssertionError("A4 should follow the reference: " + baroque.frequencyFor("A4"));
+        }
+        // 440 Hz is a semitone above A4 = 415 Hz.
+        if (!"A#4".equals(baroque.fromFrequency(440f))) {
+            throw new AssertionError("440 Hz at A4 = 415 Hz should read as A#4: " + baroque.fromFrequency(440f));
+        }
+        if (Math.abs(new RecorderNoteMapper().centsFromNearest(442f) - 7.85f) > 0.05f) {
+            throw new AssertionError("442 Hz should be about 8 cents sharp of A4");
+        }
+    }
+
+    public void stringFacadeShouldKeepSpellingsAndFingerings() {
+        RecorderNoteMapper mapper = new RecorderNoteMapper();
+        if (!"C#5".equals(mapper.fromFrequency(554f)) || !"A6".equals(mapper.fromFrequency(5000f))
+                || !"C4".equals(mapper.fromFrequency(0f))) {
+            throw new AssertionError("Unexpected names from fromFrequency");
+        }
+        if (mapper.frequencyFor("Db5") != mapper.frequencyFor("C#5") || mapper.frequencyFor("C3") != 0f) {
+            throw new AssertionError("Enharmonic or out-of-range frequency lookup changed");
+        }
+        if (Math.abs(mapper.frequencyFor("C4") - 261.63f) > 0.01f) {
+            throw new AssertionError("C4 should be 261.63 Hz: " + mapper.frequencyFor("C4"));
+        }
+        if (!mapper.fingeringFor("Bb4").equals(mapper.fingeringFor("A#4"))
+                || !"◐○○|○○○○".equals(mapper.fingeringFor("Bb4"))) {
+            throw new AssertionError("Enharmonic fingerings should match the table");
+        }
+        // Below the range the nearest fingering is used.
+        if (!mapper.fingeringFor("A3").equals(mapper.fingeringFor("C4"))
+                || !mapper.fingeringFor("C7").equals(mapper.fingeringFor("A6"))) {
+            throw new AssertionError("Out-of-range notes should fall back to the nearest fingering");
+        }
+        if (!"нет данных".equals(mapper.fingeringFor("X4"))) {
+            throw new AssertionError("Unparseable notes have no fingering");
+        }
+    }
+
+    public static void main(String[] args) {
+        RecorderNoteMapperTest test = new RecorderNoteMapperTest();
+        test.quantizerShouldPickNearestNoteOnLogScale();
+        test.referencePitchShouldShiftTable();
+        test.stringFacadeShouldKeepSpellingsAndFingerings();
+        System.out.println("Recorder note mapper tests passed");
+    }
+}
@@ -0,0 +1,126 @@
+package tatar.eljah.recorder;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class ScoreFollowerTest {
+    private static final float FRAME_SECONDS = 512f / 22050f;
+    private static final long FRAME_MS = Math.round(FRAME_SECONDS * 1000f);
+    private static final String[] SCALE = {"C", "D", "E", "F", "G", "A", "B"};
+
+    private final List<Integer> mismatches = new ArrayList<Integer>();
+    private final long[] time = new long[1];
+
+    // Every fifth frame is an octave slip or a wrong pitch; the decoder outvotes them.
+    public void singleBadFramesShouldNeitherFailNorStallANote() {
+        RecorderNoteMapper mapper = new RecorderNoteMapper();
+        CompiledScore score = CompiledScore.compile(scale(7), mapper);
+        ScoreFollower follower = follower(score, mapper);
+        for (int note = 0; note < score.size(); note++) {
+            int frames = frames(score, note);
+            follower.onOnset(time[0]);
+            for (int f = 0; f < frames; f++) {
+                float hz = score.expectedHz(note);
+                if (f % 5 == 2) {
+                    hz = f % 10 == 2 ? hz * 2f : hz * 1.33f;
+                }
+                frame(follower, hz);
+            }
+        }
+        if (!follower.isCompleted()) {
+            throw new AssertionError("Bad frames stalled the follower at note " + follower.pointer());
+        }
+        if (!mismatches.isEmpty()) {
+            throw new AssertionError("Single bad frames were reported as wrong notes: " + mismatches);
+        }
+    }
+
+    // Skipping a note is a mismatch of that note, and playing it afterwards still advances.
+    public void skippedNoteShouldNotDetachTheDecoder() {
+        RecorderNoteMapper mapper = new RecorderNoteMapper();
+        CompiledScore score = CompiledScore.compile(scale(4), mapper);
+        ScoreFollower follower = follower(score, mapper);
+        play(follower, score, 0);
+        play(follower, score, 2);
+        if (follower.pointer() != 1 || !mismatches.contains(1)) {
+            throw new AssertionError("The skipped note should be marked, pointer " + follower.pointer()
+                    + ", mismatches " + mismatches);
+        }
+        play(follower, score, 1);
+        play(follower, score, 2);
+        play(follower, score, 3);
+        if (!follower.isCompleted()) {
+            throw new AssertionError("Follower stuck at note " + follower.pointer() + " after a skipped note");
+        }
+    }
+
+    private ScoreFollower follower(CompiledScore score, RecorderNoteMapper mapper) {
+        ScoreFollower follower = new ScoreFollower(score, mapper, FRAME_SECONDS, new ScoreFollower.Listener() {
+            @Override
+            public void onWaitingForIntensity(int pointer, float expectedHz) {
+            }
+
+            @Override
+            public void onPitch(int pointer, float expectedHz, float detectedHz, int detectedMidi) {
+            }
+
+            @Override
+            public void onNoteMismatch(int index, int detectedMidi) {
+                mismatches.add(index);
+            }
+
+            @Override
+            public void onNoteMatched(int index, int detectedMidi) {
+            }
+
+            @Override
+            public void onDurationChecked(int index, boolean mismatch) {
+            }
+
+            @Override
+            public void onPointerChanged(int pointer) {
+            }
+
+            @Override
+            public void onCompleted() {
+            }
+
+            @Override
+            public void onLoopRestarted(int start, int end) {
+            }
+        });
+        follower.setIntensityThreshold(0.01f);
+        return follower;
+    }
+
+    private void play(ScoreFollower follower, CompiledScore score, int note) {
+        follower.onOnset(time[0]);
+        for (int f = frames(score, note); f > 0; f--) {
+            frame(follower, score.expectedHz(note));
+        }
+    }
+
+    private void frame(ScoreFollower follower, float hz) {
+        follower.onFrame(time[0], hz, 0.9f, 0.2f);
+        time[0] += FRAME_MS;
+    }
+
+    private static int frames(CompiledScore score, int note) {
+        return Math.max(1, Math.round(score.durationMs(note) / 1000f / FRAME_SECONDS));
+    }
+
+    // Ascending notes from C5, wrapping within one octave so they stay in the recorder range.
+    private static List<NoteEvent> scale(int count) {
+        List<NoteEvent> notes = new ArrayList<NoteEvent>();
+        for (int i = 0; i < count; i++) {
+            notes.add(new NoteEvent(SCALE[i % SCALE.length], 5, "quarter", i / 4));
+        }
+        return notes;
+    }
+
+    public static void main(String[] args) {
+        new ScoreFollowerTest().singleBadFramesShouldNeitherFailNorStallANote();
+        new ScoreFollowerTest().skippedNoteShouldNotDetachTheDecoder();
+        System.out.println("Score follower tests passed");
+    }
+}
@@ -0,0 +1,207 @@
+package tatar.eljah.recorder;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+
+public class ScoreLoopTest {
+    private static final float FRAME_SECONDS = 512f / 22050f;
+    private static final String[] SCALE = {"C", "D", "E", "F", "G", "A", "B"};
+
+    private int loopRestarts;
+    private int lastPointer = -1;
+    private final List<Integer> durationChecks = new ArrayList<Integer>();
+
+    public void loopShouldGoBackToItsStartOnTheFrameThatEndsIt() {
+        RecorderNoteMapper mapper = new RecorderNoteMapper();
+        CompiledScore score = CompiledScore.compile(scale(5), mapper);
+        ScoreFollower follower = new ScoreFollower(score, mapper, FRAME_SECONDS, recordingListener());
+        follower.setIntensityThreshold(0.01f);
+        follower.setLoop(1, 4);
+        follower.restart();
+        if (follower.pointer() != 1) {
+            throw new AssertionError("A loop starts at its first note, not at " + follower.pointer());
+        }
+
+        long[] time = new long[1];
+        for (int pass = 0; pass < 2; pass++) {
+            play(follower, score, 1, time);
+            play(follower, score, 2, time);
+            // The wrap happens inside the frame that accepts the last note of the loop.
+            int frames = play(follower, score, 3, time);
+            if (loopRestarts != pass + 1 || follower.pointer() != 1 || lastPointer != 1) {
+                throw new AssertionError("Pass " + pass + ": expected to be back at note 1, pointer "
+                        + follower.pointer() + ", restarts " + loopRestarts);
+            }
+            if (frames != 1) {
+                throw new AssertionError("Loop restart took " + frames + " frames");
+            }
+        }
+        play(follower, score, 1, time);
+        if (follower.isCompleted() || follower.actualDurationMs(3) <= 0L) {
+            throw new AssertionError("A loop never completes, and its last note is timed against the repeat");
+        }
+        if (durationChecks.contains(4) || !durationChecks.contains(3)) {
+            throw new AssertionError("Duration checks should stay inside the loop: " + durationChecks);
+        }
+        if (follower.actualDurationMs(4) != -1L) {
+            throw new AssertionError("Notes after the loop are never played");
+        }
+    }
+
+    public void clearLoopShouldPlayThePieceToTheEnd() {
+        RecorderNoteMapper mapper = new RecorderNoteMapper();
+        CompiledScore score = CompiledScore.compile(scale(3), mapper);
+        ScoreFollower follower = new ScoreFollower(score, mapper, FRAME_SECONDS, recordingListener());
+        follower.setIntensityThreshold(0.01f);
+        follower.setLoop(0, 2);
+        follower.clearLoop();
+        follower.restart();
+        long[] time = new long[1];
+        for (int i = 0; i < score.size(); i++) {
+            play(follower, score, i, time);
+        }
+        if (loopRestarts != 0 || !follower.isCompleted()) {
+            throw new AssertionError("Without a loop the piece should complete once");
+        }
+    }
+
+    public void noteMarksShouldClearInBulk() {
+        NoteMarks marks = new NoteMarks(200);
+        for (int i = 0; i < 200; i++) {
+            marks.set(i % 3, i, true);
+        }
+        marks.clear(60, 131);
+        for (int i = 0; i < 200; i++) {
+            boolean expected = i < 60 || i >= 131;
+            if (marks.get(i % 3, i) != expected) {
+                throw new AssertionError("Range clear should only clear notes 60..130, note " + i);
+            }
+        }
+        marks.clearAll();
+        marks.set(NoteMarks.MISMATCH, 150, true);
+        for (int i = 0; i < 200; i++) {
+            for (int kind = 0; kind < 3; kind++) {
+                boolean expected = i == 150 && kind == NoteMarks.MISMATCH;
+                if (marks.get(kind, i) != expected) {
+                    throw new AssertionError("clearAll should leave only the new mark, note " + i + " kind " + kind);
+                }
+            }
+        }
+    }
+
+    public void restartShouldBeFastAndAllocationFreeOnLongScores() {
+        RecorderNoteMapper mapper = new RecorderNoteMapper();
+        CompiledScore score = CompiledScore.compile(scale(20000), mapper);
+        ScoreFollower follower = new ScoreFollower(score, mapper, FRAME_SECONDS, recordingListener());
+        NoteMarks marks = new NoteMarks(score.size());
+        follower.setLoop(15000, 15010);
+        for (int i = 0; i < 2000; i++) {
+            restart(follower, marks);
+        }
+
+        com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long thread = Thread.currentThread().getId();
+        int rounds = 20000;
+        long before = threads.getThreadAllocatedBytes(thread);
+        long start = System.nanoTime();
+        for (int i = 0; i < rounds; i++) {
+            restart(follower, marks);
+        }
+        long elapsed = System.nanoTime() - start;
+        long allocated = threads.getThreadAllocatedBytes(thread) - before;
+
+        long averageNanos = elapsed / rounds;
+        System.out.println("Restart of a " + score.size() + "-note score: " + averageNanos + " ns");
+        if (allocated > 4096L) {
+            throw new AssertionError("Restart allocated " + allocated + " bytes");
+        }
+        // Clearing the marks and durations note by note would take tens of microseconds here.
+        if (averageNanos > 20000L) {
+            throw new AssertionError("Restart took " + averageNanos + " ns");
+        }
+        if (follower.pointer() != 15000 || marks.get(NoteMarks.MATCHED, 15001)) {
+            throw new AssertionError("Restart should return to the loop start with clean marks");
+        }
+    }
+
+    private static void restart(ScoreFollower follower, NoteMarks marks) {
+        marks.set(NoteMarks.MATCHED, 15001, true);
+        follower.restart();
+        marks.clearAll();
+    }
+
+    // Plays note at its nominal length, starting with an onset as PitchAnalyzer reports one;
+    // returns the number of frames until the pointer moved.
+    private int play(ScoreFollower follower, CompiledScore score, int note, long[] time) {
+        int frames = Math.max(1, Math.round(score.durationMs(note) / 1000f / FRAME_SECONDS));
+        int pointerBefore = follower.pointer();
+        int movedAfter = -1;
+        follower.onOnset(time[0]);
+        for (int f = 0; f < frames; f++) {
+            follower.onFrame(time[0], score.expectedHz(note), 0.9f, 0.2f);
+            time[0] += Math.round(FRAME_SECONDS * 1000f);
+            if (movedAfter < 0 && follower.pointer() != pointerBefore) {
+                movedAfter = f + 1;
+            }
+        }
+        return movedAfter;
+    }
+
+    private ScoreFollower.Listener recordingListener() {
+        return new ScoreFollower.Listener() {
+            @Override
+            public void onWaitingForIntensity(int pointer, float expectedHz) {
+            }
+
+            @Override
+            public void onPitch(int pointer, float expectedHz, float detectedHz, int detectedMidi) {
+            }
+
+            @Override
+            public void onNoteMismatch(int index, int detectedMidi) {
+            }
+
+            @Override
+            public void onNoteMatched(int index, int detectedMidi) {
+            }
+
+            @Override
+            public void onDurationChecked(int index, boolean mismatch) {
+                durationChecks.add(index);
+            }
+
+            @Override
+            public void onPointerChanged(int pointer) {
+                lastPointer = pointer;
+            }
+
+            @Override
+            public void onCompleted() {
+            }
+
+            @Override
+            public void onLoopRestarted(int start, int end) {
+                loopRestarts++;
+            }
+        };
+    }
+
+    // Ascending notes from C5, wrapping within one octave so they stay in the recorder range.
+    private static List<NoteEvent> scale(int count) {
+        List<NoteEvent> notes = new ArrayList<NoteEvent>();
+        for (int i = 0; i < count; i++) {
+            notes.add(new NoteEvent(SCALE[i % SCALE.length], 5, "quarter", i / 4));
+        }
+        return notes;
+    }
+
+    public static void main(String[] args) {
+        new ScoreLoopTest().loopShouldGoBackToItsStartOnTheFrameThatEndsIt();
+        new ScoreLoopTest().clearLoopShouldPlayThePieceToTheEnd();
+        new ScoreLoopTest().noteMarksShouldClearInBulk();
+        new ScoreLoopTest().restartShouldBeFastAndAllocationFreeOnLongScores();
+        System.out.println("Score loop tests passed");
+    }
+}
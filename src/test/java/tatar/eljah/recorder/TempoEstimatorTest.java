@@ -0,0 +1,126 @@
+package tatar.eljah.recorder;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+public class TempoEstimatorTest {
+    private static final float FRAME_SECONDS = 512f / 22050f;
+    private static final String[] SCALE = {"C", "D", "E", "F", "G", "A", "B"};
+    private static final String[] DURATIONS = {"quarter", "eighth", "eighth", "half"};
+
+    public void estimateShouldSettleOnASteadyTempo() {
+        TempoEstimator tempo = new TempoEstimator();
+        Random random = new Random(3L);
+        for (int i = 0; i < 16; i++) {
+            long nominal = i % 2 == 0 ? 450L : 240L;
+            tempo.observe(Math.round(nominal * 1.2d * (1d + random.nextGaussian() * 0.08d)), nominal);
+        }
+        if (Math.abs(tempo.ratio() - 1.2f) > 0.06f) {
+            throw new AssertionError("Expected a ratio near 1.2, got " + tempo.ratio());
+        }
+    }
+
+    public void singleWrongLengthShouldNotMoveTheTempo() {
+        TempoEstimator tempo = new TempoEstimator();
+        for (int i = 0; i < 8; i++) {
+            tempo.observe(450L, 450L);
+        }
+        if (tempo.observe(1000L, 450L) || Math.abs(tempo.ratio() - 1f) > 0.01f) {
+            throw new AssertionError("A note held twice as long is a wrong duration, not a tempo change");
+        }
+        tempo.observe(450L, 450L);
+        if (Math.abs(tempo.ratio() - 1f) > 0.01f) {
+            throw new AssertionError("Tempo should stay put, got " + tempo.ratio());
+        }
+    }
+
+    public void sustainedChangeShouldBeFollowed() {
+        TempoEstimator tempo = new TempoEstimator();
+        for (int i = 0; i < 8; i++) {
+            tempo.observe(450L, 450L);
+        }
+        for (int i = 0; i < 6; i++) {
+            tempo.observe(765L, 450L);
+        }
+        if (Math.abs(tempo.ratio() - 1.7f) > 0.05f) {
+            throw new AssertionError("Several notes in a row at 1.7x should move the tempo, got " + tempo.ratio());
+        }
+    }
+
+    public void slowPlayerShouldOnlyBeFlaggedUntilTheTempoIsKnown() {
+        RecorderNoteMapper mapper = new RecorderNoteMapper();
+        List<NoteEvent> notes = new ArrayList<NoteEvent>();
+        for (int i = 0; i < 24; i++) {
+            notes.add(new NoteEvent(SCALE[i % SCALE.length], 5, DURATIONS[i % DURATIONS.length], i / 4));
+        }
+        CompiledScore score = CompiledScore.compile(notes, mapper);
+        final int[] mismatches = new int[1];
+        ScoreFollower follower = new ScoreFollower(score, mapper, FRAME_SECONDS, new ScoreFollower.Listener() {
+            @Override
+            public void onWaitingForIntensity(int pointer, float expectedHz) {
+            }
+
+            @Override
+            public void onPitch(int pointer, float expectedHz, float detectedHz, int detectedMidi) {
+            }
+
+            @Override
+            public void onNoteMismatch(int index, int detectedMidi) {
+            }
+
+            @Override
+            public void onNoteMatched(int index, int detectedMidi) {
+            }
+
+            @Override
+            public void onDurationChecked(int index, boolean mismatch) {
+                if (mismatch) {
+                    mismatches[0]++;
+                }
+            }
+
+            @Override
+            public void onPointerChanged(int pointer) {
+            }
+
+            @Override
+            public void onCompleted() {
+            }
+
+            @Override
+            public void onLoopRestarted(int start, int end) {
+            }
+        });
+        follower.setIntensityThreshold(0.01f);
+
+        // Every note 1.7 times its nominal length: beyond the fixed tolerance for all of them.
+        long time = 0L;
+        long frameMs = Math.round(FRAME_SECONDS * 1000f);
+        for (int i = 0; i < score.size(); i++) {
+            long end = time + Math.round(score.durationMs(i) * 1.7d);
+            for (; time < end; time += frameMs) {
+                follower.onFrame(time, score.expectedHz(i), 0.9f, 0.2f);
+            }
+        }
+        if (!follower.isCompleted()) {
+            throw new AssertionError("The slow performance should still be followed to the end");
+        }
+        if (Math.abs(follower.tempoRatio() - 1.7f) > 0.1f) {
+            throw new AssertionError("Expected the follower to find a 1.7 tempo ratio, got " + follower.tempoRatio());
+        }
+        if (mismatches[0] > 4) {
+            throw new AssertionError("Only the notes before the tempo was found should be flagged, got "
+                    + mismatches[0] + " of " + (score.size() - 1));
+        }
+    }
+
+    public static void main(String[] args) {
+        TempoEstimatorTest test = new TempoEstimatorTest();
+        test.estimateShouldSettleOnASteadyTempo();
+        test.singleWrongLengthShouldNotMoveTheTempo();
+        test.sustainedChangeShouldBeFollowed();
+        test.slowPlayerShouldOnlyBeFlaggedUntilTheTempoIsKnown();
+        System.out.println("Tempo estimator tests passed");
+    }
+}